@@ -0,0 +1,65 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+
+/** Source frames for the frame-path benchmarks. */
+class BenchmarkFrames {
+  /**
+   * Values for a "resolution" @Param covering the capture sizes we see on
+   * devices: QVGA, VGA, 720p & 1080p.
+   */
+  public static final String QVGA = "320x240";
+  public static final String VGA = "640x480";
+  public static final String HD = "1280x720";
+  public static final String FULL_HD = "1920x1080";
+
+  private BenchmarkFrames() {}
+
+  /**
+   * Return a frame of |resolution| ("<width>x<height>") with unpadded planes
+   * filled with a non-constant pattern, as a decoder or camera would hand to
+   * VideoRenderer.Callbacks.renderFrame().
+   */
+  public static I420Frame newFrame(String resolution) {
+    int x = resolution.indexOf('x');
+    int width = Integer.parseInt(resolution.substring(0, x));
+    int height = Integer.parseInt(resolution.substring(x + 1));
+    I420Frame frame = new I420Frame(width, height,
+        new int[] { width, width / 2, width / 2 }, null);
+    for (ByteBuffer plane : frame.yuvPlanes) {
+      for (int i = 0; i < plane.capacity(); ++i) {
+        plane.put(i, (byte) i);
+      }
+    }
+    return frame;
+  }
+}
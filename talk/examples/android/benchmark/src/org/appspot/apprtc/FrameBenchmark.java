@@ -0,0 +1,89 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-frame work VideoStreamsView.queueFrame() does on the
+ * delivering thread besides the FramePool round-trip: keying the frame's
+ * dimensions and copying its planes into a pooled frame, or for a local
+ * thumbnail shrinking them into one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameBenchmark {
+  @Param({ BenchmarkFrames.QVGA, BenchmarkFrames.VGA, BenchmarkFrames.HD,
+      BenchmarkFrames.FULL_HD })
+  public String resolution;
+
+  private I420Frame source;
+  private I420Frame destination;
+  private I420Frame halfDestination;
+
+  @Setup
+  public void setUp() {
+    source = BenchmarkFrames.newFrame(resolution);
+    destination = new I420Frame(
+        source.width, source.height, source.yuvStrides, null);
+    halfDestination = new FramePool().takeFrame(
+        FrameDownscaler.scaledPrototype(source, 1));
+  }
+
+  @Benchmark
+  public long summarizeFrameDimensions() {
+    return FramePool.summarizeFrameDimensions(source);
+  }
+
+  @Benchmark
+  public I420Frame copyFrom() {
+    return destination.copyFrom(source);
+  }
+
+  @Benchmark
+  public I420Frame downscaleByHalf() {
+    return FrameDownscaler.downscale(source, 1, halfDestination);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the frame path from memory-mapped content, one frame per operation:
+ * copyToPool() does VideoStreamsView.queueFrame()'s FramePool round-trip
+ * & copy on each frame of a FrameFileSource, and recordToRing() records each
+ * into a FrameRingFile.  Plays a generated .y4m of the "resolution" @Param
+ * unless a recording is given with e.g. "-p file=/path/to/foreman.y4m".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameFileBenchmark {
+  private static final int GENERATED_FRAMES = 30;
+  private static final int RING_FRAMES = 60;
+
+  @Param({ BenchmarkFrames.QVGA, BenchmarkFrames.VGA, BenchmarkFrames.HD,
+      BenchmarkFrames.FULL_HD })
+  public String resolution;
+
+  @Param({ "" })
+  public String file;
+
+  private File generatedFile;
+  private File ringFile;
+  private FrameFileSource source;
+  private FramePool framePool;
+  private FrameRingFile ring;
+  private int nextFrame = 0;
+
+  @Setup
+  public void setUp() throws IOException {
+    if (file.isEmpty()) {
+      generatedFile = File.createTempFile("FrameFileBenchmark", ".y4m");
+      writeY4m(generatedFile, BenchmarkFrames.newFrame(resolution));
+      source = new FrameFileSource(generatedFile);
+    } else {
+      source = new FrameFileSource(new File(file));
+    }
+    framePool = new FramePool();
+    ringFile = File.createTempFile("FrameFileBenchmark", ".ring");
+    ring = new FrameRingFile(ringFile, RING_FRAMES);
+    ring.setSize(source.getWidth(), source.getHeight());
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (generatedFile != null) {
+      generatedFile.delete();
+    }
+    ringFile.delete();
+  }
+
+  @Benchmark
+  public I420Frame copyToPool() {
+    I420Frame frame = nextFrame();
+    I420Frame copy = framePool.takeFrame(frame).copyFrom(frame);
+    framePool.returnFrame(copy);
+    return copy;
+  }
+
+  @Benchmark
+  public long recordToRing() {
+    ring.renderFrame(nextFrame());
+    return ring.getFramesWritten();
+  }
+
+  private I420Frame nextFrame() {
+    I420Frame frame = source.getFrame(nextFrame);
+    nextFrame = (nextFrame + 1) % source.getFrameCount();
+    return frame;
+  }
+
+  // Write GENERATED_FRAMES frames like |pattern| (unpadded), each shifted so
+  // no two are the same, to |file| as .y4m.
+  private static void writeY4m(File file, I420Frame pattern)
+      throws IOException {
+    OutputStream out =
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    try {
+      out.write(("YUV4MPEG2 W" + pattern.width + " H" + pattern.height +
+          " F30:1 Ip A1:1 C420jpeg\n").getBytes("US-ASCII"));
+      for (int n = 0; n < GENERATED_FRAMES; ++n) {
+        out.write("FRAME\n".getBytes("US-ASCII"));
+        for (int i = 0; i < 3; ++i) {
+          for (int j = 0; j < pattern.yuvPlanes[i].capacity(); ++j) {
+            out.write(pattern.yuvPlanes[i].get(j) + n);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
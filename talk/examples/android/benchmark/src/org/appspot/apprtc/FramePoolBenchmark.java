@@ -0,0 +1,131 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FramePool take/return round-trips with several threads hammering
+ * the same pool, the way the capture, decoder and GL threads do during a call.
+ * lockingPool() is the pre-bucketed single-lock implementation, kept here as a
+ * baseline.  Override the thread count with e.g. "-t 8".  Run with "-prof gc"
+ * to see that only lockingPool() allocates in steady state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FramePoolBenchmark {
+  @Param({ BenchmarkFrames.QVGA, BenchmarkFrames.VGA, BenchmarkFrames.HD,
+      BenchmarkFrames.FULL_HD })
+  public String resolution;
+
+  private I420Frame source;
+  private FramePool framePool;
+  private LockingFramePool lockingFramePool;
+
+  @Setup
+  public void setUp() {
+    source = BenchmarkFrames.newFrame(resolution);
+    framePool = new FramePool();
+    lockingFramePool = new LockingFramePool();
+  }
+
+  @Benchmark
+  public I420Frame framePool() {
+    I420Frame frame = framePool.takeFrame(source);
+    framePool.returnFrame(frame);
+    return frame;
+  }
+
+  @Benchmark
+  public I420Frame lockingPool() {
+    I420Frame frame = lockingFramePool.takeFrame(source);
+    lockingFramePool.returnFrame(frame);
+    return frame;
+  }
+
+  // The original FramePool: one global lock around a HashMap of boxed keys to
+  // unbounded LinkedLists.
+  private static class LockingFramePool {
+    private static final long MAX_DIMENSION = 4096;
+    private final HashMap<Long, LinkedList<I420Frame>> availableFrames =
+        new HashMap<Long, LinkedList<I420Frame>>();
+
+    public I420Frame takeFrame(I420Frame source) {
+      long desc = summarizeFrameDimensions(source);
+      synchronized (availableFrames) {
+        LinkedList<I420Frame> frames = availableFrames.get(desc);
+        if (frames == null) {
+          frames = new LinkedList<I420Frame>();
+          availableFrames.put(desc, frames);
+        }
+        if (!frames.isEmpty()) {
+          return frames.pop();
+        }
+        return new I420Frame(
+            source.width, source.height, source.yuvStrides, null);
+      }
+    }
+
+    public void returnFrame(I420Frame frame) {
+      long desc = summarizeFrameDimensions(frame);
+      synchronized (availableFrames) {
+        availableFrames.get(desc).add(frame);
+      }
+    }
+
+    private static long summarizeFrameDimensions(I420Frame frame) {
+      long ret = frame.width;
+      ret = ret * MAX_DIMENSION + frame.height;
+      ret = ret * MAX_DIMENSION + frame.yuvStrides[0];
+      ret = ret * MAX_DIMENSION + frame.yuvStrides[1];
+      ret = ret * MAX_DIMENSION + frame.yuvStrides[2];
+      return ret;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures scraping signaling parameters out of a recorded apprtc room page
+ * (data/apprtc_room.html), which is on the critical path of joining a room
+ * whose server doesn't serve them as JSON.  originalScrape() is the code
+ * RoomHtmlParser replaced, kept here as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoomHtmlBenchmark {
+  private String roomHtml;
+
+  @Setup
+  public void setUp() throws IOException {
+    InputStream in = RoomHtmlBenchmark.class.getResourceAsStream(
+        "apprtc_room.html");
+    InputStreamReader reader = new InputStreamReader(in, "UTF-8");
+    StringBuilder html = new StringBuilder();
+    char[] buffer = new char[8192];
+    int count;
+    while ((count = reader.read(buffer)) != -1) {
+      html.append(buffer, 0, count);
+    }
+    reader.close();
+    roomHtml = html.toString();
+  }
+
+  @Benchmark
+  public RoomHtmlParser.Parameters parse() throws IOException {
+    return RoomHtmlParser.parse(roomHtml);
+  }
+
+  @Benchmark
+  public String originalScrape() throws IOException {
+    final Pattern tokenPattern = Pattern.compile(
+        ".*\n *openChannel\\('([^']*)'\\);\n.*");
+    final Pattern postMessagePattern = Pattern.compile(
+        ".*\n *path = '/(message\\?r=[0-9]+)' \\+ '(&u=[0-9]+)';\n.*");
+    final Pattern fullRoomPattern = Pattern.compile(
+        ".*\n *Sorry, this room is full\\..*");
+    final Pattern pcConfigPattern = Pattern.compile(
+        ".*\n *var pc_config = (\\{[^\n]*\\});\n.*");
+
+    Matcher fullRoomMatcher = fullRoomPattern.matcher(roomHtml);
+    if (fullRoomMatcher.find()) {
+      throw new IOException("Room is full!");
+    }
+
+    Matcher tokenMatcher = tokenPattern.matcher(roomHtml);
+    if (!tokenMatcher.find()) {
+      throw new IOException("Missing channel token in HTML: " + roomHtml);
+    }
+    String token = tokenMatcher.group(1);
+    if (tokenMatcher.find()) {
+      throw new IOException("Too many channel tokens in HTML: " + roomHtml);
+    }
+
+    Matcher postMessageMatcher = postMessagePattern.matcher(roomHtml);
+    if (!postMessageMatcher.find()) {
+      throw new IOException("Missing postMessage URL in HTML: " + roomHtml);
+    }
+    String postMessageUrl =
+        postMessageMatcher.group(1) + postMessageMatcher.group(2);
+    if (postMessageMatcher.find()) {
+      throw new IOException("Too many postMessage URLs in HTML: " + roomHtml);
+    }
+
+    Matcher pcConfigMatcher = pcConfigPattern.matcher(roomHtml);
+    if (!pcConfigMatcher.find()) {
+      throw new IOException("Missing pc_config in HTML: " + roomHtml);
+    }
+    String pcConfig = pcConfigMatcher.group(1);
+    if (pcConfigMatcher.find()) {
+      throw new IOException("Too many pc_configs in HTML: " + roomHtml);
+    }
+    return token + postMessageUrl + pcConfig;
+  }
+}
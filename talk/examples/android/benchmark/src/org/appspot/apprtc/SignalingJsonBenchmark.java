@@ -0,0 +1,204 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding & decoding the signaling messages AppRTCDemoActivity
+ * exchanges with apprtc, with SignalingCodec (codec* methods) and, for
+ * comparison, with org.json the way the activity used to.  Candidates are the
+ * common case, sent by the dozen per call; offers & answers are rare but
+ * large.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SignalingJsonBenchmark {
+  private static final String CANDIDATE_SDP =
+      "a=candidate:2999745851 1 udp 2113937151 192.168.1.14 53108 typ host " +
+      "generation 0\r\n";
+  private static final String SESSION_SDP =
+      "v=0\r\n" +
+      "o=- 4385523553853458498 2 IN IP4 127.0.0.1\r\n" +
+      "s=-\r\n" +
+      "t=0 0\r\n" +
+      "a=group:BUNDLE audio video\r\n" +
+      "a=msid-semantic: WMS ARDAMS\r\n" +
+      "m=audio 1 RTP/SAVPF 111 103 104 0 8 106 105 13 126\r\n" +
+      "c=IN IP4 0.0.0.0\r\n" +
+      "a=rtcp:1 IN IP4 0.0.0.0\r\n" +
+      "a=ice-ufrag:Gqf3C0Txg0YtqlcS\r\n" +
+      "a=ice-pwd:9Mjw2AUV8J1bE/Lq9OMz3zMD\r\n" +
+      "a=ice-options:google-ice\r\n" +
+      "a=mid:audio\r\n" +
+      "a=rtcp-mux\r\n" +
+      "a=crypto:1 AES_CM_128_HMAC_SHA1_80 " +
+      "inline:r1wB6AVyNhrwL7bNTXQwNqU0uuqCT+yf0v0o6N1d\r\n" +
+      "a=rtpmap:111 opus/48000/2\r\n" +
+      "a=fmtp:111 minptime=10\r\n" +
+      "a=rtpmap:103 ISAC/16000\r\n" +
+      "a=rtpmap:104 ISAC/32000\r\n" +
+      "a=rtpmap:0 PCMU/8000\r\n" +
+      "a=rtpmap:8 PCMA/8000\r\n" +
+      "a=rtpmap:106 CN/32000\r\n" +
+      "a=rtpmap:105 CN/16000\r\n" +
+      "a=rtpmap:13 CN/8000\r\n" +
+      "a=rtpmap:126 telephone-event/8000\r\n" +
+      "a=maxptime:60\r\n" +
+      "a=ssrc:1708297387 cname:kfP7ZGTd1R3nk4SQ\r\n" +
+      "a=ssrc:1708297387 msid:ARDAMS ARDAMSa0\r\n" +
+      "a=ssrc:1708297387 mslabel:ARDAMS\r\n" +
+      "a=ssrc:1708297387 label:ARDAMSa0\r\n" +
+      "m=video 1 RTP/SAVPF 100 116 117\r\n" +
+      "c=IN IP4 0.0.0.0\r\n" +
+      "a=rtcp:1 IN IP4 0.0.0.0\r\n" +
+      "a=ice-ufrag:Gqf3C0Txg0YtqlcS\r\n" +
+      "a=ice-pwd:9Mjw2AUV8J1bE/Lq9OMz3zMD\r\n" +
+      "a=ice-options:google-ice\r\n" +
+      "a=mid:video\r\n" +
+      "a=rtcp-mux\r\n" +
+      "a=crypto:1 AES_CM_128_HMAC_SHA1_80 " +
+      "inline:r1wB6AVyNhrwL7bNTXQwNqU0uuqCT+yf0v0o6N1d\r\n" +
+      "a=rtpmap:100 VP8/90000\r\n" +
+      "a=rtcp-fb:100 ccm fir\r\n" +
+      "a=rtcp-fb:100 nack\r\n" +
+      "a=rtcp-fb:100 goog-remb\r\n" +
+      "a=rtpmap:116 red/90000\r\n" +
+      "a=rtpmap:117 ulpfec/90000\r\n" +
+      "a=ssrc:2566287447 cname:kfP7ZGTd1R3nk4SQ\r\n" +
+      "a=ssrc:2566287447 msid:ARDAMS ARDAMSv0\r\n" +
+      "a=ssrc:2566287447 mslabel:ARDAMS\r\n" +
+      "a=ssrc:2566287447 label:ARDAMSv0\r\n";
+
+  private final SignalingCodec codec = new SignalingCodec();
+  private String candidateMessage;
+  private String answerMessage;
+
+  @Setup
+  public void setUp() {
+    candidateMessage = encodeCandidate();
+    answerMessage = encodeSessionDescription("answer");
+  }
+
+  @Benchmark
+  public String encodeCandidate() {
+    JSONObject json = new JSONObject();
+    jsonPut(json, "type", "candidate");
+    jsonPut(json, "label", 0);
+    jsonPut(json, "id", "audio");
+    jsonPut(json, "candidate", CANDIDATE_SDP);
+    return json.toString();
+  }
+
+  @Benchmark
+  public String encodeOffer() {
+    return encodeSessionDescription("offer");
+  }
+
+  @Benchmark
+  public String decodeCandidate() throws JSONException {
+    JSONObject json = new JSONObject(candidateMessage);
+    String type = (String) json.get("type");
+    if (!type.equals("candidate")) {
+      throw new RuntimeException("Unexpected message: " + candidateMessage);
+    }
+    return (String) json.get("id") + json.getInt("label") +
+        (String) json.get("candidate");
+  }
+
+  @Benchmark
+  public String decodeAnswer() throws JSONException {
+    JSONObject json = new JSONObject(answerMessage);
+    String type = (String) json.get("type");
+    if (!type.equals("answer")) {
+      throw new RuntimeException("Unexpected message: " + answerMessage);
+    }
+    return (String) json.get("sdp");
+  }
+
+  @Benchmark
+  public String codecEncodeCandidate() {
+    return codec.encodeCandidate("audio", 0, CANDIDATE_SDP);
+  }
+
+  @Benchmark
+  public String codecEncodeOffer() {
+    return codec.encodeSessionDescription("offer", SESSION_SDP);
+  }
+
+  @Benchmark
+  public String codecDecodeCandidate() throws JSONException {
+    SignalingCodec.Message message = codec.decode(candidateMessage);
+    if (message.type != SignalingCodec.Type.CANDIDATE) {
+      throw new RuntimeException("Unexpected message: " + candidateMessage);
+    }
+    return message.sdpMid + message.sdpMLineIndex + message.candidate;
+  }
+
+  @Benchmark
+  public String codecDecodeAnswer() throws JSONException {
+    SignalingCodec.Message message = codec.decode(answerMessage);
+    if (message.type != SignalingCodec.Type.ANSWER) {
+      throw new RuntimeException("Unexpected message: " + answerMessage);
+    }
+    return message.sdp;
+  }
+
+  private static String encodeSessionDescription(String type) {
+    JSONObject json = new JSONObject();
+    jsonPut(json, "type", type);
+    jsonPut(json, "sdp", SESSION_SDP);
+    return json.toString();
+  }
+
+  // Put a |key|->|value| mapping in |json|.
+  private static void jsonPut(JSONObject json, String key, Object value) {
+    try {
+      json.put(key, value);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
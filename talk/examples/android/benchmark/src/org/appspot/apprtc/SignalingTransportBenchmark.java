@@ -0,0 +1,159 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to deliver a burst of trickled ICE candidates to a local
+ * stand-in for apprtc's /message handler, i.e. time-to-all-candidates-
+ * delivered at call setup.  perMessageConnection() is the original
+ * AppRTCClient.maybeDrainQueue() loop, kept here as a baseline.  The stand-in
+ * speaks plain http, so the TLS handshakes keep-alive saves on a real
+ * connection to apprtc are not part of the measured difference; add
+ * "-p serverDelayMs=50" to model a distant server.  The stand-in disables
+ * Nagle's algorithm like production front-ends do; otherwise its responses
+ * on a reused connection wait out the client's delayed ACK.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SignalingTransportBenchmark {
+  private static final byte[] RESPONSE_BODY = { 'O', 'K' };
+
+  @Param({ "20" })
+  public int candidates;
+  @Param({ "0" })
+  public int serverDelayMs;
+
+  private HttpServer server;
+  private URL url;
+  private List<String> messages;
+  private SignalingTransport keepAliveTransport;
+  private SignalingTransport batchingTransport;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/message", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          drain(exchange.getRequestBody());
+          if (serverDelayMs > 0) {
+            try {
+              Thread.sleep(serverDelayMs);
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+          // Like apprtc's, the response has a (tiny) body, which must be read
+          // for the connection to be reused.
+          exchange.sendResponseHeaders(200, RESPONSE_BODY.length);
+          exchange.getResponseBody().write(RESPONSE_BODY);
+          exchange.close();
+        }
+      });
+    server.start();
+    url = new URL("http://127.0.0.1:" + server.getAddress().getPort() +
+        "/message?r=12345678&u=87654321");
+    messages = new ArrayList<String>();
+    for (int i = 0; i < candidates; ++i) {
+      messages.add("{\"type\":\"candidate\",\"label\":" + (i % 2) +
+          ",\"id\":\"" + (i % 2 == 0 ? "audio" : "video") +
+          "\",\"candidate\":\"a=candidate:" + i + " 1 udp 2113937151 " +
+          "192.168.1.14 " + (50000 + i) + " typ host generation 0\\r\\n\"}");
+    }
+    keepAliveTransport = new SignalingTransport(url, 1);
+    batchingTransport = new SignalingTransport(url, candidates);
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Benchmark
+  public void perMessageConnection() throws IOException {
+    for (String msg : messages) {
+      URLConnection connection = url.openConnection();
+      connection.setDoOutput(true);
+      connection.getOutputStream().write(msg.getBytes("UTF-8"));
+      if (!connection.getHeaderField(null).startsWith("HTTP/1.1 200 ")) {
+        throw new IOException(
+            "Non-200 response to POST: " + connection.getHeaderField(null) +
+            " for msg: " + msg);
+      }
+    }
+  }
+
+  @Benchmark
+  public void keepAlive() throws IOException {
+    keepAliveTransport.post(new ArrayList<String>(messages));
+  }
+
+  @Benchmark
+  public void batched() throws IOException {
+    batchingTransport.post(new ArrayList<String>(messages));
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[1024];
+    while (in.read(buffer) != -1) {
+      // Discard.
+    }
+    in.close();
+  }
+}
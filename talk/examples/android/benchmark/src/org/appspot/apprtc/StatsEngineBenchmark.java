@@ -0,0 +1,125 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.webrtc.StatsReport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures handling one getStats() result of a call sending & receiving audio
+ * and video: sampling it with StatsEngine, vs. turning every report into a
+ * String as AppRTCDemoActivity used to for logging.  Reports are pre-built
+ * (libjingle allocates them either way), ROUNDS polls' worth with advancing
+ * timestamps and counters; the engine is replaced when they run out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StatsEngineBenchmark {
+  private static final int ROUNDS = 4096;
+  private static final int HISTORY = 300;
+
+  private StatsReport[][] rounds;
+  private StatsEngine engine;
+  private int round;
+
+  @Setup
+  public void setUp() {
+    rounds = new StatsReport[ROUNDS][];
+    for (int i = 0; i < ROUNDS; ++i) {
+      long timestampMs = 1380000000000L + i * 1000L;
+      rounds[i] = new StatsReport[] {
+        report("ssrc_1708297387_send", timestampMs,
+            "bytesSent", 4000L * i, "packetsSent", 50L * i,
+            "packetsLost", i / 20, "googRtt", 40 + i % 7),
+        report("ssrc_2566287447_send", timestampMs,
+            "bytesSent", 62500L * i, "packetsSent", 60L * i,
+            "packetsLost", i / 10, "googRtt", 42 + i % 5,
+            "googFrameRateSent", 30),
+        report("ssrc_3473624983_recv", timestampMs,
+            "bytesReceived", 4000L * i, "packetsReceived", 50L * i,
+            "packetsLost", i / 25, "googJitterReceived", 12 + i % 9),
+        report("ssrc_1135289342_recv", timestampMs,
+            "bytesReceived", 62500L * i, "packetsReceived", 60L * i,
+            "packetsLost", i / 15, "googFrameRateReceived", 30,
+            "googFrameRateDecoded", 29),
+        new StatsReport("googLibjingleSession_1", "googLibjingleSession",
+            timestampMs, new StatsReport.Value[] {
+              new StatsReport.Value("googInitiator", "true") }),
+      };
+    }
+    engine = new StatsEngine(HISTORY);
+    round = 0;
+  }
+
+  @Benchmark
+  public StatsEngine update() {
+    if (round == ROUNDS) {
+      engine = new StatsEngine(HISTORY);
+      round = 0;
+    }
+    engine.update(rounds[round++]);
+    return engine;
+  }
+
+  @Benchmark
+  public int logStrings() {
+    StatsReport[] reports = rounds[round++ % ROUNDS];
+    int length = 0;
+    for (StatsReport report : reports) {
+      length += ("Stats: " + report.toString()).length();
+    }
+    return length;
+  }
+
+  // A report whose values are the given name, number pairs.
+  private static StatsReport report(
+      String id, long timestampMs, Object... namesAndValues) {
+    StatsReport.Value[] values =
+        new StatsReport.Value[namesAndValues.length / 2];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = new StatsReport.Value((String) namesAndValues[2 * i],
+          String.valueOf(namesAndValues[2 * i + 1]));
+    }
+    return new StatsReport(id, "ssrc", timestampMs, values);
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.appspot.apprtc.CaptureController.DOWN_SAMPLES;
+import static org.appspot.apprtc.CaptureController.MAX_UP_SAMPLES;
+import static org.appspot.apprtc.CaptureController.MIN_UP_SAMPLES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drives CaptureController with a simulated call whose send bandwidth and
+ * per-Step encode times the test controls, and checks the Steps it visits.
+ */
+public class CaptureControllerTest {
+  private static final CaptureController.Step[] LADDER =
+      CaptureController.DEFAULT_LADDER;
+  // Indices into LADDER.
+  private static final int VGA = 2;  // 640x480@30
+  private static final int NHD = 3;  // 640x360@24
+  // Enough for anything on the ladder.
+  private static final double AMPLE_BPS = 1e9;
+  // Enough for VGA, but without the headroom to try 960x540.
+  private static final double VGA_BPS = 1200000;
+
+  @Test
+  public void stepsDownToWhatTheLinkCarriesAndStays() {
+    // Enough for 640x360@24 but short of 640x480@30, with no headroom to try
+    // it.
+    Call call = new Call(0, 600000);
+    call.run(500);
+    assertRuns(call, run(0, DOWN_SAMPLES + 1), run(1, DOWN_SAMPLES + 1),
+        run(VGA, DOWN_SAMPLES + 1), run(NHD, 500 - 3 * (DOWN_SAMPLES + 1)));
+  }
+
+  @Test
+  public void stepsUpWhileThereIsHeadroom() {
+    Call call = new Call(LADDER.length - 1, AMPLE_BPS);
+    call.run(200);
+    List<int[]> runs = call.runs();
+    assertEquals(LADDER.length, runs.size());
+    for (int i = 0; i < runs.size() - 1; ++i) {
+      // The first sample after each change is ignored.
+      assertEquals(LADDER.length - 1 - i, runs.get(i)[0]);
+      assertEquals(MIN_UP_SAMPLES + 1, runs.get(i)[1]);
+    }
+    assertEquals(0, call.index());
+  }
+
+  @Test
+  public void failedProbesBackOffExponentially() {
+    // VGA looks affordable from 640x360 (encode time projected by pixels),
+    // but actually encodes too slowly.
+    Call call = new Call(NHD, AMPLE_BPS);
+    call.encodeMs[NHD] = 14;
+    call.encodeMs[VGA] = 30;
+    call.run(1000);
+    List<int[]> runs = call.runs();
+    int upSamples = MIN_UP_SAMPLES;
+    for (int i = 0; i < runs.size() - 1; ++i) {
+      if (i % 2 == 0) {
+        assertEquals(NHD, runs.get(i)[0]);
+        assertEquals("run " + i, upSamples + 1, runs.get(i)[1]);
+        upSamples = Math.min(upSamples * 2, MAX_UP_SAMPLES);
+      } else {
+        assertEquals(VGA, runs.get(i)[0]);
+        assertEquals("run " + i, DOWN_SAMPLES + 1, runs.get(i)[1]);
+      }
+    }
+    // With probes backed off, VGA gets a few samples out of every
+    // MAX_UP_SAMPLES.
+    assertTrue(runs.size() < 2 * (1000 / MAX_UP_SAMPLES + 4));
+  }
+
+  @Test
+  public void probeBackoffResetsOnlyOnceAStepUpHolds() {
+    Call call = new Call(NHD, VGA_BPS);
+    call.encodeMs[NHD] = 14;
+    call.encodeMs[VGA] = 30;
+    // Fail probes until they're MAX_UP_SAMPLES apart.
+    int lowRun = MIN_UP_SAMPLES + 1;
+    while (lowRun < MAX_UP_SAMPLES + 1) {
+      call.runUntilChange();
+      call.runUntilChange();
+      lowRun = Math.min(2 * lowRun - 1, MAX_UP_SAMPLES + 1);
+    }
+    // The next probe holds for a while, but not for MAX_UP_SAMPLES...
+    call.encodeMs[VGA] = 10;
+    assertEquals(MAX_UP_SAMPLES + 1, call.runUntilChange());
+    assertEquals(VGA, call.index());
+    call.run(MAX_UP_SAMPLES / 2);
+    call.encodeMs[VGA] = 30;
+    assertEquals(DOWN_SAMPLES, call.runUntilChange());
+    // ...so it still counts as failed and the backoff stands.
+    assertEquals(MAX_UP_SAMPLES + 1, call.runUntilChange());
+    // This time the step up holds for MAX_UP_SAMPLES, which resets it.
+    call.encodeMs[VGA] = 10;
+    call.run(MAX_UP_SAMPLES);
+    assertEquals(VGA, call.index());
+    call.encodeMs[VGA] = 30;
+    assertEquals(DOWN_SAMPLES, call.runUntilChange());
+    assertEquals(MIN_UP_SAMPLES + 1, call.runUntilChange());
+  }
+
+  @Test
+  public void isolatedOverloadDoesNotStepDown() {
+    Call call = new Call(VGA, VGA_BPS);
+    for (int i = 0; i < 200; ++i) {
+      call.cpuLimited = i % DOWN_SAMPLES == 0;
+      call.sample();
+    }
+    assertRuns(call, run(VGA, 200));
+  }
+
+  @Test
+  public void interruptedHeadroomDoesNotStepUp() {
+    Call call = new Call(NHD, AMPLE_BPS);
+    for (int i = 0; i < 200; ++i) {
+      // Dropping a few frames neither overloads nor leaves room to step up.
+      call.renderDropPercent = i % MIN_UP_SAMPLES == 0 ? 5 : 0;
+      call.sample();
+    }
+    assertRuns(call, run(NHD, 200));
+  }
+
+  @Test
+  public void unknownSignalsHold() {
+    Call call = new Call(NHD, Double.NaN);
+    Arrays.fill(call.encodeMs, Double.NaN);
+    call.renderDropPercent = Double.NaN;
+    call.run(200);
+    assertRuns(call, run(NHD, 200));
+  }
+
+  private static int[] run(int index, int length) {
+    return new int[] { index, length };
+  }
+
+  private static void assertRuns(Call call, int[]... expected) {
+    List<int[]> runs = call.runs();
+    assertEquals(toString(Arrays.asList(expected)), toString(runs));
+  }
+
+  private static String toString(List<int[]> runs) {
+    StringBuilder string = new StringBuilder();
+    for (int[] run : runs) {
+      string.append(LADDER[run[0]]).append(" x").append(run[1]).append(' ');
+    }
+    return string.toString();
+  }
+
+  // A call whose send bandwidth estimate and encode time (per Step, for a
+  // CPU that keeps up everywhere by default) respond to the Step chosen.
+  private static class Call {
+    public final CaptureController controller;
+    public final double availableSendBps;
+    public final double[] encodeMs = new double[LADDER.length];
+    public boolean cpuLimited = false;
+    public double renderDropPercent = 0;
+    // Index of the Step in effect when each sample was taken.
+    private final List<Integer> trace = new ArrayList<Integer>();
+
+    public Call(int initialStep, double availableSendBps) {
+      this.controller = new CaptureController(LADDER, initialStep);
+      this.availableSendBps = availableSendBps;
+      Arrays.fill(encodeMs, 1);
+    }
+
+    public int index() {
+      return Arrays.asList(LADDER).indexOf(controller.getStep());
+    }
+
+    // Feed the controller one sample; return whether the Step changed.
+    public boolean sample() {
+      int index = index();
+      trace.add(index);
+      return controller.update(
+          availableSendBps, encodeMs[index], cpuLimited, renderDropPercent);
+    }
+
+    public void run(int samples) {
+      for (int i = 0; i < samples; ++i) {
+        sample();
+      }
+    }
+
+    // Sample until the Step changes; return how many samples that took.
+    public int runUntilChange() {
+      for (int i = 1; i <= 10 * MAX_UP_SAMPLES; ++i) {
+        if (sample()) {
+          return i;
+        }
+      }
+      throw new AssertionError("Step never changed");
+    }
+
+    // Collapse the trace into {index, samples} runs.  The sample that
+    // changes the Step counts towards the run of the Step it left.
+    public List<int[]> runs() {
+      List<int[]> runs = new ArrayList<int[]>();
+      for (int index : trace) {
+        if (runs.isEmpty() || runs.get(runs.size() - 1)[0] != index) {
+          runs.add(new int[] { index, 0 });
+        }
+        ++runs.get(runs.size() - 1)[1];
+      }
+      return runs;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class FrameFileSourceTest {
+  private static final int WIDTH = 32;
+  private static final int HEIGHT = 16;
+  private static final int FRAMES = 4;
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    // Raw I420, every byte of frame i being i + 1.
+    file = File.createTempFile("FrameFileSourceTest", ".yuv");
+    byte[] frame = new byte[FrameFileSource.frameBytes(WIDTH, HEIGHT)];
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      for (int i = 0; i < FRAMES; ++i) {
+        Arrays.fill(frame, (byte) (i + 1));
+        out.write(frame);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void playsEveryFrameInOrder() throws IOException {
+    FrameFileSource source = new FrameFileSource(file, WIDTH, HEIGHT);
+    assertEquals(FRAMES, source.getFrameCount());
+    ConsumingRenderer renderer = new ConsumingRenderer();
+    assertEquals(3 * FRAMES, source.play(renderer, 0, 3));
+    assertEquals(3 * FRAMES, renderer.frames);
+  }
+
+  @Test
+  public void concurrentPlaysDontShareThePlanes() throws Exception {
+    final FrameFileSource source = new FrameFileSource(file, WIDTH, HEIGHT);
+    final int loops = 500;
+    final ConsumingRenderer[] renderers = new ConsumingRenderer[4];
+    final AssertionError[] errors = new AssertionError[renderers.length];
+    Thread[] threads = new Thread[renderers.length];
+    for (int i = 0; i < threads.length; ++i) {
+      final int index = i;
+      renderers[i] = new ConsumingRenderer();
+      threads[i] = new Thread() {
+          public void run() {
+            try {
+              source.play(renderers[index], 0, loops);
+            } catch (AssertionError e) {
+              errors[index] = e;
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i].join();
+      if (errors[i] != null) {
+        throw errors[i];
+      }
+      assertEquals(loops * FRAMES, renderers[i].frames);
+    }
+  }
+
+  // Reads every plane with relative get()s and then puts its position back,
+  // as a renderer copying the planes out might, checking each holds the bytes
+  // of the expected frame.
+  private static class ConsumingRenderer implements VideoRenderer.Callbacks {
+    public int frames = 0;
+
+    public void setSize(int width, int height) {
+      assertEquals(WIDTH, width);
+      assertEquals(HEIGHT, height);
+    }
+
+    public void renderFrame(I420Frame frame) {
+      byte expected = (byte) (frames % FRAMES + 1);
+      int[] sizes = { WIDTH * HEIGHT, WIDTH * HEIGHT / 4, WIDTH * HEIGHT / 4 };
+      for (int i = 0; i < 3; ++i) {
+        ByteBuffer plane = frame.yuvPlanes[i];
+        int position = plane.position();
+        int count = 0;
+        while (plane.hasRemaining()) {
+          assertEquals(expected, plane.get());
+          ++count;
+        }
+        plane.position(position);
+        assertEquals("frame " + frames + " plane " + i, sizes[i], count);
+      }
+      ++frames;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+public class FramePoolTest {
+  // android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL.
+  private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+  private static final int MAX_FRAMES = 4;
+
+  private static final I420Frame VGA = prototype(640, 480);
+  private static final I420Frame QVGA = prototype(320, 240);
+  private static final long VGA_BYTES = 640 * 480 * 3 / 2;
+  private static final long QVGA_BYTES = 320 * 240 * 3 / 2;
+
+  @Test
+  public void uncarvedSlabFramesCountAsPooled() {
+    FramePool pool = new FramePool(MAX_FRAMES, 100 * VGA_BYTES);
+    I420Frame frame = pool.takeFrame(VGA);
+    assertEquals((MAX_FRAMES - 1) * VGA_BYTES, pool.getPooledBytes());
+    pool.returnFrame(frame);
+    assertEquals(MAX_FRAMES * VGA_BYTES, pool.getPooledBytes());
+  }
+
+  @Test
+  public void overflowFramesAreNotPooled() {
+    FramePool pool = new FramePool(MAX_FRAMES, 100 * VGA_BYTES);
+    List<I420Frame> frames = new ArrayList<I420Frame>();
+    for (int i = 0; i < MAX_FRAMES + 2; ++i) {
+      frames.add(pool.takeFrame(VGA));
+      assertNotNull(frames.get(i));
+    }
+    assertEquals(0, pool.getPooledBytes());
+    for (I420Frame frame : frames) {
+      pool.returnFrame(frame);
+    }
+    // The bucket keeps MAX_FRAMES; the rest are left to the GC.
+    assertEquals(MAX_FRAMES * VGA_BYTES, pool.getPooledBytes());
+  }
+
+  @Test
+  public void trimReleasesUncarvedSlabFrames() {
+    FramePool pool = new FramePool(MAX_FRAMES, 100 * VGA_BYTES);
+    pool.takeFrame(VGA);
+    pool.trim(TRIM_MEMORY_RUNNING_CRITICAL);
+    assertEquals(0, pool.getPooledBytes());
+    // The evicted bucket is replaced on next use.
+    pool.takeFrame(VGA);
+    assertEquals((MAX_FRAMES - 1) * VGA_BYTES, pool.getPooledBytes());
+  }
+
+  @Test
+  public void slabsStayWithinBudget() {
+    // Room for two VGA frames: the slab shrinks to fit.
+    FramePool pool = new FramePool(MAX_FRAMES, 2 * VGA_BYTES);
+    I420Frame frame = pool.takeFrame(VGA);
+    assertEquals(VGA_BYTES, pool.getPooledBytes());
+    pool.returnFrame(frame);
+    assertEquals(2 * VGA_BYTES, pool.getPooledBytes());
+    // A new size's slab evicts the least recently used bucket.
+    pool.takeFrame(QVGA);
+    assertTrue(pool.getPooledBytes() <= 2 * VGA_BYTES);
+    assertEquals((MAX_FRAMES - 1) * QVGA_BYTES, pool.getPooledBytes());
+  }
+
+  @Test
+  public void planelessPrototypeGetsAFrameWithPlanes() {
+    FramePool pool = new FramePool(MAX_FRAMES, 100 * VGA_BYTES);
+    I420Frame prototype = FrameDownscaler.scaledPrototype(VGA, 1);
+    assertNull(prototype.yuvPlanes[0]);
+    I420Frame frame = pool.takeFrame(prototype);
+    assertEquals(320, frame.width);
+    assertEquals(QVGA_BYTES, frame.yuvPlanes[0].capacity() +
+        frame.yuvPlanes[1].capacity() + frame.yuvPlanes[2].capacity());
+  }
+
+  @Test
+  public void returnToFullBucketEvictsNothing() {
+    FramePool pool =
+        new FramePool(MAX_FRAMES, MAX_FRAMES * (VGA_BYTES + QVGA_BYTES));
+    pool.returnFrame(pool.takeFrame(QVGA));
+    List<I420Frame> frames = new ArrayList<I420Frame>();
+    for (int i = 0; i < MAX_FRAMES + 1; ++i) {
+      frames.add(pool.takeFrame(VGA));
+    }
+    for (I420Frame frame : frames) {
+      pool.returnFrame(frame);
+    }
+    // The surplus VGA frame is dropped without costing the QVGA bucket.
+    assertEquals(2, pool.getBucketStats().size());
+    assertEquals(MAX_FRAMES * (VGA_BYTES + QVGA_BYTES), pool.getPooledBytes());
+  }
+
+  @Test
+  public void concurrentFirstTakesShareOneSlab() throws Exception {
+    final int threads = MAX_FRAMES - 1;
+    for (int round = 0; round < 200; ++round) {
+      final FramePool pool = new FramePool(MAX_FRAMES, 100 * VGA_BYTES);
+      final CyclicBarrier start = new CyclicBarrier(threads);
+      Thread[] takers = new Thread[threads];
+      for (int i = 0; i < threads; ++i) {
+        takers[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+            pool.takeFrame(VGA);
+          }
+        };
+        takers[i].start();
+      }
+      for (Thread taker : takers) {
+        taker.join();
+      }
+      assertEquals((MAX_FRAMES - threads) * VGA_BYTES, pool.getPooledBytes());
+      // The last slab frame is still carved from the shared slab...
+      pool.takeFrame(VGA);
+      assertEquals(0, pool.getPooledBytes());
+      // ...and eviction accounts for every frame the slab had left.
+      pool.takeFrame(QVGA);
+      pool.trim(TRIM_MEMORY_RUNNING_CRITICAL);
+      assertEquals(0, pool.getPooledBytes());
+    }
+  }
+
+  @Test
+  public void bucketStatsAddUpToPooledBytes() {
+    FramePool pool = new FramePool(MAX_FRAMES, 100 * VGA_BYTES);
+    pool.returnFrame(pool.takeFrame(VGA));
+    pool.takeFrame(QVGA);
+    long total = 0;
+    for (FramePool.BucketStats stats : pool.getBucketStats()) {
+      total += stats.idleBytes + stats.slabBytes;
+    }
+    assertEquals(pool.getPooledBytes(), total);
+    assertEquals((MAX_FRAMES - 1) * QVGA_BYTES,
+        pool.getBucketStats().get(0).slabBytes);
+  }
+
+  private static I420Frame prototype(int width, int height) {
+    return new I420Frame(width, height,
+        new int[] { width, width / 2, width / 2 }, null);
+  }
+}
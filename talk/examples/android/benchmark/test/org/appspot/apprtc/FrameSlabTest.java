@@ -0,0 +1,116 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+
+public class FrameSlabTest {
+  private static final int FRAMES = 3;
+
+  @Test
+  public void planesAreSizedAlignedAndDisjoint() {
+    // Odd, unpadded strides, so that unaligned plane ends are the norm.
+    checkSlab(318, 238, new int[] { 318, 159, 159 });
+    // Padded strides, as some decoders deliver.
+    checkSlab(640, 480, new int[] { 672, 336, 336 });
+  }
+
+  @Test
+  public void carvesCapacityFramesThenNull() {
+    FrameSlab slab = new FrameSlab(64, 48, new int[] { 64, 32, 32 }, FRAMES);
+    for (int i = 0; i < FRAMES; ++i) {
+      assertNotNull(slab.carveFrame());
+    }
+    assertNull(slab.carveFrame());
+    assertNull(slab.carveFrame());
+    assertEquals(0, slab.retire());
+  }
+
+  @Test
+  public void retireReturnsUncarvedFrames() {
+    FrameSlab slab = new FrameSlab(64, 48, new int[] { 64, 32, 32 }, FRAMES);
+    slab.carveFrame();
+    assertEquals(FRAMES - 1, slab.retire());
+    assertNull(slab.carveFrame());
+    assertEquals(0, slab.retire());
+  }
+
+  private static void checkSlab(int width, int height, int[] strides) {
+    FrameSlab slab = new FrameSlab(width, height, strides, FRAMES);
+    I420Frame[] frames = new I420Frame[FRAMES];
+    int regionAlignment = -1;
+    for (int f = 0; f < FRAMES; ++f) {
+      frames[f] = slab.carveFrame();
+      assertEquals(width, frames[f].width);
+      assertEquals(height, frames[f].height);
+      for (int i = 0; i < 3; ++i) {
+        ByteBuffer plane = frames[f].yuvPlanes[i];
+        assertEquals(strides[i] * (i == 0 ? height : height / 2),
+            plane.capacity());
+        // allocateDirect() only guarantees the region's own alignment, so
+        // every plane must sit at the same offset modulo PLANE_ALIGNMENT as
+        // the first one, which starts the region.
+        int alignment = plane.alignmentOffset(0, FrameSlab.PLANE_ALIGNMENT);
+        if (regionAlignment == -1) {
+          regionAlignment = alignment;
+        }
+        assertEquals("frame " + f + " plane " + i, regionAlignment,
+            alignment);
+        fill(plane, tag(f, i));
+      }
+    }
+    // Had any two planes overlapped, the later fill would show in the
+    // earlier plane.
+    for (int f = 0; f < FRAMES; ++f) {
+      for (int i = 0; i < 3; ++i) {
+        ByteBuffer plane = frames[f].yuvPlanes[i];
+        for (int j = 0; j < plane.capacity(); ++j) {
+          assertEquals("frame " + f + " plane " + i + " byte " + j,
+              tag(f, i), plane.get(j));
+        }
+      }
+    }
+  }
+
+  private static byte tag(int frame, int plane) {
+    return (byte) (1 + frame * 3 + plane);
+  }
+
+  private static void fill(ByteBuffer plane, byte value) {
+    for (int j = 0; j < plane.capacity(); ++j) {
+      plane.put(j, value);
+    }
+  }
+}
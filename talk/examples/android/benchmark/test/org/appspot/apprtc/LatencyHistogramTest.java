@@ -0,0 +1,132 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void smallValuesAreExact() {
+    for (long value = 0; value < 32; ++value) {
+      assertEquals(value, roundTrip(value));
+    }
+  }
+
+  @Test
+  public void largeValuesRoundDownToBucketBoundaries() {
+    // Above 32, buckets double in width with each power of two.
+    assertEquals(32, roundTrip(32));
+    assertEquals(32, roundTrip(33));
+    assertEquals(34, roundTrip(34));
+    assertEquals(62, roundTrip(63));
+    assertEquals(64, roundTrip(64));
+    assertEquals(64, roundTrip(67));
+    assertEquals(68, roundTrip(68));
+    assertEquals(992, roundTrip(1000));
+    assertEquals(1024, roundTrip(1024));
+    assertEquals(1024, roundTrip(1087));
+    assertEquals(1088, roundTrip(1088));
+  }
+
+  @Test
+  public void everyValueIsWithinTheStatedError() {
+    for (long value = 1; value < 1 << 20; value += value / 7 + 1) {
+      long rounded = roundTrip(value);
+      assertTrue(value + " -> " + rounded,
+          rounded <= value && rounded >= value - value / 16);
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    for (long value = 1; value <= 1000; ++value) {
+      histogram.record(value);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1000, snapshot.getCount());
+    assertWithinError(1, snapshot.getValueAtPercentile(0));
+    assertWithinError(500, snapshot.getValueAtPercentile(50));
+    assertWithinError(900, snapshot.getValueAtPercentile(90));
+    assertWithinError(990, snapshot.getValueAtPercentile(99));
+    assertWithinError(1000, snapshot.getValueAtPercentile(100));
+    assertWithinError(1000, snapshot.getMax());
+    double mean = snapshot.getMean();
+    assertTrue("mean " + mean, mean <= 500.5 && mean >= 500.5 * 15 / 16);
+  }
+
+  @Test
+  public void valuesAreClamped() {
+    histogram.record(-5);
+    histogram.record(LatencyHistogram.MAX_VALUE_US + 1);
+    histogram.record(Long.MAX_VALUE);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(3, snapshot.getCount());
+    assertEquals(0, snapshot.getValueAtPercentile(0));
+    assertWithinError(LatencyHistogram.MAX_VALUE_US, snapshot.getMax());
+    assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void emptySnapshot() {
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getValueAtPercentile(50));
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0, snapshot.getMean(), 0);
+  }
+
+  @Test
+  public void snapshotsAndResetAreIndependent() {
+    histogram.recordNanos(20999);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    histogram.reset();
+    histogram.record(5);
+    assertEquals(1, snapshot.getCount());
+    // Nanoseconds are truncated to whole microseconds.
+    assertEquals(20, snapshot.getMax());
+    assertEquals(5, histogram.snapshot().getMax());
+  }
+
+  // Record |value| into a fresh histogram and return what it reports.
+  private static long roundTrip(long value) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(value);
+    return histogram.snapshot().getMax();
+  }
+
+  // Check |actual| is |expected| rounded down by no more than ~6%.
+  private static void assertWithinError(long expected, long actual) {
+    assertTrue(expected + " vs. " + actual,
+        actual <= expected && actual >= expected - expected / 16);
+  }
+}
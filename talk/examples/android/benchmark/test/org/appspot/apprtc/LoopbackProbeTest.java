@@ -0,0 +1,126 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+
+public class LoopbackProbeTest {
+  private static final int FRAMES = 60;
+  private static final long FRAME_INTERVAL_NS = 33333333;
+  private static final long LATENCY_NS = 100000000;
+
+  private final FakeClock clock = new FakeClock();
+  private final LoopbackProbe probe = new LoopbackProbe(clock);
+
+  @Test
+  public void changingSceneMatchesAtTheRightLatency() {
+    // Sent at VGA, received downscaled to QVGA with some coding noise, each
+    // frame LATENCY_NS after it was sent.
+    runCall(640, 480, 320, 240, false);
+    LatencyHistogram.Snapshot latencies = probe.getLatencySnapshot();
+    // Only the first few frames, before there are enough non-adjacent sent
+    // frames to rule out, go unmatched.
+    assertTrue("matched " + latencies.getCount(),
+        latencies.getCount() >= FRAMES - 4);
+    // Matching a neighbouring frame would be a whole frame interval off.
+    long latencyUs = LATENCY_NS / 1000;
+    assertEquals(latencies.getValueAtPercentile(0), latencies.getMax());
+    assertTrue(latencies.getMax() <= latencyUs);
+    assertTrue(latencies.getMax() >= latencyUs * 15 / 16);
+  }
+
+  @Test
+  public void stillSceneRecordsNothing() {
+    runCall(640, 480, 320, 240, true);
+    assertEquals(0, probe.getLatencySnapshot().getCount());
+  }
+
+  // Send FRAMES frames one FRAME_INTERVAL_NS apart, and receive each
+  // LATENCY_NS after it was sent, interleaved as a real call would.
+  private void runCall(int sentWidth, int sentHeight, int receivedWidth,
+      int receivedHeight, boolean still) {
+    I420Frame sent = frame(sentWidth, sentHeight);
+    I420Frame received = frame(receivedWidth, receivedHeight);
+    int nextReceived = 0;
+    for (int n = 0; n < FRAMES; ++n) {
+      long sentNs = n * FRAME_INTERVAL_NS;
+      while (nextReceived < n &&
+          nextReceived * FRAME_INTERVAL_NS + LATENCY_NS <= sentNs) {
+        clock.nowNs = nextReceived * FRAME_INTERVAL_NS + LATENCY_NS;
+        paint(received, still ? 0 : nextReceived, true);
+        probe.received.renderFrame(received);
+        ++nextReceived;
+      }
+      clock.nowNs = sentNs;
+      paint(sent, still ? 0 : n, false);
+      probe.sent.renderFrame(sent);
+    }
+    for (; nextReceived < FRAMES; ++nextReceived) {
+      clock.nowNs = nextReceived * FRAME_INTERVAL_NS + LATENCY_NS;
+      paint(received, still ? 0 : nextReceived, true);
+      probe.received.renderFrame(received);
+    }
+  }
+
+  // Fill |frame|'s luma with scene |n|: a 4x4 grid of blocks whose levels
+  // change from one scene to the next, optionally with +/-2 of noise.
+  private static void paint(I420Frame frame, int n, boolean noisy) {
+    ByteBuffer y = frame.yuvPlanes[0];
+    for (int row = 0; row < frame.height; ++row) {
+      int cellRow = row * 4 / frame.height;
+      for (int column = 0; column < frame.width; ++column) {
+        int cell = cellRow * 4 + column * 4 / frame.width;
+        int hash = (n * 16 + cell) * 0x9e3779b9;
+        int level = 16 + ((hash ^ (hash >>> 16)) & 0x7fffffff) % 220;
+        if (noisy) {
+          level += (row + column) % 5 - 2;
+        }
+        y.put(row * frame.yuvStrides[0] + column, (byte) level);
+      }
+    }
+  }
+
+  private static I420Frame frame(int width, int height) {
+    return new I420Frame(width, height,
+        new int[] { width, width / 2, width / 2 }, null);
+  }
+
+  private static class FakeClock implements LoopbackProbe.Clock {
+    public long nowNs = 0;
+
+    public long nowNs() {
+      return nowNs;
+    }
+  }
+}
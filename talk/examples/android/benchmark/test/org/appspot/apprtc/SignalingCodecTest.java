@@ -0,0 +1,76 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+public class SignalingCodecTest {
+  private final SignalingCodec codec = new SignalingCodec();
+
+  @Test
+  public void decodesEncodedCandidate() throws JSONException {
+    SignalingCodec.Message message = codec.decode(
+        codec.encodeCandidate("video", 1, "a=candidate:1 1 udp 1 \"x\""));
+    assertEquals(SignalingCodec.Type.CANDIDATE, message.type);
+    assertEquals("video", message.sdpMid);
+    assertEquals(1, message.sdpMLineIndex);
+    assertEquals("a=candidate:1 1 udp 1 \"x\"", message.candidate);
+  }
+
+  @Test
+  public void acceptsQuotedLabel() throws JSONException {
+    SignalingCodec.Message message = codec.decode(
+        "{\"type\": \"candidate\", \"label\": \"2\", \"id\": \"data\"," +
+        " \"candidate\": \"c\"}");
+    assertEquals(SignalingCodec.Type.CANDIDATE, message.type);
+    assertEquals(2, message.sdpMLineIndex);
+  }
+
+  @Test
+  public void rejectsNonNumericLabel() {
+    expectJSONException("{\"type\":\"candidate\",\"label\":\"two\"," +
+        "\"id\":\"audio\",\"candidate\":\"c\"}");
+    expectJSONException("{\"type\":\"candidate\",\"label\":\"\"," +
+        "\"id\":\"audio\",\"candidate\":\"c\"}");
+    expectJSONException("{\"type\":\"candidate\",\"label\":true," +
+        "\"id\":\"audio\",\"candidate\":\"c\"}");
+  }
+
+  private void expectJSONException(String data) {
+    try {
+      codec.decode(data);
+      fail("Decoded " + data);
+    } catch (JSONException e) {
+      // Expected.
+    }
+  }
+}
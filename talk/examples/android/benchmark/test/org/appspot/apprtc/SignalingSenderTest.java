@@ -0,0 +1,207 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SignalingSenderTest {
+  private static final long TIMEOUT_MS = 10000;
+
+  private HttpServer server;
+  private URL url;
+  // Bodies of every POST received, in order.
+  private final List<String> posted =
+      Collections.synchronizedList(new ArrayList<String>());
+  // Status to answer the next POST of a given body with, once; 200 otherwise.
+  private final List<String> failBodies =
+      Collections.synchronizedList(new ArrayList<String>());
+  private final List<Integer> failCodes =
+      Collections.synchronizedList(new ArrayList<Integer>());
+  // Messages the sender gave up on.
+  private final List<String> failed =
+      Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          String body = readFully(exchange.getRequestBody());
+          posted.add(body);
+          int code = 200;
+          synchronized (failBodies) {
+            int i = failBodies.indexOf(body);
+            if (i != -1) {
+              failBodies.remove(i);
+              code = failCodes.remove(i);
+            }
+          }
+          exchange.sendResponseHeaders(code, -1);
+          exchange.close();
+        }
+      });
+    server.start();
+    url = new URL("http://" + server.getAddress().getHostString() + ":" +
+        server.getAddress().getPort() + "/");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void clientErrorsAreDroppedNotRetried() throws Exception {
+    failOnce("bad", 400);
+    failOnce("gone", 404);
+    SignalingSender sender = startSender();
+    send(sender, "a", "bad", "b", "gone", "c");
+    close(sender);
+    assertEquals(Arrays.asList("a", "bad", "b", "gone", "c"), posted);
+    assertEquals(Arrays.asList("bad", "gone"), failed);
+  }
+
+  @Test
+  public void serverErrorsAreRetried() throws Exception {
+    failOnce("a", 503);
+    failOnce("b", 500);
+    SignalingSender sender = startSender();
+    send(sender, "a", "b");
+    close(sender);
+    assertEquals(Arrays.asList("a", "a", "b", "b"), posted);
+    assertTrue(failed.isEmpty());
+  }
+
+  @Test
+  public void sendAfterCloseIsIgnored() throws Exception {
+    SignalingSender sender = startSender();
+    send(sender, "a");
+    close(sender);
+    sender.send("b");
+    assertEquals(Arrays.asList("a"), posted);
+  }
+
+  @Test
+  public void racingSendsNeverPostCloseNorKeepTheThreadAlive()
+      throws Exception {
+    for (int round = 0; round < 20; ++round) {
+      final SignalingSender sender = startSender();
+      Thread[] senders = new Thread[4];
+      for (int i = 0; i < senders.length; ++i) {
+        senders[i] = new Thread() {
+            public void run() {
+              for (int j = 0; j < 50; ++j) {
+                sender.send("m");
+              }
+            }
+          };
+        senders[i].start();
+      }
+      sender.close();
+      for (Thread thread : senders) {
+        thread.join();
+      }
+      awaitSenderThreads();
+    }
+    assertFalse(posted.contains("CLOSE"));
+  }
+
+  private SignalingSender startSender() {
+    SignalingSender sender = new SignalingSender(
+        new SignalingSender.ErrorHandler() {
+          public void onSendFailed(String message, IOException e) {
+            failed.add(message);
+          }
+        });
+    sender.setTransport(new SignalingTransport(url, 1));
+    return sender;
+  }
+
+  private void failOnce(String body, int code) {
+    synchronized (failBodies) {
+      failBodies.add(body);
+      failCodes.add(code);
+    }
+  }
+
+  private static void send(SignalingSender sender, String... messages) {
+    for (String message : messages) {
+      sender.send(message);
+    }
+  }
+
+  // Close |sender| and wait for it to finish delivering.
+  private static void close(SignalingSender sender)
+      throws InterruptedException {
+    sender.close();
+    awaitSenderThreads();
+  }
+
+  // Wait for every sender thread to exit, as each must once closed.
+  private static void awaitSenderThreads() throws InterruptedException {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals("SignalingSender")) {
+        thread.join(TIMEOUT_MS);
+        assertFalse("Sender thread didn't exit", thread.isAlive());
+      }
+    }
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+}
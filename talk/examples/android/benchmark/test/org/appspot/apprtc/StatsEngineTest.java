@@ -0,0 +1,173 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.appspot.apprtc.StatsEngine.Metric;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class StatsEngineTest {
+  private static final String SEND = "ssrc_1708297387_send";
+  private static final String RECV = "ssrc_3473624983_recv";
+  private static final double EPSILON = 1e-9;
+
+  private final StatsEngine engine = new StatsEngine(10);
+
+  @Test
+  public void bitrateComesFromByteDeltas() {
+    engine.update(reports(report(SEND, 1000, "bytesSent", 0)));
+    engine.update(reports(report(SEND, 2000, "bytesSent", 125000)));
+    engine.update(reports(report(SEND, 2500, "bytesSent", 150000)));
+    StatsEngine.Series series = engine.getSeries(0);
+    assertTrue(series.isSend());
+    assertEquals(3, series.size());
+    // Nothing to difference the first report against.
+    assertTrue(Double.isNaN(series.get(Metric.BITRATE_BPS, 0)));
+    assertEquals(1000000, series.get(Metric.BITRATE_BPS, 1), EPSILON);
+    assertEquals(400000, series.get(Metric.BITRATE_BPS, 2), EPSILON);
+  }
+
+  @Test
+  public void sendLossIsOfPacketsSent() {
+    engine.update(reports(report(SEND, 1000,
+        "packetsSent", 100, "packetsLost", 5)));
+    engine.update(reports(report(SEND, 2000,
+        "packetsSent", 200, "packetsLost", 15)));
+    assertEquals(10.0, engine.getSeries(0).getLatest(
+        Metric.PACKET_LOSS_PERCENT), EPSILON);
+  }
+
+  @Test
+  public void receiveLossIsOfPacketsExpected() {
+    engine.update(reports(report(RECV, 1000,
+        "packetsReceived", 100, "packetsLost", 5)));
+    engine.update(reports(report(RECV, 2000,
+        "packetsReceived", 190, "packetsLost", 15)));
+    StatsEngine.Series series = engine.getSeries(0);
+    assertFalse(series.isSend());
+    // 90 arrived and 10 didn't, out of 100 expected.
+    assertEquals(10.0, series.getLatest(Metric.PACKET_LOSS_PERCENT), EPSILON);
+  }
+
+  @Test
+  public void counterResetSkipsOneSample() {
+    engine.update(reports(report(SEND, 1000,
+        "bytesSent", 100000, "packetsSent", 100, "packetsLost", 5)));
+    engine.update(reports(report(SEND, 2000,
+        "bytesSent", 50, "packetsSent", 1, "packetsLost", 0)));
+    engine.update(reports(report(SEND, 3000,
+        "bytesSent", 1050, "packetsSent", 11, "packetsLost", 1)));
+    StatsEngine.Series series = engine.getSeries(0);
+    assertTrue(Double.isNaN(series.get(Metric.BITRATE_BPS, 1)));
+    assertTrue(Double.isNaN(series.get(Metric.PACKET_LOSS_PERCENT, 1)));
+    assertEquals(8000, series.get(Metric.BITRATE_BPS, 2), EPSILON);
+    assertEquals(10.0, series.get(Metric.PACKET_LOSS_PERCENT, 2), EPSILON);
+  }
+
+  @Test
+  public void repeatedTimestampIsSkipped() {
+    engine.update(reports(report(SEND, 1000, "bytesSent", 0)));
+    engine.update(reports(report(SEND, 2000, "bytesSent", 1000)));
+    engine.update(reports(report(SEND, 2000, "bytesSent", 1000)));
+    engine.update(reports(report(SEND, 1500, "bytesSent", 1000)));
+    StatsEngine.Series series = engine.getSeries(0);
+    assertEquals(2, series.size());
+    engine.update(reports(report(SEND, 3000, "bytesSent", 2000)));
+    // Still differenced against the report at 2000.
+    assertEquals(8000, series.getLatest(Metric.BITRATE_BPS), EPSILON);
+  }
+
+  @Test
+  public void levelsAndOtherReportTypes() {
+    engine.update(reports(
+        report(RECV, 1000, "googJitterReceived", 12,
+            "googFrameRateReceived", 30, "googFrameRateDecoded", 29),
+        new StatsReport("bweforvideo", "VideoBwe", 1000,
+            new StatsReport.Value[] {
+              new StatsReport.Value("googAvailableSendBandwidth", "300000") }),
+        new StatsReport("googLibjingleSession_1", "googLibjingleSession",
+            1000, new StatsReport.Value[] {
+              new StatsReport.Value("googInitiator", "true") })));
+    assertEquals(2, engine.getSeriesCount());
+    StatsEngine.Series recv = engine.getSeries(0);
+    assertEquals(12, recv.getLatest(Metric.JITTER_MS), EPSILON);
+    // The decoded frame rate wins over the received one.
+    assertEquals(29, recv.getLatest(Metric.FRAME_RATE), EPSILON);
+    assertTrue(Double.isNaN(recv.getLatest(Metric.RTT_MS)));
+    assertEquals("bweforvideo", engine.getSeries(1).getId());
+    assertEquals(300000,
+        engine.getSeries(1).getLatest(Metric.AVAILABLE_SEND_BPS), EPSILON);
+  }
+
+  @Test
+  public void ringKeepsTheNewestSamples() {
+    StatsEngine small = new StatsEngine(3);
+    for (int i = 1; i <= 5; ++i) {
+      small.update(reports(report(SEND, i * 1000, "googRtt", i)));
+    }
+    StatsEngine.Series series = small.getSeries(0);
+    assertEquals(3, series.size());
+    assertEquals(3000, series.getTimestampMs(0));
+    assertEquals(5, series.getLatest(Metric.RTT_MS), EPSILON);
+
+    long[] timestamps = new long[5];
+    double[] values = new double[5];
+    assertEquals(3, series.copyTo(Metric.RTT_MS, timestamps, values));
+    for (int i = 0; i < 3; ++i) {
+      assertEquals((i + 3) * 1000, timestamps[i]);
+      assertEquals(i + 3, values[i], EPSILON);
+    }
+
+    timestamps = new long[2];
+    values = new double[2];
+    assertEquals(2, series.copyTo(Metric.RTT_MS, timestamps, values));
+    assertEquals(4000, timestamps[0]);
+    assertEquals(5000, timestamps[1]);
+    assertEquals(5, values[1], EPSILON);
+  }
+
+  private static StatsReport[] reports(StatsReport... reports) {
+    return reports;
+  }
+
+  // An "ssrc" report whose values are the given name, number pairs.
+  private static StatsReport report(
+      String id, long timestampMs, Object... namesAndValues) {
+    StatsReport.Value[] values =
+        new StatsReport.Value[namesAndValues.length / 2];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = new StatsReport.Value((String) namesAndValues[2 * i],
+          String.valueOf(namesAndValues[2 * i + 1]));
+    }
+    return new StatsReport(id, "ssrc", timestampMs, values);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.appspot.apprtc.TileLayout.Mode;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TileLayoutTest {
+  private static final float EPSILON = 1e-6f;
+
+  private final int[] tileStreams = new int[TileLayout.MAX_TILES];
+  private final float[] vertices =
+      new float[TileLayout.MAX_TILES * TileLayout.FLOATS_PER_TILE];
+
+  @Test
+  public void noStreamsNoTiles() {
+    for (Mode mode : Mode.values()) {
+      assertEquals(0, TileLayout.layout(mode, 0, 0, tileStreams, vertices));
+    }
+  }
+
+  @Test
+  public void singleStreamFillsTheScreen() {
+    for (Mode mode : Mode.values()) {
+      assertEquals(1, TileLayout.layout(mode, 1, 0, tileStreams, vertices));
+      assertEquals(0, tileStreams[0]);
+      assertTile(0, -1, 1, 1, -1);
+    }
+  }
+
+  @Test
+  public void gridIsNearSquare() {
+    assertEquals(4, TileLayout.layout(Mode.GRID, 4, 0, tileStreams, vertices));
+    assertStreams(4, 0, 1, 2, 3);
+    assertTile(0, -1, 1, 0, 0);
+    assertTile(1, 0, 1, 1, 0);
+    assertTile(3, 0, 0, 1, -1);
+
+    // Three columns, the second row partly filled.
+    assertEquals(5, TileLayout.layout(Mode.GRID, 5, 3, tileStreams, vertices));
+    assertStreams(5, 0, 1, 2, 3, 4);
+    assertTile(2, 1f / 3, 1, 1, 0);
+    assertTile(4, -1f / 3, 0, 1f / 3, -1);
+  }
+
+  @Test
+  public void gridStopsAtMaxTiles() {
+    assertEquals(TileLayout.MAX_TILES,
+        TileLayout.layout(Mode.GRID, 12, 0, tileStreams, vertices));
+    assertStreams(TileLayout.MAX_TILES, 0, 1, 2, 3, 4, 5, 6, 7, 8);
+    assertTile(8, 1f / 3, -1f / 3, 1, -1);
+  }
+
+  @Test
+  public void speakerPutsTheFocusAboveAStrip() {
+    assertEquals(3,
+        TileLayout.layout(Mode.SPEAKER, 3, 1, tileStreams, vertices));
+    assertStreams(3, 1, 0, 2);
+    assertTile(0, -1, 1, 1, -0.5f);
+    assertTile(1, -1, -0.5f, 0, -1);
+    assertTile(2, 0, -0.5f, 1, -1);
+  }
+
+  @Test
+  public void speakerStripStopsAtFourTiles() {
+    assertEquals(5,
+        TileLayout.layout(Mode.SPEAKER, 12, 2, tileStreams, vertices));
+    assertStreams(5, 2, 0, 1, 3, 4);
+    assertTile(4, 0.5f, -0.5f, 1, -1);
+  }
+
+  @Test
+  public void pictureInPictureStacksThumbnails() {
+    assertEquals(3, TileLayout.layout(
+        Mode.PICTURE_IN_PICTURE, 3, 2, tileStreams, vertices));
+    assertStreams(3, 2, 0, 1);
+    assertTile(0, -1, 1, 1, -1);
+    assertTile(1, 0.6f, 0.9f, 0.9f, 0.6f);
+    assertTile(2, 0.6f, 0.55f, 0.9f, 0.25f);
+
+    assertEquals(5, TileLayout.layout(
+        Mode.PICTURE_IN_PICTURE, 12, 0, tileStreams, vertices));
+    assertStreams(5, 0, 1, 2, 3, 4);
+  }
+
+  @Test
+  public void badFocusFallsBackToTheFirstStream() {
+    TileLayout.layout(Mode.SPEAKER, 3, 7, tileStreams, vertices);
+    assertStreams(3, 0, 1, 2);
+    TileLayout.layout(Mode.PICTURE_IN_PICTURE, 3, -1, tileStreams, vertices);
+    assertStreams(3, 0, 1, 2);
+  }
+
+  private void assertStreams(int numTiles, int... streams) {
+    assertArrayEquals(streams, Arrays.copyOf(tileStreams, numTiles));
+  }
+
+  // Check |tile|'s quad is the given rectangle, in triangle strip order.
+  private void assertTile(
+      int tile, float left, float top, float right, float bottom) {
+    float[] expected =
+        { left, top, left, bottom, right, top, right, bottom };
+    float[] actual = Arrays.copyOfRange(vertices,
+        tile * TileLayout.FLOATS_PER_TILE,
+        (tile + 1) * TileLayout.FLOATS_PER_TILE);
+    assertArrayEquals("tile " + tile, expected, actual, EPSILON);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TtlCacheTest {
+  private static final long TTL_MS = 1000;
+
+  private final FakeClock clock = new FakeClock();
+  private final TtlCache<String, String> cache =
+      new TtlCache<String, String>(TTL_MS, clock);
+
+  @Test
+  public void entriesExpireAfterTheirTtl() {
+    cache.put("room", "a");
+    clock.nowMs += TTL_MS - 1;
+    assertEquals("a", cache.get("room"));
+    clock.nowMs += 1;
+    assertNull(cache.get("room"));
+  }
+
+  @Test
+  public void explicitTtlOverridesTheDefault() {
+    cache.put("room", "a", 10 * TTL_MS);
+    clock.nowMs += 5 * TTL_MS;
+    assertEquals("a", cache.get("room"));
+    clock.nowMs += 5 * TTL_MS;
+    assertNull(cache.get("room"));
+  }
+
+  @Test
+  public void putRestartsTheTtl() {
+    cache.put("room", "a");
+    clock.nowMs += TTL_MS / 2;
+    cache.put("room", "b");
+    clock.nowMs += TTL_MS / 2;
+    assertEquals("b", cache.get("room"));
+  }
+
+  @Test
+  public void nonPositiveTtlRemovesTheEntry() {
+    cache.put("room", "a");
+    cache.put("room", "b", 0);
+    assertNull(cache.get("room"));
+    cache.put("room", "a");
+    cache.put("room", "b", -1);
+    assertNull(cache.get("room"));
+  }
+
+  @Test
+  public void invalidateForgetsOnlyItsKey() {
+    cache.put("room", "a");
+    cache.put("other", "b");
+    cache.invalidate("room");
+    assertNull(cache.get("room"));
+    assertEquals("b", cache.get("other"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveDefaultTtl() {
+    new TtlCache<String, String>(0, clock);
+  }
+
+  private static class FakeClock implements TtlCache.Clock {
+    public long nowMs = 12345;
+
+    public long nowMs() {
+      return nowMs;
+    }
+  }
+}
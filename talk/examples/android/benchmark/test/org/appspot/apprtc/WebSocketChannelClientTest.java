@@ -0,0 +1,306 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs WebSocketChannelClient against a minimal in-process server that plays
+ * the server's side of each exchange and checks what the client sends.
+ */
+public class WebSocketChannelClientTest {
+  private static final long TIMEOUT_MS = 10000;
+  private static final String HANDSHAKE_GUID =
+      "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  private ServerSocket serverSocket;
+  private Socket server;
+  private DataInputStream in;
+  private OutputStream out;
+  private WebSocketChannelClient client;
+  // Handler callbacks, as "open", "message:<data>", "close" or
+  // "error:<code>".
+  private final BlockingQueue<String> events =
+      new LinkedBlockingQueue<String>();
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    serverSocket.setSoTimeout((int) TIMEOUT_MS);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (client != null) {
+      client.close();
+    }
+    if (server != null) {
+      server.close();
+    }
+    serverSocket.close();
+  }
+
+  @Test
+  public void handshakeSendsAValidRequest() throws Exception {
+    connect("/ws?token=abc");
+    String[] request = readRequest();
+    assertEquals("GET /ws?token=abc HTTP/1.1", request[0]);
+    assertEquals("127.0.0.1:" + serverSocket.getLocalPort(),
+        header(request, "Host"));
+    assertEquals("websocket", header(request, "Upgrade"));
+    assertEquals("Upgrade", header(request, "Connection"));
+    assertEquals("13", header(request, "Sec-WebSocket-Version"));
+    assertEquals(16,
+        Base64.getDecoder().decode(header(request, "Sec-WebSocket-Key"))
+            .length);
+    accept(request);
+    assertEquals("open", nextEvent());
+  }
+
+  @Test
+  public void deliversTextMessages() throws Exception {
+    open();
+    writeFrame(true, 0x1, "hello".getBytes("UTF-8"));
+    // Fragmented, with a ping between the fragments.
+    writeFrame(false, 0x1, "frag".getBytes("UTF-8"));
+    writeFrame(true, 0x9, new byte[0]);
+    writeFrame(true, 0x0, "ment".getBytes("UTF-8"));
+    // Long enough for a 16-bit length.
+    char[] sdp = new char[300];
+    Arrays.fill(sdp, 'v');
+    writeFrame(true, 0x1, new String(sdp).getBytes("UTF-8"));
+    assertEquals("message:hello", nextEvent());
+    assertEquals("message:fragment", nextEvent());
+    assertEquals("message:" + new String(sdp), nextEvent());
+  }
+
+  @Test
+  public void answersPingsWithMaskedPongs() throws Exception {
+    open();
+    byte[] payload = "are you there?".getBytes("UTF-8");
+    writeFrame(true, 0x9, payload);
+    Frame pong = readClientFrame();
+    assertEquals(0xA, pong.opcode);
+    assertArrayEquals(payload, pong.payload);
+  }
+
+  @Test
+  public void echoesCloseThenReportsIt() throws Exception {
+    open();
+    byte[] payload = new byte[] { 0x03, (byte) 0xE8 };  // 1000: normal.
+    writeFrame(true, 0x8, payload);
+    Frame close = readClientFrame();
+    assertEquals(0x8, close.opcode);
+    assertArrayEquals(payload, close.payload);
+    assertEquals("close", nextEvent());
+    // The client hangs up after the close handshake.
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void reportsRejectedHandshakeStatus() throws Exception {
+    connect("/");
+    readRequest();
+    out.write("HTTP/1.1 403 Forbidden\r\n\r\n".getBytes("UTF-8"));
+    out.flush();
+    assertEquals("error:403", nextEvent());
+  }
+
+  @Test
+  public void rejectsWrongAcceptKey() throws Exception {
+    connect("/");
+    readRequest();
+    out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+        "Upgrade: websocket\r\nConnection: Upgrade\r\n" +
+        "Sec-WebSocket-Accept: bm90IHRoZSByaWdodCBrZXk=\r\n\r\n")
+        .getBytes("UTF-8"));
+    out.flush();
+    assertEquals("error:-1", nextEvent());
+  }
+
+  @Test
+  public void rejectsMaskedServerFrames() throws Exception {
+    open();
+    out.write(new byte[] { (byte) 0x81, (byte) 0x81, 1, 2, 3, 4, 'x' ^ 1 });
+    out.flush();
+    assertEquals("error:-1", nextEvent());
+  }
+
+  @Test
+  public void closeStopsCallbacks() throws Exception {
+    open();
+    client.close();
+    // The client drops the connection without a close frame.
+    assertEquals(-1, in.read());
+    assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  // Start a client connecting to the server's |path|, and accept it.
+  private void connect(String path) throws IOException {
+    client = new WebSocketChannelClient(
+        URI.create("ws://127.0.0.1:" + serverSocket.getLocalPort() + path),
+        new Executor() {
+          public void execute(Runnable task) {
+            task.run();
+          }
+        },
+        new SignalingChannel.MessageHandler() {
+          public void onOpen() {
+            events.add("open");
+          }
+          public void onMessage(String data) {
+            events.add("message:" + data);
+          }
+          public void onClose() {
+            events.add("close");
+          }
+          public void onError(int code, String description) {
+            events.add("error:" + code);
+          }
+        });
+    server = serverSocket.accept();
+    server.setSoTimeout((int) TIMEOUT_MS);
+    in = new DataInputStream(new BufferedInputStream(server.getInputStream()));
+    out = server.getOutputStream();
+  }
+
+  // Connect and complete the handshake.
+  private void open() throws Exception {
+    connect("/");
+    accept(readRequest());
+    assertEquals("open", nextEvent());
+  }
+
+  private String nextEvent() throws InterruptedException {
+    String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertTrue("No callback", event != null);
+    return event;
+  }
+
+  // Read the client's handshake request, a line per element.
+  private String[] readRequest() throws IOException {
+    StringBuilder request = new StringBuilder();
+    while (!request.toString().endsWith("\r\n\r\n")) {
+      int c = in.read();
+      assertTrue("Request ended early", c != -1);
+      request.append((char) c);
+    }
+    return request.toString().trim().split("\r\n");
+  }
+
+  private static String header(String[] request, String name) {
+    for (int i = 1; i < request.length; ++i) {
+      int colon = request[i].indexOf(':');
+      if (request[i].substring(0, colon).equalsIgnoreCase(name)) {
+        return request[i].substring(colon + 1).trim();
+      }
+    }
+    return null;
+  }
+
+  // Answer |request| with a 101 accepting its key.
+  private void accept(String[] request) throws Exception {
+    String key = header(request, "Sec-WebSocket-Key");
+    String accept = Base64.getEncoder().encodeToString(
+        MessageDigest.getInstance("SHA-1").digest(
+            (key + HANDSHAKE_GUID).getBytes("UTF-8")));
+    out.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+        "Upgrade: websocket\r\nConnection: Upgrade\r\n" +
+        "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes("UTF-8"));
+    out.flush();
+  }
+
+  // Write an unmasked frame, as servers must.
+  private void writeFrame(boolean fin, int opcode, byte[] payload)
+      throws IOException {
+    out.write((fin ? 0x80 : 0) | opcode);
+    if (payload.length < 126) {
+      out.write(payload.length);
+    } else {
+      out.write(126);
+      out.write(payload.length >> 8);
+      out.write(payload.length & 0xFF);
+    }
+    out.write(payload);
+    out.flush();
+  }
+
+  private static class Frame {
+    public final int opcode;
+    public final byte[] payload;
+    public Frame(int opcode, byte[] payload) {
+      this.opcode = opcode;
+      this.payload = payload;
+    }
+  }
+
+  // Read a frame from the client, checking it's a single masked frame, and
+  // unmask it.
+  private Frame readClientFrame() throws IOException {
+    int b0 = in.readUnsignedByte();
+    int b1 = in.readUnsignedByte();
+    assertTrue("Client frame not final", (b0 & 0x80) != 0);
+    assertTrue("Client frame not masked", (b1 & 0x80) != 0);
+    int length = b1 & 0x7F;
+    if (length == 126) {
+      length = in.readUnsignedShort();
+    }
+    byte[] mask = new byte[4];
+    in.readFully(mask);
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    for (int i = 0; i < length; ++i) {
+      payload[i] ^= mask[i & 3];
+    }
+    return new Frame(b0 & 0x0F, payload);
+  }
+}
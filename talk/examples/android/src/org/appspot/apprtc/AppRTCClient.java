@@ -29,6 +29,7 @@ package org.appspot.apprtc;
 
 import android.app.Activity;
 import android.os.AsyncTask;
+import android.util.JsonReader;
 import android.util.Log;
 
 import org.json.JSONArray;
@@ -38,14 +39,14 @@ import org.webrtc.PeerConnection;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executor;
 
 /**
  * Negotiates signaling for chatting with apprtc.appspot.com "rooms".
@@ -57,14 +58,41 @@ import java.util.regex.Pattern;
  */
 public class AppRTCClient {
   private static final String TAG = "AppRTCClient";
-  private GAEChannelClient channelClient;
+  // apprtc's /message handler takes exactly one message per request.
+  private static final int MAX_MESSAGES_PER_POST = 1;
+  // Appended to a room URL to ask for its parameters as JSON rather than as
+  // the room's HTML page.
+  private static final String JSON_PARAMETERS_QUERY = "&t=json";
+  // Lifetime of a room's cached ICE servers when the room doesn't say how
+  // long their credentials are good for.
+  private static final long ICE_SERVERS_TTL_MS = 10 * 60 * 1000;
+
+  // Process-wide, so that rejoining from a new Activity can start ICE before
+  // the room has answered.  Only ICE servers are cached: the channel token and
+  // user id the room hands out are good for a single join, so the room is
+  // always asked for those, and a room-less URL redirects to a new random
+  // room each time, so redirects aren't cached either.  Entries aren't
+  // refreshed in the background before they expire: the room's parameters
+  // are the only source of its ICE servers, and fetching them joins the room,
+  // so a refresh would hold one of the room's two places for a user that
+  // never connects.
+  private static final TtlCache<String, List<PeerConnection.IceServer>>
+      iceServersCache = new TtlCache<String, List<PeerConnection.IceServer>>(
+          ICE_SERVERS_TTL_MS);
+
+  private SignalingChannel channelClient;
   private final Activity activity;
-  private final GAEChannelClient.MessageHandler gaeHandler;
+  private final Executor callbackExecutor;
+  private final SignalingChannel.MessageHandler gaeHandler;
   private final IceServersObserver iceServersObserver;
-
-  // These members are only read/written under sendQueue's lock.
-  private LinkedList<String> sendQueue = new LinkedList<String>();
-  private AppRTCSignalingParameters appRTCSignalingParameters;
+  private final SignalingSender sender;
+  // Room-less URL connectToRoom() was redirected from, if any, and the room
+  // URL; written on the UI thread only.
+  private volatile String redirectedFrom;
+  private volatile String roomUrl;
+  // Whether iceServersObserver has been called; UI thread only.
+  private boolean iceServersDelivered = false;
+  private SetupTimeline timeline = new SetupTimeline();
 
   /**
    * Callback fired once the room's signaling parameters specify the set of
@@ -74,32 +102,74 @@ public class AppRTCClient {
     public void onIceServers(List<PeerConnection.IceServer> iceServers);
   }
 
+  /**
+   * |gaeHandler| and |iceServersObserver| are called on |callbackExecutor|,
+   * which must run tasks one at a time in the order submitted.
+   * connectToRoom() and disconnect() must be called on |activity|'s UI
+   * thread; sendMessage() may be called on any thread.
+   */
   public AppRTCClient(
-      Activity activity, GAEChannelClient.MessageHandler gaeHandler,
+      Activity activity, Executor callbackExecutor,
+      SignalingChannel.MessageHandler gaeHandler,
       IceServersObserver iceServersObserver) {
     this.activity = activity;
-    this.gaeHandler = gaeHandler;
+    this.callbackExecutor = callbackExecutor;
+    this.gaeHandler = new InvalidatingMessageHandler(gaeHandler);
     this.iceServersObserver = iceServersObserver;
+    this.sender = new SignalingSender(new SignalingSender.ErrorHandler() {
+        public void onSendFailed(final String message, final IOException e) {
+          Log.e(TAG, "Giving up on sending: " + message, e);
+          AppRTCClient.this.callbackExecutor.execute(new Runnable() {
+              public void run() {
+                AppRTCClient.this.gaeHandler.onError(-1,
+                    "Failed to send signaling message: " + e.getMessage());
+              }
+            });
+        }
+      });
   }
 
   /**
    * Asynchronously connect to an AppRTC room URL, e.g.
    * https://apprtc.appspot.com/?r=NNN and register message-handling callbacks
-   * on its GAE Channel.
+   * on its GAE Channel.  ICE servers recently seen for the room are reused
+   * (see TtlCache), so when rejoining a room iceServersObserver is called
+   * without waiting for the room.
    */
   public void connectToRoom(String url) {
     while (url.indexOf('?') < 0) {
       // Keep redirecting until we get a room number.
+      timeline.begin(SetupTimeline.Phase.REDIRECT);
+      redirectedFrom = url;
       (new RedirectResolver()).execute(url);
       return;  // RedirectResolver above calls us back with the next URL.
     }
+    if (redirectedFrom != null) {
+      timeline.end(SetupTimeline.Phase.REDIRECT);
+    }
+    roomUrl = url;
+    List<PeerConnection.IceServer> iceServers = iceServersCache.get(url);
+    if (iceServers != null) {
+      deliverIceServers(iceServers);
+    }
+    timeline.begin(SetupTimeline.Phase.ROOM_PARAMETERS);
     (new RoomParameterGetter()).execute(url);
   }
 
   /**
-   * Disconnect from the GAE Channel.
+   * Record the REDIRECT and ROOM_PARAMETERS phases of the next connectToRoom()
+   * in |timeline|.
+   */
+  void setTimeline(SetupTimeline timeline) {
+    this.timeline = timeline;
+  }
+
+  /**
+   * Disconnect from the GAE Channel.  Messages already passed to
+   * sendMessage() are still delivered.
    */
   public void disconnect() {
+    sender.close();
     if (channelClient != null) {
       channelClient.close();
       channelClient = null;
@@ -108,34 +178,87 @@ public class AppRTCClient {
 
   /**
    * Queue a message for sending to the room's channel and send it if already
-   * connected (other wise queued messages are drained when the channel is
-     eventually established).
+   * connected (otherwise queued messages are sent when the channel is
+   * eventually established).  Messages are sent in the order queued; see
+   * SignalingSender.
    */
-  public synchronized void sendMessage(String msg) {
-    synchronized (sendQueue) {
-      sendQueue.add(msg);
+  public void sendMessage(String msg) {
+    sender.send(msg);
+  }
+
+  // Call iceServersObserver unless it's already been called.
+  private void deliverIceServers(
+      final List<PeerConnection.IceServer> iceServers) {
+    if (iceServersDelivered) {
+      return;
+    }
+    iceServersDelivered = true;
+    callbackExecutor.execute(new Runnable() {
+        public void run() {
+          iceServersObserver.onIceServers(iceServers);
+        }
+      });
+  }
+
+  // Forget the ICE servers cached for the room at |url|, so the next
+  // connectToRoom() waits for the server's.
+  private static void invalidateIceServers(String url) {
+    iceServersCache.invalidate(url);
+  }
+
+  // Invalidates the room's cached ICE servers when its channel reports an
+  // error, then passes everything on to the wrapped handler.
+  private class InvalidatingMessageHandler
+      implements SignalingChannel.MessageHandler {
+    private final SignalingChannel.MessageHandler handler;
+
+    public InvalidatingMessageHandler(SignalingChannel.MessageHandler handler) {
+      this.handler = handler;
+    }
+
+    public void onOpen() {
+      handler.onOpen();
+    }
+
+    public void onMessage(String data) {
+      handler.onMessage(data);
+    }
+
+    public void onClose() {
+      handler.onClose();
+    }
+
+    public void onError(int code, String description) {
+      invalidateIceServers(roomUrl);
+      handler.onError(code, description);
     }
-    requestQueueDrainInBackground();
   }
 
   // Struct holding the signaling parameters of an AppRTC room.
   private class AppRTCSignalingParameters {
     public final List<PeerConnection.IceServer> iceServers;
+    // How long |iceServers|' credentials are good for.
+    public final long iceServersTtlMs;
     public final String gaeBaseHref;
     public final String channelToken;
     public final String postMessageUrl;
+    // ws:// or wss:// URL to receive messages from instead of the GAE
+    // channel, or null.
+    public final String webSocketUrl;
     public AppRTCSignalingParameters(
-        List<PeerConnection.IceServer> iceServers,
-        String gaeBaseHref, String channelToken, String postMessageUrl) {
+        List<PeerConnection.IceServer> iceServers, long iceServersTtlMs,
+        String gaeBaseHref, String channelToken, String postMessageUrl,
+        String webSocketUrl) {
       this.iceServers = iceServers;
+      this.iceServersTtlMs = iceServersTtlMs;
       this.gaeBaseHref = gaeBaseHref;
       this.channelToken = channelToken;
       this.postMessageUrl = postMessageUrl;
+      this.webSocketUrl = webSocketUrl;
     }
   }
 
-  // Load the given URL and return the value of the Location header of the
-  // resulting 302 response.  If the result is not a 302, throws.
+  // AsyncTask that resolves a room-less URL into the room it redirects to.
   private class RedirectResolver extends AsyncTask<String, Void, String> {
     @Override
     protected String doInBackground(String... urls) {
@@ -153,33 +276,37 @@ public class AppRTCClient {
     protected void onPostExecute(String url) {
       connectToRoom(url);
     }
+  }
 
-    private String followRedirect(String url) throws IOException {
-      HttpURLConnection connection = (HttpURLConnection)
-          new URL(url).openConnection();
-      connection.setInstanceFollowRedirects(false);
-      int code = connection.getResponseCode();
-      if (code != HttpURLConnection.HTTP_MOVED_TEMP) {
-        throw new IOException("Unexpected response: " + code + " for " + url +
-            ", with contents: " + drainStream(connection.getInputStream()));
-      }
-      int n = 0;
-      String name, value;
-      while ((name = connection.getHeaderFieldKey(n)) != null) {
-        value = connection.getHeaderField(n);
-        if (name.equals("Location")) {
-          return value;
-        }
-        ++n;
+  // Load the given URL and return the value of the Location header of the
+  // resulting 302 response.  If the result is not a 302, throws.
+  private static String followRedirect(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection)
+        new URL(url).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    int code = connection.getResponseCode();
+    if (code != HttpURLConnection.HTTP_MOVED_TEMP) {
+      throw new IOException("Unexpected response: " + code + " for " + url +
+          ", with contents: " + drainStream(connection.getInputStream()));
+    }
+    int n = 0;
+    String name, value;
+    while ((name = connection.getHeaderFieldKey(n)) != null) {
+      value = connection.getHeaderField(n);
+      if (name.equals("Location")) {
+        return value;
       }
-      throw new IOException("Didn't find Location header!");
+      ++n;
     }
+    throw new IOException("Didn't find Location header!");
   }
 
   // AsyncTask that converts an AppRTC room URL into the set of signaling
   // parameters to use with that room.
   private class RoomParameterGetter
       extends AsyncTask<String, Void, AppRTCSignalingParameters> {
+    private IOException error;
+
     @Override
     protected AppRTCSignalingParameters doInBackground(String... urls) {
       if (urls.length != 1) {
@@ -188,81 +315,169 @@ public class AppRTCClient {
       try {
         return getParametersForRoomUrl(urls[0]);
       } catch (IOException e) {
-        throw new RuntimeException(e);
+        // Includes RoomHtmlParser.RoomFullException.  Reported from the UI
+        // thread, which owns the state needed to invalidate the cache.
+        error = e;
+        return null;
       }
     }
 
     @Override
     protected void onPostExecute(AppRTCSignalingParameters params) {
-      String channelUrl = params.gaeBaseHref +
-          "html/android_channel.html?token=" + params.channelToken;
-      channelClient =
-          new GAEChannelClient(activity, channelUrl, gaeHandler);
-      synchronized (sendQueue) {
-        appRTCSignalingParameters = params;
+      if (params == null) {
+        // Reported rather than thrown, so the process (and with it the
+        // cache gaeHandler invalidates) survives to rejoin the room.
+        Log.e(TAG, "Failed to get parameters for " + roomUrl, error);
+        final String description = error.getMessage();
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+              gaeHandler.onError(-1,
+                  "Failed to get room parameters: " + description);
+            }
+          });
+        return;
+      }
+      timeline.end(SetupTimeline.Phase.ROOM_PARAMETERS);
+      if (params.webSocketUrl != null) {
+        String channelUrl = params.webSocketUrl +
+            (params.webSocketUrl.indexOf('?') < 0 ? '?' : '&') +
+            "token=" + params.channelToken;
+        channelClient = new WebSocketChannelClient(
+            URI.create(channelUrl), callbackExecutor, gaeHandler);
+      } else {
+        String channelUrl = params.gaeBaseHref +
+            "html/android_channel.html?token=" + params.channelToken;
+        channelClient = new GAEChannelClient(
+            activity, channelUrl, callbackExecutor, gaeHandler);
+      }
+      try {
+        sender.setTransport(new SignalingTransport(
+            new URL(params.gaeBaseHref + params.postMessageUrl),
+            MAX_MESSAGES_PER_POST));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
-      requestQueueDrainInBackground();
-      iceServersObserver.onIceServers(appRTCSignalingParameters.iceServers);
+      iceServersCache.put(roomUrl, params.iceServers, params.iceServersTtlMs);
+      deliverIceServers(params.iceServers);
     }
 
-    // Fetches |url| and fishes the signaling parameters out of the HTML via
-    // regular expressions.
-    //
-    // TODO(fischman): replace this hackery with a dedicated JSON-serving URL in
-    // apprtc so that this isn't necessary (here and in other future apps that
-    // want to interop with apprtc).
+    // Fetches the signaling parameters of the room at |url|.  The room is
+    // asked for them as JSON, which is parsed as it streams in; servers that
+    // don't know JSON_PARAMETERS_QUERY serve the regular room page instead,
+    // and the parameters are scraped out of that.
     private AppRTCSignalingParameters getParametersForRoomUrl(String url)
         throws IOException {
-      final Pattern tokenPattern = Pattern.compile(
-          ".*\n *openChannel\\('([^']*)'\\);\n.*");
-      final Pattern postMessagePattern = Pattern.compile(
-          ".*\n *path = '/(message\\?r=[0-9]+)' \\+ '(&u=[0-9]+)';\n.*");
-      final Pattern fullRoomPattern = Pattern.compile(
-          ".*\n *Sorry, this room is full\\..*");
-      final Pattern pcConfigPattern = Pattern.compile(
-          ".*\n *var pc_config = (\\{[^\n]*\\});\n.*");
-
-      String roomHtml =
-          drainStream((new URL(url)).openConnection().getInputStream());
-
-      Matcher fullRoomMatcher = fullRoomPattern.matcher(roomHtml);
-      if (fullRoomMatcher.find()) {
-        throw new IOException("Room is full!");
-      }
-
       String gaeBaseHref = url.substring(0, url.indexOf('?'));
-
-      Matcher tokenMatcher = tokenPattern.matcher(roomHtml);
-      if (!tokenMatcher.find()) {
-        throw new IOException("Missing channel token in HTML: " + roomHtml);
-      }
-      String token = tokenMatcher.group(1);
-      if (tokenMatcher.find()) {
-        throw new IOException("Too many channel tokens in HTML: " + roomHtml);
+      URLConnection connection =
+          new URL(url + JSON_PARAMETERS_QUERY).openConnection();
+      InputStream in = connection.getInputStream();
+      try {
+        String contentType = connection.getContentType();
+        if (contentType != null &&
+            contentType.startsWith("application/json")) {
+          return parseJSONParameters(in, gaeBaseHref);
+        }
+        RoomHtmlParser.Parameters params =
+            RoomHtmlParser.parse(drainStream(in));
+        return new AppRTCSignalingParameters(
+            iceServersFromPCConfigJSON(params.pcConfig), ICE_SERVERS_TTL_MS,
+            gaeBaseHref, params.channelToken, params.postMessageUrl, null);
+      } finally {
+        in.close();
       }
+    }
 
-      Matcher postMessageMatcher = postMessagePattern.matcher(roomHtml);
-      if (!postMessageMatcher.find()) {
-        throw new IOException("Missing postMessage URL in HTML: " + roomHtml);
+    // Parse a JSON object of the form
+    //   {"token": "<channel token>", "room_key": "<room>", "me": "<user>",
+    //    "pc_config": {"iceServers": [{"url": ..., "credential": ...}, ...]},
+    //    "ttl": <seconds the credentials are good for, optional>,
+    //    "wss_url": <WebSocket to receive messages from, optional>}
+    // or {"full": true} off |in|, without buffering it.
+    private AppRTCSignalingParameters parseJSONParameters(
+        InputStream in, String gaeBaseHref) throws IOException {
+      JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+      String token = null;
+      String roomKey = null;
+      String me = null;
+      LinkedList<PeerConnection.IceServer> iceServers = null;
+      long iceServersTtlMs = ICE_SERVERS_TTL_MS;
+      String webSocketUrl = null;
+      try {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (name.equals("full")) {
+            if (reader.nextBoolean()) {
+              throw new RoomHtmlParser.RoomFullException();
+            }
+          } else if (name.equals("token")) {
+            token = reader.nextString();
+          } else if (name.equals("room_key")) {
+            roomKey = reader.nextString();
+          } else if (name.equals("me")) {
+            me = reader.nextString();
+          } else if (name.equals("pc_config")) {
+            iceServers = readIceServers(reader);
+          } else if (name.equals("wss_url")) {
+            webSocketUrl = reader.nextString();
+          } else if (name.equals("ttl")) {
+            // Leave a margin so credentials aren't handed out as they expire.
+            iceServersTtlMs = reader.nextLong() * 1000 * 9 / 10;
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+      } catch (IllegalStateException e) {
+        // JsonReader's complaint about unexpected value types.
+        throw new IOException("Malformed room parameters: " + e.getMessage());
       }
-      String postMessageUrl =
-          postMessageMatcher.group(1) + postMessageMatcher.group(2);
-      if (postMessageMatcher.find()) {
-        throw new IOException("Too many postMessage URLs in HTML: " + roomHtml);
+      if (token == null || roomKey == null || me == null ||
+          iceServers == null) {
+        throw new IOException("Incomplete room parameters");
       }
+      return new AppRTCSignalingParameters(iceServers, iceServersTtlMs,
+          gaeBaseHref, token, "message?r=" + roomKey + "&u=" + me,
+          webSocketUrl);
+    }
 
-      Matcher pcConfigMatcher = pcConfigPattern.matcher(roomHtml);
-      if (!pcConfigMatcher.find()) {
-        throw new IOException("Missing pc_config in HTML: " + roomHtml);
-      }
+    // Read the ICE servers out of the pc_config object at |reader|'s
+    // position.
+    private LinkedList<PeerConnection.IceServer> readIceServers(
+        JsonReader reader) throws IOException {
       LinkedList<PeerConnection.IceServer> iceServers =
-          iceServersFromPCConfigJSON(pcConfigMatcher.group(1));
-      if (pcConfigMatcher.find()) {
-        throw new IOException("Too many pc_configs in HTML: " + roomHtml);
+          new LinkedList<PeerConnection.IceServer>();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (!reader.nextName().equals("iceServers")) {
+          reader.skipValue();
+          continue;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+          String url = null;
+          String credential = "";
+          reader.beginObject();
+          while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("url")) {
+              url = reader.nextString();
+            } else if (name.equals("credential")) {
+              credential = reader.nextString();
+            } else {
+              reader.skipValue();
+            }
+          }
+          reader.endObject();
+          if (url == null) {
+            throw new IOException("ICE server without a url");
+          }
+          iceServers.add(new PeerConnection.IceServer(url, credential));
+        }
+        reader.endArray();
       }
-
-      return new AppRTCSignalingParameters(
-          iceServers, gaeBaseHref, token, postMessageUrl);
+      reader.endObject();
+      return iceServers;
     }
   }
 
@@ -288,45 +503,15 @@ public class AppRTCClient {
     }
   }
 
-  // Request an attempt to drain the send queue, on a background thread.
-  private void requestQueueDrainInBackground() {
-    (new AsyncTask<Void, Void, Void>() {
-      public Void doInBackground(Void... unused) {
-        maybeDrainQueue();
-        return null;
-      }
-    }).execute();
-  }
-
-  // Send all queued messages if connected to the room.
-  private void maybeDrainQueue() {
-    synchronized (sendQueue) {
-      if (appRTCSignalingParameters == null) {
-        return;
-      }
-      try {
-        for (String msg : sendQueue) {
-          URLConnection connection = new URL(
-              appRTCSignalingParameters.gaeBaseHref +
-              appRTCSignalingParameters.postMessageUrl).openConnection();
-          connection.setDoOutput(true);
-          connection.getOutputStream().write(msg.getBytes("UTF-8"));
-          if (!connection.getHeaderField(null).startsWith("HTTP/1.1 200 ")) {
-            throw new IOException(
-                "Non-200 response to POST: " + connection.getHeaderField(null) +
-                " for msg: " + msg);
-          }
-        }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
-      sendQueue.clear();
-    }
-  }
-
   // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in).useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  private static String drainStream(InputStream in) throws IOException {
+    InputStreamReader reader = new InputStreamReader(in, "UTF-8");
+    StringBuilder contents = new StringBuilder();
+    char[] buffer = new char[8192];
+    int count;
+    while ((count = reader.read(buffer)) != -1) {
+      contents.append(buffer, 0, count);
+    }
+    return contents.toString();
   }
 }
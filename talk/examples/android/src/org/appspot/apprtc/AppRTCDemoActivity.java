@@ -30,13 +30,15 @@ package org.appspot.apprtc;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Point;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
-import android.webkit.JavascriptInterface;
 import android.widget.Toast;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
@@ -52,8 +54,12 @@ import org.webrtc.VideoRenderer.I420Frame;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Main Activity of the AppRTCDemo Android app demonstrating interoperability
@@ -63,17 +69,80 @@ import java.util.List;
 public class AppRTCDemoActivity extends Activity
     implements AppRTCClient.IceServersObserver {
   private static final String TAG = "AppRTCDemoActivity";
+  // Stats are polled every DEFAULT_STATS_INTERVAL_MS unless the
+  // "statsIntervalMs" intent extra says otherwise, keeping STATS_HISTORY
+  // samples of each stream and logging a summary every STATS_LOG_INTERVAL_MS.
+  private static final int DEFAULT_STATS_INTERVAL_MS = 10000;
+  private static final int MIN_STATS_INTERVAL_MS = 1000;
+  private static final int STATS_HISTORY = 300;
+  private static final long STATS_LOG_INTERVAL_MS = 10000;
+  // Index into CaptureController.DEFAULT_LADDER to start capturing at.
+  private static final int INITIAL_CAPTURE_STEP = 2;
+  // Rate "replayFile" plays at if the file doesn't say and "replayFps"
+  // isn't given, and frames kept by "recordFile" unless "recordFrames" says.
+  private static final double DEFAULT_REPLAY_FPS = 30;
+  private static final int DEFAULT_RECORD_FRAMES = 300;
+  // Signaling messages are parsed, and |pc| is created, driven and disposed,
+  // on this thread, so neither waits on the UI thread nor the UI on them.
+  // Only Toasts and finish() go to the UI thread (VideoStreamsView may be
+  // called on any thread).  The members below, up to |quit|, belong to it.
+  private final HandlerThread signalingThread = new HandlerThread("Signaling");
+  private Handler signalingHandler;
   private PeerConnection pc;
   private final PCObserver pcObserver = new PCObserver();
   private final SDPObserver sdpObserver = new SDPObserver();
-  private final GAEChannelClient.MessageHandler gaeHandler = new GAEHandler();
-  private AppRTCClient appRtcClient = new AppRTCClient(this, gaeHandler, this);
-  private VideoStreamsView vsv;
-  private Toast logToast;
+  private final SignalingChannel.MessageHandler gaeHandler = new GAEHandler();
+  private final SignalingCodec codec = new SignalingCodec();
+  // Composited stream of each remote MediaStream.
+  private final HashMap<MediaStream, VideoStreamsView.Stream> remoteStreams =
+      new HashMap<MediaStream, VideoStreamsView.Stream>();
   private LinkedList<IceCandidate> queuedRemoteCandidates =
       new LinkedList<IceCandidate>();
+  // Local media is created (see LocalMediaCreator) while the room is being
+  // fetched, and the PeerConnection once both it and the room's ICE servers
+  // are in; see maybeCreatePeerConnection().
+  private LocalMedia localMedia;
+  private VideoCallbacks localVideoCallbacks;
+  private List<PeerConnection.IceServer> iceServers;
+  // Moves the capture constraints up & down with the call's stats; see
+  // adaptCapture().
+  private final CaptureController captureController = new CaptureController(
+      CaptureController.DEFAULT_LADDER, INITIAL_CAPTURE_STEP);
+  private int videoTrackCount = 0;
+  // Frame counts summed over the streams shown, as of the last
+  // adaptCapture().
+  private long lastQueuedFrames = 0;
+  private long lastDroppedFrames = 0;
+  // Whether the channel opened before there was a PeerConnection to create an
+  // offer with.
+  private boolean channelOpen = false;
+  // Records the first remote stream if the "recordFile" extra asked for it;
+  // see onAddStream().
+  private String recordFile;
+  private int recordFrames = DEFAULT_RECORD_FRAMES;
+  private FrameRingFile recorder;
+  // Set in loopback mode (see startLoopback()), which calls |loopbackAnswerer|
+  // over |loopback| instead of the room's channel.
+  private LoopbackChannel loopback;
+  private LoopbackAnswerer loopbackAnswerer;
   // Synchronize on quit[0] to avoid teardown-related crashes.
   private final Boolean[] quit = new Boolean[] { false };
+  private final Executor signalingExecutor = new Executor() {
+      public void execute(Runnable runnable) {
+        signalingHandler.post(runnable);
+      }
+    };
+  private final AppRTCClient appRtcClient =
+      new AppRTCClient(this, signalingExecutor, gaeHandler, this);
+  private VideoStreamsView vsv;
+  private Toast logToast;  // UI thread only.
+  private final SetupTimeline timeline = new SetupTimeline();
+  private final StatsEngine stats = new StatsEngine(STATS_HISTORY);
+  private int statsIntervalMs = DEFAULT_STATS_INTERVAL_MS;
+  // Plays the "replayFile" extra, if given, until the activity exits.
+  private volatile Thread replayThread;
+  // Set in onCreate() in loopback mode, before any frame can arrive.
+  private LoopbackProbe loopbackProbe;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -90,6 +159,9 @@ public class AppRTCDemoActivity extends Activity
           }
         });
 
+    signalingThread.start();
+    signalingHandler = new Handler(signalingThread.getLooper());
+
     Point displaySize = new Point();
     getWindowManager().getDefaultDisplay().getSize(displaySize);
     vsv = new VideoStreamsView(this, displaySize);
@@ -101,7 +173,6 @@ public class AppRTCDemoActivity extends Activity
     // TODO(fischman): allow this client to act as a room-creator, handing out
     // the new room URL and acting as a JSEP "answerer".  ATM this only acts as
     // an offerer and on already-existing rooms with a single present user.
-    // TODO(fischman): also, support &debug=loopback
     final Intent intent = getIntent();
     if (!intent.getAction().equals("android.intent.action.VIEW")) {
       logAndToast("AppRTC must be launched via an intent opening a room URL " +
@@ -109,8 +180,73 @@ public class AppRTCDemoActivity extends Activity
       disconnectAndExit();
       return;
     }
-    appRtcClient.connectToRoom(intent.getData().toString());
-    logAndToast("Connecting to room...");
+    // Render-path knobs for benchmarking, e.g.:
+    // adb shell am start ... --es frameHandoff BORROW
+    if (intent.hasExtra("frameHandoff")) {
+      vsv.setFrameHandoff(VideoStreamsView.FrameHandoff.valueOf(
+          intent.getStringExtra("frameHandoff")));
+    }
+    vsv.setPixelBufferUploads(
+        intent.getBooleanExtra("pixelBufferUploads", false));
+    if (intent.hasExtra("textureLayout")) {
+      vsv.setTextureLayout(VideoStreamsView.TextureLayout.valueOf(
+          intent.getStringExtra("textureLayout")));
+    }
+    statsIntervalMs = Math.max(MIN_STATS_INTERVAL_MS, intent.getIntExtra(
+        "statsIntervalMs", DEFAULT_STATS_INTERVAL_MS));
+    if (intent.hasExtra("tileLayout")) {
+      vsv.setLayout(TileLayout.Mode.valueOf(
+          intent.getStringExtra("tileLayout")));
+    }
+    // Recorded content, for reproducing render-path load, e.g.:
+    // adb shell am start ... --es replayFile /sdcard/foreman.y4m
+    if (intent.hasExtra("replayFile")) {
+      startReplay(new File(intent.getStringExtra("replayFile")),
+          intent.getIntExtra("replayWidth", 0),
+          intent.getIntExtra("replayHeight", 0),
+          intent.hasExtra("replayFps") ?
+              intent.getFloatExtra("replayFps", 0) : Double.NaN);
+    }
+    recordFile = intent.getStringExtra("recordFile");
+    recordFrames = intent.getIntExtra("recordFrames", DEFAULT_RECORD_FRAMES);
+    boolean loopbackMode =
+        "loopback".equals(intent.getData().getQueryParameter("debug"));
+    if (loopbackMode) {
+      loopbackProbe = new LoopbackProbe();
+    }
+    (new LocalMediaCreator(captureController.getStep()))
+        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    if (loopbackMode) {
+      startLoopback();
+    } else {
+      appRtcClient.setTimeline(timeline);
+      appRtcClient.connectToRoom(intent.getData().toString());
+      logAndToast("Connecting to room...");
+    }
+  }
+
+  // Call an in-process LoopbackAnswerer instead of joining the room, for a
+  // repeatable measure of the media path that needs no network: the answerer
+  // is created with the PeerConnection (see maybeCreatePeerConnection()), and
+  // |loopbackProbe| matches the frames it renders to the local ones.
+  private void startLoopback() {
+    loopback = new LoopbackChannel(signalingExecutor);
+    loopback.first.open(gaeHandler);
+    signalingHandler.post(new Runnable() {
+        public void run() {
+          onIceServers(new LinkedList<PeerConnection.IceServer>());
+        }
+      });
+    logAndToast("Starting loopback call...");
+  }
+
+  // Send |message| to the other end of the call.  Signaling thread only.
+  private void sendMessage(String message) {
+    if (loopback != null) {
+      loopback.first.send(message);
+    } else {
+      appRtcClient.sendMessage(message);
+    }
   }
 
   @Override
@@ -132,59 +268,295 @@ public class AppRTCDemoActivity extends Activity
     vsv.onResume();
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    vsv.trimMemory(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    vsv.trimMemory(TRIM_MEMORY_COMPLETE);
+  }
+
   @Override
   public void onIceServers(List<PeerConnection.IceServer> iceServers) {
-    PeerConnectionFactory factory = new PeerConnectionFactory();
+    this.iceServers = iceServers;
+    maybeCreatePeerConnection();
+  }
 
-    pc = factory.createPeerConnection(
+  // Create the PeerConnection once both the local media and the ICE servers
+  // are ready, whichever arrives last.  Signaling thread only.
+  private void maybeCreatePeerConnection() {
+    if (pc != null || localMedia == null || iceServers == null || quit[0]) {
+      return;
+    }
+    timeline.begin(SetupTimeline.Phase.PEER_CONNECTION);
+    pc = localMedia.factory.createPeerConnection(
         iceServers, new MediaConstraints(), pcObserver);
 
     {
-      final PeerConnection finalPC = pc;
-      final Runnable repeatedStatsLogger = new Runnable() {
+      // Runs on the signaling thread, so |pc| can't be disposed under it.
+      final Runnable repeatedStatsPoller = new Runnable() {
+          private long lastLogMs = SystemClock.elapsedRealtime();
+
           public void run() {
-            synchronized (quit[0]) {
-              if (quit[0]) {
-                return;
-              }
-              final Runnable runnableThis = this;
-              boolean success = finalPC.getStats(new StatsObserver() {
-                  public void onComplete(StatsReport[] reports) {
-                    for (StatsReport report : reports) {
-                      Log.d(TAG, "Stats: " + report.toString());
+            if (pc == null) {
+              return;
+            }
+            final Runnable runnableThis = this;
+            boolean success = pc.getStats(new StatsObserver() {
+                public void onComplete(StatsReport[] reports) {
+                  stats.update(reports);
+                  signalingHandler.post(adaptCapture);
+                  long nowMs = SystemClock.elapsedRealtime();
+                  if (nowMs - lastLogMs >= STATS_LOG_INTERVAL_MS) {
+                    lastLogMs = nowMs;
+                    Log.d(TAG, "Stats:\n" + stats);
+                    Log.d(TAG, "Render latencies:\n" + vsv.dumpLatencies());
+                    if (loopbackProbe != null) {
+                      Log.d(TAG, "Loopback: " + loopbackProbe.takeSummary());
                     }
-                    vsv.postDelayed(runnableThis, 10000);
                   }
-                }, null);
-              if (!success) {
-                throw new RuntimeException("getStats() return false!");
-              }
+                  signalingHandler.postDelayed(runnableThis, statsIntervalMs);
+                }
+              }, null);
+            if (!success) {
+              throw new RuntimeException("getStats() return false!");
             }
           }
         };
-      vsv.postDelayed(repeatedStatsLogger, 10000);
+      signalingHandler.postDelayed(repeatedStatsPoller, statsIntervalMs);
     }
 
-    {
-      logAndToast("Creating local video source...");
-      VideoCapturer capturer =
-          VideoCapturer.create("Camera 1, Facing front, Orientation 270");
-      if (capturer == null) {
-        capturer =
-            VideoCapturer.create("Camera 0, Facing front, Orientation 270");
+    pc.addStream(localMedia.stream, new MediaConstraints());
+    if (loopback != null) {
+      loopbackAnswerer = new LoopbackAnswerer(localMedia.factory,
+          loopback.second, signalingExecutor, new VideoCallbacks(vsv,
+              vsv.addStream(false), SetupTimeline.Phase.FIRST_REMOTE_FRAME,
+              loopbackProbe.received));
+    }
+    timeline.end(SetupTimeline.Phase.PEER_CONNECTION);
+    logAndToast("Waiting for ICE candidates...");
+    if (channelOpen) {
+      createOffer();
+    }
+  }
+
+  // Play |file| (see FrameFileSource; |width| & |height| are only needed for
+  // raw I420) into a stream of its own, over and over until the activity
+  // exits, at |fps|: NaN for the file's own rate, 0 for as fast as the view
+  // takes frames.
+  private void startReplay(final File file, final int width, final int height,
+      final double fps) {
+    final VideoCallbacks callbacks =
+        new VideoCallbacks(vsv, vsv.addStream(false), null, null);
+    replayThread = new Thread("Replay") {
+        public void run() {
+          FrameFileSource source;
+          try {
+            source = new FrameFileSource(file, width, height);
+          } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + file, e);
+          }
+          double rate = fps;
+          if (Double.isNaN(rate)) {
+            rate = source.getFrameRate() > 0 ?
+                source.getFrameRate() : DEFAULT_REPLAY_FPS;
+          }
+          logAndToast("Replaying " + source.getFrameCount() + " " +
+              source.getWidth() + "x" + source.getHeight() + " frames at " +
+              (rate > 0 ? rate + "fps" : "full speed"));
+          source.play(callbacks, rate, Integer.MAX_VALUE);
+        }
+      };
+    replayThread.setDaemon(true);
+    replayThread.start();
+  }
+
+  // Sample the latest stats & render counts into |captureController|, and
+  // switch capture constraints if it says to.  Signaling thread only.
+  private final Runnable adaptCapture = new Runnable() {
+      public void run() {
+        // Hold off until the call is up; a change means renegotiating.
+        // Loopback calls keep the format fixed, so runs are comparable.
+        if (pc == null || pc.getRemoteDescription() == null ||
+            loopback != null) {
+          return;
+        }
+        // Series of streams that have gone away keep their last samples; only
+        // look at those updated by the latest getStats().
+        long latestMs = Long.MIN_VALUE;
+        for (int i = 0; i < stats.getSeriesCount(); ++i) {
+          StatsEngine.Series series = stats.getSeries(i);
+          if (series.size() > 0) {
+            latestMs = Math.max(latestMs,
+                series.getTimestampMs(series.size() - 1));
+          }
+        }
+        double availableSendBps = Double.NaN;
+        double encodeMs = Double.NaN;
+        boolean cpuLimited = false;
+        for (int i = 0; i < stats.getSeriesCount(); ++i) {
+          StatsEngine.Series series = stats.getSeries(i);
+          if (series.size() == 0 ||
+              series.getTimestampMs(series.size() - 1) != latestMs) {
+            continue;
+          }
+          double value =
+              series.getLatest(StatsEngine.Metric.AVAILABLE_SEND_BPS);
+          if (!Double.isNaN(value)) {
+            availableSendBps = value;
+          }
+          value = series.getLatest(StatsEngine.Metric.ENCODE_MS);
+          if (series.isSend() && !Double.isNaN(value)) {
+            encodeMs = value;
+            cpuLimited =
+                series.getLatest(StatsEngine.Metric.CPU_LIMITED) == 1;
+          }
+        }
+
+        long queuedFrames = 0;
+        long droppedFrames = 0;
+        for (VideoStreamsView.Stream stream : remoteStreams.values()) {
+          queuedFrames += vsv.getQueuedFrameCount(stream);
+          droppedFrames += vsv.getDroppedFrameCount(stream);
+        }
+        queuedFrames += vsv.getQueuedFrameCount(localVideoCallbacks.stream);
+        droppedFrames += vsv.getDroppedFrameCount(localVideoCallbacks.stream);
+        double renderDropPercent = Double.NaN;
+        // Counts go backwards when a stream goes away.
+        if (queuedFrames > lastQueuedFrames &&
+            droppedFrames >= lastDroppedFrames) {
+          renderDropPercent = 100.0 * (droppedFrames - lastDroppedFrames) /
+              (queuedFrames - lastQueuedFrames);
+        }
+        lastQueuedFrames = queuedFrames;
+        lastDroppedFrames = droppedFrames;
+
+        if (captureController.update(
+            availableSendBps, encodeMs, cpuLimited, renderDropPercent)) {
+          switchCaptureStep(captureController.getStep());
+        }
       }
-      abortUnless(capturer != null, "Failed to open capturer");
+    };
+
+  // Replace the local video track with one capturing under |step|'s
+  // constraints, and renegotiate so the remote end gets it.  The constraints
+  // of a VideoSource are fixed, so this means reopening the camera.
+  // Signaling thread only.
+  private void switchCaptureStep(CaptureController.Step step) {
+    CameraFormats camera = localMedia.camera;
+    CaptureController.Step format = camera.fit(step);
+    logAndToast("Capturing at " + format + " for " + step);
+    MediaStream stream = localMedia.stream;
+    stream.removeTrack(localMedia.videoTrack);
+    localMedia.videoTrack.dispose();
+    localMedia.videoSource.dispose();  // Releases the camera.
+    VideoSource videoSource = localMedia.factory.createVideoSource(
+        openCapturer(camera), captureConstraints(format));
+    VideoTrack videoTrack = localMedia.factory.createVideoTrack(
+        "ARDAMSv" + ++videoTrackCount, videoSource);
+    videoTrack.addRenderer(new VideoRenderer(localVideoCallbacks));
+    stream.addTrack(videoTrack);
+    localMedia = new LocalMedia(
+        localMedia.factory, camera, videoSource, videoTrack, stream);
+    createOffer();
+  }
+
+  // |format| is normally one the camera enumerated (see CameraFormats.fit()),
+  // but the constraints are optional so that a camera that can't meet them
+  // is used anyway.
+  private static MediaConstraints captureConstraints(
+      CaptureController.Step format) {
+    MediaConstraints constraints = new MediaConstraints();
+    constraints.optional.add(new MediaConstraints.KeyValuePair(
+        "maxWidth", Integer.toString(format.width)));
+    constraints.optional.add(new MediaConstraints.KeyValuePair(
+        "maxHeight", Integer.toString(format.height)));
+    constraints.optional.add(new MediaConstraints.KeyValuePair(
+        "maxFrameRate", Integer.toString(format.frameRate)));
+    return constraints;
+  }
+
+  private static VideoCapturer openCapturer(CameraFormats camera) {
+    VideoCapturer capturer = VideoCapturer.create(camera.deviceName);
+    abortUnless(capturer != null,
+        "Failed to open capturer " + camera.deviceName);
+    return capturer;
+  }
+
+  // Struct holding the local side of the call.
+  private static class LocalMedia {
+    public final PeerConnectionFactory factory;
+    public final CameraFormats camera;
+    public final VideoSource videoSource;
+    public final VideoTrack videoTrack;
+    public final MediaStream stream;
+    public LocalMedia(PeerConnectionFactory factory, CameraFormats camera,
+        VideoSource videoSource, VideoTrack videoTrack, MediaStream stream) {
+      this.factory = factory;
+      this.camera = camera;
+      this.videoSource = videoSource;
+      this.videoTrack = videoTrack;
+      this.stream = stream;
+    }
+
+    public void dispose() {
+      stream.dispose();
+      videoSource.dispose();
+      factory.dispose();
+    }
+  }
+
+  // AsyncTask creating the PeerConnectionFactory, opening the camera in the
+  // format closest to |step| and building the local MediaStream, none of
+  // which depend on the room.
+  private class LocalMediaCreator extends AsyncTask<Void, Void, LocalMedia> {
+    private final CaptureController.Step step;
+
+    public LocalMediaCreator(CaptureController.Step step) {
+      this.step = step;
+    }
+
+    @Override
+    protected LocalMedia doInBackground(Void... unused) {
+      timeline.begin(SetupTimeline.Phase.FACTORY);
+      PeerConnectionFactory factory = new PeerConnectionFactory();
+      timeline.end(SetupTimeline.Phase.FACTORY);
+
+      timeline.begin(SetupTimeline.Phase.LOCAL_MEDIA);
+      CameraFormats camera = CameraFormats.enumerate();
+      abortUnless(camera != null, "No camera to capture from");
       VideoSource videoSource = factory.createVideoSource(
-          capturer, new MediaConstraints());
+          openCapturer(camera), captureConstraints(camera.fit(step)));
       MediaStream lMS = factory.createLocalMediaStream("ARDAMS");
       VideoTrack videoTrack = factory.createVideoTrack("ARDAMSv0", videoSource);
-      videoTrack.addRenderer(new VideoRenderer(new VideoCallbacks(
-          vsv, VideoStreamsView.Endpoint.LOCAL)));
       lMS.addTrack(videoTrack);
       lMS.addTrack(factory.createAudioTrack("ARDAMSa0"));
-      pc.addStream(lMS, new MediaConstraints());
+      timeline.end(SetupTimeline.Phase.LOCAL_MEDIA);
+      return new LocalMedia(factory, camera, videoSource, videoTrack, lMS);
+    }
+
+    @Override
+    protected void onPostExecute(final LocalMedia media) {
+      if (quit[0]) {
+        media.dispose();
+        return;
+      }
+      final VideoCallbacks callbacks = new VideoCallbacks(
+          vsv, vsv.addStream(true), SetupTimeline.Phase.FIRST_LOCAL_FRAME,
+          loopbackProbe != null ? loopbackProbe.sent : null);
+      media.videoTrack.addRenderer(new VideoRenderer(callbacks));
+      signalingHandler.post(new Runnable() {
+          public void run() {
+            localMedia = media;
+            localVideoCallbacks = callbacks;
+            maybeCreatePeerConnection();
+          }
+        });
     }
-    logAndToast("Waiting for ICE candidates...");
   }
 
   @Override
@@ -199,47 +571,34 @@ public class AppRTCDemoActivity extends Activity
     }
   }
 
-  // Log |msg| and Toast about it.
-  private void logAndToast(String msg) {
+  // Log |msg| and Toast about it.  May be called on any thread.
+  private void logAndToast(final String msg) {
     Log.d(TAG, msg);
-    if (logToast != null) {
-      logToast.cancel();
-    }
-    logToast = Toast.makeText(this, msg, Toast.LENGTH_SHORT);
-    logToast.show();
-  }
-
-  // Send |json| to the underlying AppEngine Channel.
-  private void sendMessage(JSONObject json) {
-    appRtcClient.sendMessage(json.toString());
-  }
-
-  // Put a |key|->|value| mapping in |json|.
-  private static void jsonPut(JSONObject json, String key, Object value) {
-    try {
-      json.put(key, value);
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
-    }
+    runOnUiThread(new Runnable() {
+        public void run() {
+          if (logToast != null) {
+            logToast.cancel();
+          }
+          logToast = Toast.makeText(AppRTCDemoActivity.this, msg,
+              Toast.LENGTH_SHORT);
+          logToast.show();
+        }
+      });
   }
 
   // Implementation detail: observe ICE & stream changes and react accordingly.
   private class PCObserver implements PeerConnection.Observer {
     @Override public void onIceCandidate(final IceCandidate candidate){
-      runOnUiThread(new Runnable() {
+      signalingHandler.post(new Runnable() {
           public void run() {
-            JSONObject json = new JSONObject();
-            jsonPut(json, "type", "candidate");
-            jsonPut(json, "label", candidate.sdpMLineIndex);
-            jsonPut(json, "id", candidate.sdpMid);
-            jsonPut(json, "candidate", candidate.sdp);
-            sendMessage(json);
+            sendMessage(codec.encodeCandidate(
+                candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp));
           }
         });
     }
 
     @Override public void onError(){
-      runOnUiThread(new Runnable() {
+      signalingHandler.post(new Runnable() {
           public void run() {
             throw new RuntimeException("PeerConnection error!");
           }
@@ -259,21 +618,34 @@ public class AppRTCDemoActivity extends Activity
     }
 
     @Override public void onAddStream(final MediaStream stream){
-      runOnUiThread(new Runnable() {
+      signalingHandler.post(new Runnable() {
           public void run() {
             abortUnless(stream.audioTracks.size() == 1 &&
                 stream.videoTracks.size() == 1,
                 "Weird-looking stream: " + stream);
+            VideoStreamsView.Stream videoStream = vsv.addStream(false);
+            remoteStreams.put(stream, videoStream);
             stream.videoTracks.get(0).addRenderer(new VideoRenderer(
-                new VideoCallbacks(vsv, VideoStreamsView.Endpoint.REMOTE)));
+                new VideoCallbacks(vsv, videoStream,
+                    SetupTimeline.Phase.FIRST_REMOTE_FRAME, null)));
+            if (recordFile != null && recorder == null) {
+              recorder = new FrameRingFile(new File(recordFile), recordFrames);
+              stream.videoTracks.get(0).addRenderer(
+                  new VideoRenderer(recorder));
+              logAndToast("Recording remote video to " + recordFile);
+            }
           }
         });
     }
 
     @Override public void onRemoveStream(final MediaStream stream){
-      runOnUiThread(new Runnable() {
+      signalingHandler.post(new Runnable() {
           public void run() {
             stream.videoTracks.get(0).dispose();
+            VideoStreamsView.Stream videoStream = remoteStreams.remove(stream);
+            if (videoStream != null) {
+              vsv.removeStream(videoStream);
+            }
           }
         });
     }
@@ -283,22 +655,23 @@ public class AppRTCDemoActivity extends Activity
   // as well as adding remote ICE candidates once the answer SDP is set.
   private class SDPObserver implements SdpObserver {
     @Override public void onSuccess(final SessionDescription sdp) {
-      runOnUiThread(new Runnable() {
+      signalingHandler.post(new Runnable() {
           public void run() {
             logAndToast("Sending " + sdp.type);
             pc.setLocalDescription(sdpObserver, sdp);
-            JSONObject json = new JSONObject();
-            jsonPut(json, "type", sdp.type.canonicalForm());
-            jsonPut(json, "sdp", sdp.description);
-            sendMessage(json);
+            sendMessage(codec.encodeSessionDescription(
+                sdp.type.canonicalForm(), sdp.description));
           }
         });
     }
 
     @Override public void onSuccess() {
-      runOnUiThread(new Runnable() {
+      signalingHandler.post(new Runnable() {
           public void run() {
-            if (pc.getRemoteDescription() != null) {
+            // Only the first offer/answer exchange has candidates queued;
+            // later ones come from switchCaptureStep().
+            if (pc.getRemoteDescription() != null &&
+                queuedRemoteCandidates != null) {
               for (IceCandidate candidate : queuedRemoteCandidates) {
                 pc.addIceCandidate(candidate);
               }
@@ -309,7 +682,7 @@ public class AppRTCDemoActivity extends Activity
     }
 
     @Override public void onFailure(final String error) {
-      runOnUiThread(new Runnable() {
+      signalingHandler.post(new Runnable() {
           public void run() {
             throw new RuntimeException("SDP error: " + error);
           }
@@ -318,38 +691,32 @@ public class AppRTCDemoActivity extends Activity
   }
 
   // Implementation detail: handler for receiving GAE messages and dispatching
-  // them appropriately.
-  private class GAEHandler implements GAEChannelClient.MessageHandler {
-    @JavascriptInterface public void onOpen() {
-      logAndToast("Creating offer...");
-      MediaConstraints constraints = new MediaConstraints();
-      constraints.mandatory.add(new MediaConstraints.KeyValuePair(
-          "OfferToReceiveAudio", "true"));
-      constraints.mandatory.add(new MediaConstraints.KeyValuePair(
-          "OfferToReceiveVideo", "true"));
-      pc.createOffer(sdpObserver, constraints);
-    }
-
-    @JavascriptInterface public void onMessage(String data) {
+  // them appropriately.  Called on the signaling thread.
+  private class GAEHandler implements SignalingChannel.MessageHandler {
+    public void onOpen() {
+      timeline.mark(SetupTimeline.Phase.CHANNEL_OPEN);
+      channelOpen = true;
+      if (pc != null) {
+        createOffer();
+      }  // Otherwise maybeCreatePeerConnection() will.
+    }
+
+    public void onMessage(String data) {
       try {
-        JSONObject json = new JSONObject(data);
-        String type = (String) json.get("type");
-        if (type.equals("candidate")) {
+        SignalingCodec.Message message = codec.decode(data);
+        if (message.type == SignalingCodec.Type.CANDIDATE) {
           IceCandidate candidate = new IceCandidate(
-              (String) json.get("id"),
-              json.getInt("label"),
-              (String) json.get("candidate"));
+              message.sdpMid, message.sdpMLineIndex, message.candidate);
           if (queuedRemoteCandidates != null) {
             queuedRemoteCandidates.add(candidate);
           } else {
             pc.addIceCandidate(candidate);
           }
-        } else if (type.equals("answer")) {
+        } else if (message.type == SignalingCodec.Type.ANSWER) {
           SessionDescription answer = new SessionDescription(
-              SessionDescription.Type.fromCanonicalForm(type),
-              (String) json.get("sdp"));
+              SessionDescription.Type.ANSWER, message.sdp);
           pc.setRemoteDescription(sdpObserver, answer);
-        } else if (type.equals("bye")) {
+        } else if (message.type == SignalingCodec.Type.BYE) {
           logAndToast("Remote end hung up; dropping PeerConnection");
           disconnectAndExit();
         } else {
@@ -360,45 +727,86 @@ public class AppRTCDemoActivity extends Activity
       }
     }
 
-    @JavascriptInterface public void onClose() {
+    public void onClose() {
       disconnectAndExit();
     }
 
-    @JavascriptInterface public void onError(int code, String description) {
+    public void onError(int code, String description) {
       disconnectAndExit();
     }
   }
 
+  private void createOffer() {
+    logAndToast("Creating offer...");
+    MediaConstraints constraints = new MediaConstraints();
+    constraints.mandatory.add(new MediaConstraints.KeyValuePair(
+        "OfferToReceiveAudio", "true"));
+    constraints.mandatory.add(new MediaConstraints.KeyValuePair(
+        "OfferToReceiveVideo", "true"));
+    pc.createOffer(sdpObserver, constraints);
+  }
+
   // Disconnect from remote resources, dispose of local resources, and exit.
+  // May be called on any thread.
   private void disconnectAndExit() {
     synchronized (quit[0]) {
       if (quit[0]) {
         return;
       }
       quit[0] = true;
-      if (pc != null) {
-        pc.dispose();
-        pc = null;
-      }
-      if (appRtcClient != null) {
-        appRtcClient.sendMessage("{\"type\": \"bye\"}");
-        appRtcClient.disconnect();
-        appRtcClient = null;
-      }
-      finish();
     }
+    Thread replay = replayThread;
+    if (replay != null) {
+      replay.interrupt();
+    }
+    // |pc| is disposed of on the signaling thread, which then stops (dropping
+    // anything posted to it later), and the channel is closed on the UI
+    // thread.
+    signalingHandler.post(new Runnable() {
+        public void run() {
+          if (pc != null) {
+            pc.dispose();
+            pc = null;
+          }
+          if (loopback != null) {
+            if (loopbackAnswerer != null) {
+              loopbackAnswerer.dispose();
+              loopbackAnswerer = null;
+            }
+            loopback.first.close();
+          } else {
+            appRtcClient.sendMessage(codec.encodeBye());
+          }
+          signalingThread.quit();
+          runOnUiThread(new Runnable() {
+              public void run() {
+                appRtcClient.disconnect();
+                finish();
+              }
+            });
+        }
+      });
   }
 
   // Implementation detail: bridge the VideoRenderer.Callbacks interface to the
-  // VideoStreamsView implementation.
+  // VideoStreamsView implementation, marking |firstFramePhase| (unless null)
+  // on |timeline| when the first frame arrives, and passing frames on to
+  // |tap| too (unless null).
   private class VideoCallbacks implements VideoRenderer.Callbacks {
     private final VideoStreamsView view;
-    private final VideoStreamsView.Endpoint stream;
+    private final VideoStreamsView.Stream stream;
+    private final SetupTimeline.Phase firstFramePhase;
+    private final VideoRenderer.Callbacks tap;
+    // Only touched by the thread delivering frames.
+    private boolean sawFrame = false;
 
     public VideoCallbacks(
-        VideoStreamsView view, VideoStreamsView.Endpoint stream) {
+        VideoStreamsView view, VideoStreamsView.Stream stream,
+        SetupTimeline.Phase firstFramePhase, VideoRenderer.Callbacks tap) {
       this.view = view;
       this.stream = stream;
+      this.firstFramePhase = firstFramePhase;
+      this.tap = tap;
     }
 
     @Override
@@ -408,10 +816,21 @@ public class AppRTCDemoActivity extends Activity
             view.setSize(stream, width, height);
           }
         });
+      if (tap != null) {
+        tap.setSize(width, height);
+      }
     }
 
     @Override
     public void renderFrame(I420Frame frame) {
+      if (!sawFrame && firstFramePhase != null) {
+        sawFrame = true;
+        timeline.mark(firstFramePhase);
+        Log.d(TAG, "Call setup at " + firstFramePhase + ":\n" + timeline);
+      }
+      if (tap != null) {
+        tap.renderFrame(frame);
+      }
       view.queueFrame(stream, frame);
     }
   }
@@ -0,0 +1,139 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import android.hardware.Camera;
+
+import java.util.List;
+
+/**
+ * The camera AppRTCDemo captures from (the first front-facing one, else the
+ * first one) and the preview formats it supports, as enumerated by
+ * android.hardware.Camera.  Lets the capturer be opened by the device name
+ * the native capture module lists the camera under instead of a guessed one,
+ * and capture constraints name a size the camera really produces.
+ *
+ * Immutable once enumerated.
+ */
+class CameraFormats {
+  /** Name to pass to org.webrtc.VideoCapturer.create(). */
+  public final String deviceName;
+  // Supported preview sizes, and the highest supported frame rate (0 if the
+  // camera didn't say).
+  private final int[] widths;
+  private final int[] heights;
+  private final int maxFrameRate;
+
+  private CameraFormats(
+      String deviceName, int[] widths, int[] heights, int maxFrameRate) {
+    this.deviceName = deviceName;
+    this.widths = widths;
+    this.heights = heights;
+    this.maxFrameRate = maxFrameRate;
+  }
+
+  /**
+   * Enumerate the formats of the camera to capture from, or return null if
+   * the device has no camera.  Opens the camera to query it, so call it off
+   * the UI thread and before anything else has the camera open.
+   */
+  public static CameraFormats enumerate() {
+    int count = Camera.getNumberOfCameras();
+    if (count == 0) {
+      return null;
+    }
+    Camera.CameraInfo info = new Camera.CameraInfo();
+    int index = 0;
+    for (int i = count - 1; i >= 0; --i) {
+      Camera.getCameraInfo(i, info);
+      if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+        index = i;
+      }
+    }
+    Camera.getCameraInfo(index, info);
+    String deviceName = "Camera " + index + ", Facing " +
+        (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT ?
+            "front" : "back") +
+        ", Orientation " + info.orientation;
+
+    List<Camera.Size> sizes;
+    List<int[]> fpsRanges;
+    Camera camera = Camera.open(index);
+    try {
+      Camera.Parameters parameters = camera.getParameters();
+      sizes = parameters.getSupportedPreviewSizes();
+      fpsRanges = parameters.getSupportedPreviewFpsRange();
+    } finally {
+      camera.release();
+    }
+    int[] widths = new int[sizes.size()];
+    int[] heights = new int[sizes.size()];
+    for (int i = 0; i < widths.length; ++i) {
+      widths[i] = sizes.get(i).width;
+      heights[i] = sizes.get(i).height;
+    }
+    int maxFrameRate = 0;
+    if (fpsRanges != null) {
+      for (int[] range : fpsRanges) {
+        // Ranges are in frames per 1000 seconds.
+        maxFrameRate = Math.max(maxFrameRate,
+            range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000);
+      }
+    }
+    return new CameraFormats(deviceName, widths, heights, maxFrameRate);
+  }
+
+  /**
+   * Return the format to capture in for |step|: the largest supported size
+   * within it (the smallest supported size if none is), at |step|'s frame
+   * rate or the camera's highest, whichever is lower.
+   */
+  public CaptureController.Step fit(CaptureController.Step step) {
+    int best = -1;
+    int smallest = -1;
+    for (int i = 0; i < widths.length; ++i) {
+      int area = widths[i] * heights[i];
+      if (widths[i] <= step.width && heights[i] <= step.height &&
+          (best == -1 || area > widths[best] * heights[best])) {
+        best = i;
+      }
+      if (smallest == -1 || area < widths[smallest] * heights[smallest]) {
+        smallest = i;
+      }
+    }
+    if (best == -1) {
+      best = smallest;
+    }
+    int frameRate = maxFrameRate > 0 ?
+        Math.min(step.frameRate, maxFrameRate) : step.frameRate;
+    if (best == -1) {
+      return new CaptureController.Step(step.width, step.height, frameRate);
+    }
+    return new CaptureController.Step(widths[best], heights[best], frameRate);
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Picks the capture resolution & frame rate from a ladder of Steps, stepping
+ * down when the device or the link can't keep up and back up when they've
+ * had headroom for a while.
+ *
+ * Fed one sample per stats poll (see update()).  A sample is "overloaded" if
+ * any of its signals says the current Step is too much: the send bandwidth
+ * estimate is short of what the Step needs, encoding a frame takes most of a
+ * frame interval, the encoder says it's CPU-limited, or the view is dropping
+ * frames.  It's "clean" if every signal it has says the next Step up would
+ * fit too.  Anything else holds the current Step.
+ *
+ * Hysteresis: stepping down takes DOWN_SAMPLES overloaded samples in a row,
+ * stepping up upSamples clean ones.  upSamples starts at MIN_UP_SAMPLES and
+ * doubles, up to MAX_UP_SAMPLES, whenever a step up is undone within
+ * upSamples samples, so a Step that doesn't fit is retried less and less
+ * often; it's reset once a step up holds for MAX_UP_SAMPLES.  The sample after
+ * any change is ignored, as stats lag the change.
+ *
+ * Not thread-safe.  Has no Android dependencies.
+ */
+class CaptureController {
+  /** Capture constraints: an upper bound on resolution & frame rate. */
+  public static class Step {
+    public final int width;
+    public final int height;
+    public final int frameRate;
+
+    public Step(int width, int height, int frameRate) {
+      this.width = width;
+      this.height = height;
+      this.frameRate = frameRate;
+    }
+
+    /** Send bitrate at which this Step encodes at reasonable quality. */
+    public double getRequiredBps() {
+      return (double) width * height * frameRate * BITS_PER_PIXEL;
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + "@" + frameRate;
+    }
+  }
+
+  /** Default ladder, from most to least demanding. */
+  public static final Step[] DEFAULT_LADDER = {
+    new Step(1280, 720, 30),
+    new Step(960, 540, 30),
+    new Step(640, 480, 30),
+    new Step(640, 360, 24),
+    new Step(480, 360, 20),
+    new Step(320, 240, 15),
+  };
+
+  // Roughly what VP8 needs for decent quality at these sizes.
+  private static final double BITS_PER_PIXEL = 0.1;
+  // Fraction of a Step's required bitrate the bandwidth estimate may fall to
+  // before it counts as overloaded, and the headroom over the next Step's
+  // that counts as clean.
+  private static final double MIN_BANDWIDTH_FRACTION = 0.8;
+  private static final double UP_BANDWIDTH_HEADROOM = 1.2;
+  // Fraction of the frame interval encoding may take before it counts as
+  // overloaded, and may be projected to take at the next Step up to count as
+  // clean.
+  private static final double MAX_ENCODE_FRACTION = 0.8;
+  private static final double UP_ENCODE_FRACTION = 0.6;
+  // Percentages of frames the view may drop.
+  private static final double MAX_RENDER_DROP_PERCENT = 10;
+  private static final double UP_RENDER_DROP_PERCENT = 2;
+  // Package-private for tests.
+  static final int DOWN_SAMPLES = 2;
+  static final int MIN_UP_SAMPLES = 5;
+  static final int MAX_UP_SAMPLES = 40;
+
+  private final Step[] ladder;
+  private int stepIndex;
+  private int overloadedRun = 0;
+  private int cleanRun = 0;
+  private int upSamples = MIN_UP_SAMPLES;
+  // Samples since the last change, and whether that was a step up.
+  private int samplesSinceChange = 0;
+  private boolean lastChangeWasUp = false;
+
+  /** Start at |initialStep| of |ladder|, ordered most demanding first. */
+  public CaptureController(Step[] ladder, int initialStep) {
+    if (initialStep < 0 || initialStep >= ladder.length) {
+      throw new IllegalArgumentException("Bad initial step: " + initialStep);
+    }
+    this.ladder = ladder.clone();
+    this.stepIndex = initialStep;
+  }
+
+  public Step getStep() {
+    return ladder[stepIndex];
+  }
+
+  /**
+   * Take one sample and return whether getStep() changed as a result.  Any
+   * signal may be NaN if unknown; unknown signals neither overload nor
+   * block a step up, but a sample with no known signal holds the Step.
+   *
+   * @param availableSendBps the send bandwidth estimate.
+   * @param encodeMs average time to encode a frame.
+   * @param cpuLimited whether the encoder has reduced resolution for CPU.
+   * @param renderDropPercent percentage of frames the view dropped.
+   */
+  public boolean update(double availableSendBps, double encodeMs,
+      boolean cpuLimited, double renderDropPercent) {
+    ++samplesSinceChange;
+    if (samplesSinceChange == 1) {
+      return false;  // Stats still reflect the previous Step.
+    }
+    if (lastChangeWasUp && samplesSinceChange == MAX_UP_SAMPLES) {
+      upSamples = MIN_UP_SAMPLES;  // The step up held; forgive past probes.
+    }
+    if (Double.isNaN(availableSendBps) && Double.isNaN(encodeMs) &&
+        Double.isNaN(renderDropPercent) && !cpuLimited) {
+      overloadedRun = 0;
+      cleanRun = 0;
+      return false;
+    }
+
+    Step step = ladder[stepIndex];
+    double frameIntervalMs = 1000.0 / step.frameRate;
+    boolean overloaded = cpuLimited ||
+        availableSendBps < step.getRequiredBps() * MIN_BANDWIDTH_FRACTION ||
+        encodeMs > frameIntervalMs * MAX_ENCODE_FRACTION ||
+        renderDropPercent > MAX_RENDER_DROP_PERCENT;
+    boolean clean = false;
+    if (!overloaded && stepIndex > 0) {
+      Step up = ladder[stepIndex - 1];
+      // Encode time scales roughly with pixels per frame.
+      double projectedEncodeMs =
+          encodeMs * up.width * up.height / (step.width * step.height);
+      // Negated comparisons, so that NaN signals pass.
+      clean =
+          !(availableSendBps < up.getRequiredBps() * UP_BANDWIDTH_HEADROOM) &&
+          !(projectedEncodeMs > 1000.0 / up.frameRate * UP_ENCODE_FRACTION) &&
+          !(renderDropPercent > UP_RENDER_DROP_PERCENT);
+    }
+    overloadedRun = overloaded ? overloadedRun + 1 : 0;
+    cleanRun = clean ? cleanRun + 1 : 0;
+
+    if (overloadedRun >= DOWN_SAMPLES && stepIndex < ladder.length - 1) {
+      if (lastChangeWasUp && samplesSinceChange <= upSamples) {
+        upSamples = Math.min(upSamples * 2, MAX_UP_SAMPLES);
+      }
+      changeStep(stepIndex + 1, false);
+      return true;
+    }
+    if (cleanRun >= upSamples) {
+      changeStep(stepIndex - 1, true);
+      return true;
+    }
+    return false;
+  }
+
+  private void changeStep(int index, boolean up) {
+    stepIndex = index;
+    overloadedRun = 0;
+    cleanRun = 0;
+    samplesSinceChange = 0;
+    lastChangeWasUp = up;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shrinks I420 frames by powers of two, for streams drawn much smaller than
+ * they're captured: every 2^shift-th pixel of every 2^shift-th row is kept.
+ * Point sampling aliases a little, but it reads only the pixels it keeps, and
+ * the texture filtering that scales the result onto its tile smooths most of
+ * it over.
+ *
+ * This class has no Android dependencies and no state.
+ */
+class FrameDownscaler {
+  /** Largest shift chooseShift() returns. */
+  public static final int MAX_SHIFT = 3;
+
+  private FrameDownscaler() {}
+
+  /**
+   * Return the largest shift (up to MAX_SHIFT) by which a |width|x|height|
+   * frame can be shrunk and still have at least as many pixels as a
+   * |tileWidth|x|tileHeight| tile in each direction.  Only shifts that leave
+   * even, exactly divided dimensions qualify, so the chroma planes shrink by
+   * the same factor as the luma plane.
+   */
+  public static int chooseShift(
+      int width, int height, int tileWidth, int tileHeight) {
+    int shift = 0;
+    while (shift < MAX_SHIFT) {
+      int next = shift + 1;
+      int mask = (2 << next) - 1;
+      if ((width & mask) != 0 || (height & mask) != 0 ||
+          (width >> next) < tileWidth || (height >> next) < tileHeight) {
+        break;
+      }
+      shift = next;
+    }
+    return shift;
+  }
+
+  /**
+   * Return a frame without planes describing |source| shrunk by |shift|,
+   * tightly packed; pass it to FramePool.takeFrame() to get a destination for
+   * downscale().  Its planes are null rather than allocated, as FramePool
+   * only looks at a prototype's dimensions.
+   */
+  public static I420Frame scaledPrototype(I420Frame source, int shift) {
+    int width = source.width >> shift;
+    int height = source.height >> shift;
+    // A null array would make I420Frame allocate the planes itself.
+    return new I420Frame(width, height,
+        new int[] { width, width / 2, width / 2 }, new ByteBuffer[3]);
+  }
+
+  /**
+   * Fill |dst|, which must have |source|'s dimensions shrunk by |shift| (see
+   * scaledPrototype()), with |source| shrunk by |shift|.  Returns |dst|.
+   * Uses absolute gets & puts, so no buffer's position is disturbed.
+   */
+  public static I420Frame downscale(
+      I420Frame source, int shift, I420Frame dst) {
+    for (int i = 0; i < 3; ++i) {
+      int width = i == 0 ? dst.width : dst.width / 2;
+      int height = i == 0 ? dst.height : dst.height / 2;
+      ByteBuffer from = source.yuvPlanes[i];
+      ByteBuffer to = dst.yuvPlanes[i];
+      int fromStride = source.yuvStrides[i] << shift;
+      int toStride = dst.yuvStrides[i];
+      for (int y = 0; y < height; ++y) {
+        int fromRow = y * fromStride;
+        int toRow = y * toStride;
+        for (int x = 0; x < width; ++x) {
+          to.put(toRow + x, from.get(fromRow + (x << shift)));
+        }
+      }
+    }
+    return dst;
+  }
+}
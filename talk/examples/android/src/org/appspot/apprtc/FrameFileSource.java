@@ -0,0 +1,344 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays the frames of a file into a VideoRenderer.Callbacks, so the render
+ * path can be driven by the same content, at the same (or any) rate, every
+ * run.  The file is memory-mapped read-only and each frame's planes are
+ * slices of the mapping, so delivering a frame copies nothing and allocates
+ * nothing; the OS pages content in as it's played.
+ *
+ * Three formats are recognized:
+ * - YUV4MPEG2 (.y4m) with 4:2:0 chroma, e.g. from "ffmpeg -i in.mp4 out.y4m".
+ *   Width, height and frame rate come from the stream header.
+ * - FrameRingFile recordings, played oldest frame first.  The frame rate is
+ *   estimated from the recorded timestamps.
+ * - Raw, tightly packed I420 frames back to back, whose dimensions must be
+ *   given.  The frame rate is unknown.
+ * The whole file must fit in a single mapping (2GB).
+ *
+ * Has no Android dependencies.  Immutable once opened, and each play()
+ * delivers planes of its own (fresh views of the same mapping, made before
+ * the first frame), so any number of threads may play the same source at
+ * once; each play() blocks its caller.  getFrame()'s frames are shared.
+ */
+class FrameFileSource {
+  private static final String Y4M_MAGIC = "YUV4MPEG2";
+  private static final String Y4M_FRAME = "FRAME";
+
+  private final int width;
+  private final int height;
+  // Frames per second the content was made at, or 0 if unknown.
+  private final double frameRate;
+  private final I420Frame[] frames;
+
+  /**
+   * Open a .y4m file or FrameRingFile recording.  Throws IOException if
+   * |file| is neither or can't be mapped.
+   */
+  public FrameFileSource(File file) throws IOException {
+    this(file, 0, 0);
+  }
+
+  /**
+   * Open |file|, which may also be raw I420 of |width|x|height| frames if
+   * those are positive.
+   */
+  public FrameFileSource(File file, int width, int height)
+      throws IOException {
+    ByteBuffer map = map(file);
+    if (startsWith(map, 0, Y4M_MAGIC)) {
+      Y4mParser parser = new Y4mParser(map);
+      this.width = parser.width;
+      this.height = parser.height;
+      this.frameRate = parser.frameRate;
+      this.frames = parser.frames;
+    } else if (FrameRingFile.isRingFile(map)) {
+      this.width = FrameRingFile.getWidth(map);
+      this.height = FrameRingFile.getHeight(map);
+      int[] offsets = FrameRingFile.getFrameOffsets(map);
+      this.frames = new I420Frame[offsets.length];
+      for (int i = 0; i < offsets.length; ++i) {
+        frames[i] = frameAt(map, offsets[i], this.width, this.height);
+      }
+      this.frameRate = FrameRingFile.estimateFrameRate(map);
+    } else if (width > 0 && height > 0) {
+      this.width = width;
+      this.height = height;
+      this.frameRate = 0;
+      int frameBytes = frameBytes(width, height);
+      this.frames = new I420Frame[map.capacity() / frameBytes];
+      for (int i = 0; i < frames.length; ++i) {
+        frames[i] = frameAt(map, i * frameBytes, width, height);
+      }
+    } else {
+      throw new IOException("Not a .y4m or ring file, and no dimensions " +
+          "given for raw I420: " + file);
+    }
+    if (frames.length == 0) {
+      throw new IOException("No frames in " + file);
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Frames per second the content was made at, or 0 if unknown. */
+  public double getFrameRate() {
+    return frameRate;
+  }
+
+  public int getFrameCount() {
+    return frames.length;
+  }
+
+  /**
+   * Return frame |index|, whose planes are read-only views of the mapping
+   * shared by every getFrame() caller: callers on different threads must not
+   * change the planes' positions or limits.
+   */
+  public I420Frame getFrame(int index) {
+    return frames[index];
+  }
+
+  /**
+   * Call |callbacks|.setSize() and then renderFrame() with every frame in
+   * turn, |loops| times over, at |framesPerSecond| (or as fast as |callbacks|
+   * takes them if that's not positive).  Pacing is against a fixed schedule,
+   * so a late frame is followed by early ones instead of slipping the rest.
+   * Returns the number of frames delivered, fewer than all if the calling
+   * thread was interrupted.
+   */
+  public long play(VideoRenderer.Callbacks callbacks, double framesPerSecond,
+      int loops) {
+    // Renderers may move the planes' positions, so this play() mustn't share
+    // them with any other.
+    I420Frame[] views = new I420Frame[frames.length];
+    for (int i = 0; i < frames.length; ++i) {
+      views[i] = viewOf(frames[i]);
+    }
+    callbacks.setSize(width, height);
+    long intervalNs =
+        framesPerSecond > 0 ? (long) (1e9 / framesPerSecond) : 0;
+    long startNs = System.nanoTime();
+    long delivered = 0;
+    for (int loop = 0; loop < loops; ++loop) {
+      for (I420Frame frame : views) {
+        if (Thread.interrupted()) {
+          return delivered;
+        }
+        if (intervalNs > 0) {
+          long waitNs = startNs + delivered * intervalNs - System.nanoTime();
+          if (waitNs > 0) {
+            try {
+              Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+            } catch (InterruptedException e) {
+              return delivered;
+            }
+          }
+        }
+        callbacks.renderFrame(frame);
+        ++delivered;
+      }
+    }
+    return delivered;
+  }
+
+  // Return a frame whose planes are new views of |frame|'s.
+  private static I420Frame viewOf(I420Frame frame) {
+    ByteBuffer[] planes = new ByteBuffer[3];
+    for (int i = 0; i < 3; ++i) {
+      planes[i] = frame.yuvPlanes[i].duplicate();
+    }
+    return new I420Frame(frame.width, frame.height, frame.yuvStrides, planes);
+  }
+
+  // Package-private for FrameRingFile.
+  static int frameBytes(int width, int height) {
+    return width * height + 2 * ((width / 2) * (height / 2));
+  }
+
+  // Return a frame viewing |width|x|height| tightly packed I420 at |offset|
+  // of |map|.  Package-private for FrameRingFile.
+  static I420Frame frameAt(ByteBuffer map, int offset, int width,
+      int height) {
+    int[] strides = { width, width / 2, width / 2 };
+    int[] sizes = { width * height, (width / 2) * (height / 2),
+        (width / 2) * (height / 2) };
+    ByteBuffer[] planes = new ByteBuffer[3];
+    for (int i = 0; i < 3; ++i) {
+      ByteBuffer plane = map.duplicate();
+      plane.limit(offset + sizes[i]).position(offset);
+      planes[i] = plane.slice();
+      offset += sizes[i];
+    }
+    return new I420Frame(width, height, strides, planes);
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Too large to map: " + file);
+      }
+      // The mapping outlives the channel.
+      MappedByteBuffer map =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return map.asReadOnlyBuffer();
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static boolean startsWith(ByteBuffer map, int offset, String s) {
+    if (map.capacity() - offset < s.length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); ++i) {
+      if (map.get(offset + i) != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Walks a .y4m mapping: a header line of space-separated tagged
+  // parameters, then per frame a "FRAME" line (whose parameters are ignored)
+  // followed by the frame's planes.
+  private static class Y4mParser {
+    public int width = 0;
+    public int height = 0;
+    public double frameRate = 0;
+    public I420Frame[] frames;
+
+    public Y4mParser(ByteBuffer map) throws IOException {
+      int end = lineEnd(map, 0);
+      String[] tags = lineAt(map, 0, end).split(" ");
+      for (int i = 1; i < tags.length; ++i) {
+        if (tags[i].isEmpty()) {
+          continue;
+        }
+        String value = tags[i].substring(1);
+        switch (tags[i].charAt(0)) {
+          case 'W':
+            width = parseInt(value);
+            break;
+          case 'H':
+            height = parseInt(value);
+            break;
+          case 'F': {
+            String[] ratio = value.split(":");
+            if (ratio.length == 2 && parseInt(ratio[1]) > 0) {
+              frameRate =
+                  (double) parseInt(ratio[0]) / parseInt(ratio[1]);
+            }
+            break;
+          }
+          case 'C':
+            if (!value.startsWith("420")) {
+              throw new IOException("Unsupported .y4m colorspace: " + value);
+            }
+            break;
+          default:
+            break;
+        }
+      }
+      if (width <= 0 || height <= 0) {
+        throw new IOException("No dimensions in .y4m header");
+      }
+      int frameBytes = frameBytes(width, height);
+      // Frame headers are normally just "FRAME\n"; size for that.
+      int capacity = (map.capacity() - end - 1) /
+          (Y4M_FRAME.length() + 1 + frameBytes);
+      I420Frame[] found = new I420Frame[capacity];
+      int count = 0;
+      int offset = end + 1;
+      while (offset < map.capacity()) {
+        if (!startsWith(map, offset, Y4M_FRAME)) {
+          throw new IOException("Bad .y4m frame header at " + offset);
+        }
+        int dataOffset = lineEnd(map, offset) + 1;
+        if (dataOffset + frameBytes > map.capacity()) {
+          break;  // Truncated last frame.
+        }
+        if (count == found.length) {
+          I420Frame[] grown = new I420Frame[count * 2 + 1];
+          System.arraycopy(found, 0, grown, 0, count);
+          found = grown;
+        }
+        found[count++] = frameAt(map, dataOffset, width, height);
+        offset = dataOffset + frameBytes;
+      }
+      frames = new I420Frame[count];
+      System.arraycopy(found, 0, frames, 0, count);
+    }
+
+    private static int lineEnd(ByteBuffer map, int offset)
+        throws IOException {
+      for (int i = offset; i < map.capacity(); ++i) {
+        if (map.get(i) == '\n') {
+          return i;
+        }
+      }
+      throw new IOException("Unterminated .y4m header at " + offset);
+    }
+
+    private static String lineAt(ByteBuffer map, int start, int end) {
+      StringBuilder line = new StringBuilder(end - start);
+      for (int i = start; i < end; ++i) {
+        line.append((char) map.get(i));
+      }
+      return line.toString();
+    }
+
+    private static int parseInt(String s) throws IOException {
+      try {
+        return Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad .y4m header value: " + s);
+      }
+    }
+  }
+}
@@ -29,42 +29,121 @@ package org.appspot.apprtc;
 
 import org.webrtc.VideoRenderer.I420Frame;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class acts as an allocation pool meant to minimize GC churn caused by
- * frame allocation & disposal.  The public API comprises of just two methods:
- * copyFrame(), which allocates as necessary and copies, and
- * returnFrame(), which returns frame ownership to the pool for use by a later
- * call to copyFrame().
+ * frame allocation & disposal.  Frames go through two methods: takeFrame(),
+ * which allocates as necessary, and returnFrame(), which returns frame
+ * ownership to the pool for use by a later call to takeFrame().  The pool's
+ * limits are set at construction, and getPooledBytes() & getBucketStats()
+ * report what it holds.
  *
- * This class is thread-safe; calls to copyFrame() and returnFrame() are allowed
- * to happen on any thread.
+ * Frames are kept in one bucket per distinct set of frame dimensions, and each
+ * bucket holds at most a fixed number of idle frames; frames returned to a full
+ * bucket are left for the GC instead of growing the pool without bound.  The
+ * idle frames of all buckets together are also held to a byte budget: when a
+ * returned frame would exceed it, the least recently used buckets (typically
+ * resolutions the remote end has since adapted away from) are evicted.
+ * trim() releases memory in response to system memory pressure.
+ *
+ * A bucket's first maxFramesPerBucket frames (fewer if the byte budget can't
+ * hold that many) are carved out of a single FrameSlab rather than allocated
+ * plane by plane, so a new resolution costs one allocateDirect() for as many
+ * frames as the bucket can keep.  The slab's not-yet-carved frames count
+ * towards the byte budget like idle ones, and are released with them on
+ * eviction.  Beyond that (more frames of one size out at once than its
+ * bucket keeps) each frame gets a slab of its own, so frames the bucket has
+ * no room for don't pin anyone else's memory.
+ *
+ * This class is thread-safe; calls to takeFrame() and returnFrame() are allowed
+ * to happen on any thread, and don't take any locks unless a never-before-seen
+ * frame dimension needs a new bucket, a bucket needs a new slab, or the byte
+ * budget forces an eviction.
  */
 class FramePool {
-  // Maps each summary code (see summarizeFrameDimensions()) to a list of frames
-  // of that description.
-  private final HashMap<Long, LinkedList<I420Frame>> availableFrames =
-      new HashMap<Long, LinkedList<I420Frame>>();
+  /** Number of idle frames kept per bucket unless otherwise specified. */
+  public static final int DEFAULT_MAX_FRAMES_PER_BUCKET = 4;
+  /** Idle frame bytes kept across all buckets unless otherwise specified. */
+  public static final long DEFAULT_MAX_POOLED_BYTES = 24 * 1024 * 1024;
+
   // Every dimension (e.g. width, height, stride) of a frame must be less than
   // this value.
   private static final long MAX_DIMENSION = 4096;
 
+  // Values of android.content.ComponentCallbacks2.TRIM_MEMORY_*, spelled out
+  // so that this class has no Android dependencies.
+  private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+  private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+  private final int maxFramesPerBucket;
+  private final long maxPooledBytes;
+  // Total size of the idle frames, and of the uncarved frames of slabs, held
+  // by all live buckets.
+  private final AtomicLong pooledBytes = new AtomicLong();
+  // Copy-on-write array of buckets, one per summary code (see
+  // summarizeFrameDimensions()).  Read without locking; only replaced (never
+  // mutated in place) while holding |bucketsLock|.
+  private volatile Bucket[] buckets = new Bucket[0];
+  private final Object bucketsLock = new Object();
+
+  /** Snapshot of the contents of a single bucket; see getBucketStats(). */
+  public static class BucketStats {
+    public final int width;
+    public final int height;
+    public final int idleFrames;
+    public final long idleBytes;
+    // Bytes of the bucket's slab not yet handed out; idleBytes + slabBytes
+    // summed over all buckets is getPooledBytes().
+    public final long slabBytes;
+
+    public BucketStats(int width, int height, int idleFrames, long idleBytes,
+        long slabBytes) {
+      this.width = width;
+      this.height = height;
+      this.idleFrames = idleFrames;
+      this.idleBytes = idleBytes;
+      this.slabBytes = slabBytes;
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + ": " + idleFrames + " frames, " +
+          idleBytes + " bytes, " + slabBytes + " slab bytes";
+    }
+  }
+
+  public FramePool() {
+    this(DEFAULT_MAX_FRAMES_PER_BUCKET, DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  public FramePool(int maxFramesPerBucket, long maxPooledBytes) {
+    if (maxFramesPerBucket < 1) {
+      throw new IllegalArgumentException(
+          "Bad maxFramesPerBucket: " + maxFramesPerBucket);
+    }
+    if (maxPooledBytes < 0) {
+      throw new IllegalArgumentException(
+          "Bad maxPooledBytes: " + maxPooledBytes);
+    }
+    this.maxFramesPerBucket = maxFramesPerBucket;
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
   public I420Frame takeFrame(I420Frame source) {
     long desc = summarizeFrameDimensions(source);
-    I420Frame dst = null;
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        frames = new LinkedList<I420Frame>();
-        availableFrames.put(desc, frames);
-      }
-      if (!frames.isEmpty()) {
-        dst = frames.pop();
-      } else {
-        dst = new I420Frame(
-            source.width, source.height, source.yuvStrides, null);
+    Bucket bucket = findOrCreateBucket(desc, source);
+    bucket.lastUsedNs = System.nanoTime();
+    I420Frame dst = bucket.poll();
+    if (dst == null) {
+      dst = bucket.carveFrame();
+      if (pooledBytes.get() > maxPooledBytes) {
+        // A new slab pushed the pool over budget.
+        evictUntil(maxPooledBytes, bucket);
       }
     }
     return dst;
@@ -72,13 +151,66 @@ class FramePool {
 
   public void returnFrame(I420Frame frame) {
     long desc = summarizeFrameDimensions(frame);
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        throw new IllegalArgumentException("Unexpected frame dimensions");
-      }
-      frames.add(frame);
+    Bucket bucket = findBucket(buckets, desc);
+    if (bucket == null) {
+      // The bucket was evicted while |frame| was checked out.
+      return;
+    }
+    if (bucket.idleFrames.get() >= maxFramesPerBucket) {
+      // |frame| would be dropped anyway; don't evict anything to make room.
+      return;
+    }
+    if (pooledBytes.get() + bucket.frameBytes > maxPooledBytes &&
+        !evictUntil(maxPooledBytes - bucket.frameBytes, bucket)) {
+      // Even with every other bucket gone there's no room for |frame|.
+      return;
     }
+    // If the bucket filled up meanwhile |frame| is simply dropped on the
+    // floor.
+    bucket.offer(frame);
+    if (bucket.evicted) {
+      // Lost a race with evictUntil(); don't strand |frame| in a dead bucket.
+      bucket.drain();
+    }
+  }
+
+  /**
+   * Release pooled memory in response to an
+   * android.content.ComponentCallbacks2.onTrimMemory() |level|.  The more
+   * severe the level, the more of the byte budget is given back, down to
+   * releasing everything once the process is under critical pressure.
+   */
+  public void trim(int level) {
+    long target;
+    if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+      target = 0;
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      target = maxPooledBytes / 4;
+    } else {
+      target = maxPooledBytes / 2;
+    }
+    evictUntil(target, null);
+  }
+
+  /**
+   * Total size of the idle frames currently held by the pool, including
+   * frames of its slabs that haven't been handed out yet.
+   */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /** Return a snapshot of the contents of each bucket, most recent first. */
+  public List<BucketStats> getBucketStats() {
+    Bucket[] current = buckets;
+    List<BucketStats> stats = new ArrayList<BucketStats>(current.length);
+    for (int i = current.length - 1; i >= 0; --i) {
+      Bucket bucket = current[i];
+      int idleFrames = bucket.idleFrames.get();
+      stats.add(new BucketStats(bucket.width, bucket.height, idleFrames,
+          idleFrames * bucket.frameBytes, bucket.slabBytes()));
+    }
+    return stats;
   }
 
   /** Validate that |frame| can be managed by the pool. */
@@ -89,11 +221,74 @@ class FramePool {
         frame.yuvStrides[2] < MAX_DIMENSION;
   }
 
+  // Return the bucket for |desc|, creating it (sized for frames like
+  // |source|) if this is the first time |desc| has been seen.
+  private Bucket findOrCreateBucket(long desc, I420Frame source) {
+    Bucket bucket = findBucket(buckets, desc);
+    if (bucket != null) {
+      return bucket;
+    }
+    synchronized (bucketsLock) {
+      // Re-check: another thread may have won the race to create it.
+      Bucket[] current = buckets;
+      bucket = findBucket(current, desc);
+      if (bucket == null) {
+        bucket = new Bucket(desc, source);
+        Bucket[] grown = new Bucket[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = bucket;
+        buckets = grown;
+      }
+      return bucket;
+    }
+  }
+
+  // Evict least-recently-used buckets other than |keep| (which may be null)
+  // until at most |targetBytes| are pooled.  Returns whether that succeeded.
+  private boolean evictUntil(long targetBytes, Bucket keep) {
+    synchronized (bucketsLock) {
+      while (pooledBytes.get() > targetBytes) {
+        Bucket[] current = buckets;
+        int victim = -1;
+        for (int i = 0; i < current.length; ++i) {
+          if (current[i] != keep && (victim == -1 ||
+              current[i].lastUsedNs < current[victim].lastUsedNs)) {
+            victim = i;
+          }
+        }
+        if (victim == -1) {
+          return false;
+        }
+        Bucket[] shrunk = new Bucket[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, victim);
+        System.arraycopy(current, victim + 1, shrunk, victim,
+            current.length - victim - 1);
+        buckets = shrunk;
+        current[victim].evicted = true;
+        current[victim].drain();
+        current[victim].retireSlab();
+      }
+      return true;
+    }
+  }
+
+  // Linear scan is fine: a session only ever sees a handful of distinct frame
+  // dimensions, and comparing primitive longs avoids boxing a map key.
+  private static Bucket findBucket(Bucket[] buckets, long desc) {
+    for (Bucket bucket : buckets) {
+      if (bucket.desc == desc) {
+        return bucket;
+      }
+    }
+    return null;
+  }
+
   // Return a code summarizing the dimensions of |frame|.  Two frames that
   // return the same summary are guaranteed to be able to store each others'
   // contents.  Used like Object.hashCode(), but we need all the bits of a long
   // to do a good job, and hashCode() returns int, so we do this.
-  private static long summarizeFrameDimensions(I420Frame frame) {
+  // Package-private for FrameBenchmark.
+  static long summarizeFrameDimensions(I420Frame frame) {
     long ret = frame.width;
     ret = ret * MAX_DIMENSION + frame.height;
     ret = ret * MAX_DIMENSION + frame.yuvStrides[0];
@@ -101,4 +296,140 @@ class FramePool {
     ret = ret * MAX_DIMENSION + frame.yuvStrides[2];
     return ret;
   }
+
+  // Return the number of bytes of plane storage backing |frame|.
+  private static long frameBytes(I420Frame frame) {
+    return (long) frame.yuvStrides[0] * frame.height +
+        (long) frame.yuvStrides[1] * frame.height / 2 +
+        (long) frame.yuvStrides[2] * frame.height / 2;
+  }
+
+  // Bounded, lock-free store of idle frames sharing a single summary code.
+  // Each slot is either empty (null) or holds one idle frame; frames move in
+  // and out of slots with compare-and-set, so no node is ever allocated.
+  private class Bucket {
+    public final long desc;
+    public final int width;
+    public final int height;
+    public final long frameBytes;
+    private final int[] yuvStrides;
+    public final AtomicInteger idleFrames = new AtomicInteger();
+    // System.nanoTime() of the last takeFrame() served by this bucket.
+    public volatile long lastUsedNs = System.nanoTime();
+    // Set once this bucket has been removed from |buckets|.
+    public volatile boolean evicted = false;
+    private final AtomicReferenceArray<I420Frame> slots;
+    // Slab new frames are carved out of until it's used up or retired, and
+    // whether it's been allocated yet (guarded by |this|).
+    private volatile FrameSlab slab;
+    private final int slabFrames;
+    private boolean slabAllocated = false;
+
+    public Bucket(long desc, I420Frame prototype) {
+      this.desc = desc;
+      this.width = prototype.width;
+      this.height = prototype.height;
+      this.frameBytes = frameBytes(prototype);
+      this.yuvStrides = prototype.yuvStrides.clone();
+      this.slabFrames = (int) Math.max(1,
+          Math.min(maxFramesPerBucket, maxPooledBytes / frameBytes));
+      this.slots = new AtomicReferenceArray<I420Frame>(maxFramesPerBucket);
+    }
+
+    // Remove and return an idle frame, or null if there is none.
+    public I420Frame poll() {
+      int n = slots.length();
+      int start = startIndex(n);
+      for (int i = 0; i < n; ++i) {
+        int slot = (start + i) % n;
+        I420Frame frame = slots.get(slot);
+        if (frame != null && slots.compareAndSet(slot, frame, null)) {
+          idleFrames.decrementAndGet();
+          pooledBytes.addAndGet(-frameBytes);
+          return frame;
+        }
+      }
+      return null;
+    }
+
+    // Store |frame| in an empty slot, returning false if there is none.
+    public boolean offer(I420Frame frame) {
+      int n = slots.length();
+      int start = startIndex(n);
+      for (int i = 0; i < n; ++i) {
+        int slot = (start + i) % n;
+        if (slots.get(slot) == null &&
+            slots.compareAndSet(slot, null, frame)) {
+          idleFrames.incrementAndGet();
+          pooledBytes.addAndGet(frameBytes);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // Return a brand new frame: from the bucket's slab (allocating it on
+    // first use) while it lasts, else from a slab of its own.
+    public I420Frame carveFrame() {
+      FrameSlab current = slab;
+      if (current == null) {
+        synchronized (this) {
+          if (!slabAllocated) {
+            slabAllocated = true;
+            current = new FrameSlab(width, height, yuvStrides, slabFrames);
+            pooledBytes.addAndGet(slabFrames * frameBytes);
+            slab = current;
+            if (evicted) {
+              retireSlab();  // Lost a race with evictUntil().
+            }
+          } else {
+            // Another thread may have allocated it while we waited.
+            current = slab;
+          }
+        }
+      }
+      I420Frame frame = current == null ? null : current.carveFrame();
+      if (frame != null) {
+        pooledBytes.addAndGet(-frameBytes);
+        return frame;
+      }
+      if (current != null) {
+        synchronized (this) {
+          // Used up or retired; don't keep it reachable.  Re-check so a
+          // slab some other thread just installed is left alone.
+          if (slab == current) {
+            slab = null;
+          }
+        }
+      }
+      return new FrameSlab(width, height, yuvStrides, 1).carveFrame();
+    }
+
+    // Size of the frames of the slab that haven't been carved yet.
+    public long slabBytes() {
+      FrameSlab current = slab;
+      return current == null ? 0 : current.getUncarvedFrames() * frameBytes;
+    }
+
+    // Take the uncarved frames of the slab out of the budget and stop
+    // carving from it.
+    public void retireSlab() {
+      FrameSlab current = slab;
+      if (current != null) {
+        slab = null;
+        pooledBytes.addAndGet(-current.retire() * frameBytes);
+      }
+    }
+
+    // Release every idle frame to the GC.
+    public void drain() {
+      while (poll() != null) {}
+    }
+
+    // Spread concurrent threads over different starting slots so they don't
+    // all fight over the CAS on slot 0.
+    private int startIndex(int n) {
+      return (int) (Thread.currentThread().getId() % n);
+    }
+  }
 }
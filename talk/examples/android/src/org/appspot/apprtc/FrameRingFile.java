@@ -0,0 +1,232 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the frames rendered to it into a fixed-size, memory-mapped ring
+ * file holding the most recent |capacity| frames, for replaying later with
+ * FrameFileSource.  Recording a frame is a de-padding copy into the mapping
+ * plus two header writes; nothing is allocated and no system call is made,
+ * and the OS writes the pages back in its own time.
+ *
+ * Layout (big-endian): a HEADER_BYTES header of the magic, width, height,
+ * capacity, slot size and total number of frames recorded, then |capacity|
+ * slots each holding the System.nanoTime() a frame was recorded at followed
+ * by the frame as tightly packed I420.  Frame n is in slot n % capacity.  The
+ * count is only bumped once a frame is complete, so a reader never sees a
+ * torn frame except one being overwritten right then.
+ *
+ * The file is (re)created for the dimensions given to setSize(); frames that
+ * don't match them are skipped.  Has no Android dependencies.  Not
+ * thread-safe, as VideoRenderer.Callbacks needn't be.
+ */
+class FrameRingFile implements VideoRenderer.Callbacks {
+  private static final String MAGIC = "I420RING";
+  private static final int HEADER_BYTES = 32;
+  private static final int WIDTH_OFFSET = 8;
+  private static final int HEIGHT_OFFSET = 12;
+  private static final int CAPACITY_OFFSET = 16;
+  private static final int SLOT_BYTES_OFFSET = 20;
+  private static final int COUNT_OFFSET = 24;
+  private static final int TIMESTAMP_BYTES = 8;
+
+  private final File file;
+  private final int capacity;
+  private MappedByteBuffer map;
+  private int width;
+  private int height;
+  private int slotBytes;
+  private long framesWritten = 0;
+  private long framesSkipped = 0;
+
+  /** Record the latest |capacity| frames to |file|, replacing it. */
+  public FrameRingFile(File file, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Bad capacity: " + capacity);
+    }
+    this.file = file;
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void setSize(int width, int height) {
+    if (map != null && width == this.width && height == this.height) {
+      return;
+    }
+    int slotBytes =
+        TIMESTAMP_BYTES + FrameFileSource.frameBytes(width, height);
+    long fileBytes = HEADER_BYTES + (long) capacity * slotBytes;
+    if (fileBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Ring of " + capacity + " " +
+          width + "x" + height + " frames is too large to map");
+    }
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(0);  // Don't let stale frames of another size show.
+        raf.setLength(fileBytes);
+        map = raf.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to map " + file, e);
+    }
+    this.width = width;
+    this.height = height;
+    this.slotBytes = slotBytes;
+    framesWritten = 0;
+    for (int i = 0; i < MAGIC.length(); ++i) {
+      map.put(i, (byte) MAGIC.charAt(i));
+    }
+    map.putInt(WIDTH_OFFSET, width);
+    map.putInt(HEIGHT_OFFSET, height);
+    map.putInt(CAPACITY_OFFSET, capacity);
+    map.putInt(SLOT_BYTES_OFFSET, slotBytes);
+    map.putLong(COUNT_OFFSET, 0);
+  }
+
+  @Override
+  public void renderFrame(I420Frame frame) {
+    if (map == null || frame.width != width || frame.height != height) {
+      ++framesSkipped;
+      return;
+    }
+    int slot = HEADER_BYTES + (int) (framesWritten % capacity) * slotBytes;
+    map.putLong(slot, System.nanoTime());
+    map.position(slot + TIMESTAMP_BYTES);
+    for (int i = 0; i < 3; ++i) {
+      int planeWidth = i == 0 ? width : width / 2;
+      int planeHeight = i == 0 ? height : height / 2;
+      putPlane(frame.yuvPlanes[i], frame.yuvStrides[i], planeWidth,
+          planeHeight);
+    }
+    map.putLong(COUNT_OFFSET, ++framesWritten);
+  }
+
+  /** Number of frames recorded since the last change of size. */
+  public long getFramesWritten() {
+    return framesWritten;
+  }
+
+  /** Number of frames skipped for not matching the size. */
+  public long getFramesSkipped() {
+    return framesSkipped;
+  }
+
+  /** Write the recording back to the file now rather than eventually. */
+  public void flush() {
+    if (map != null) {
+      map.force();
+    }
+  }
+
+  // Append |height| rows of |width| bytes, |stride| apart, from |plane| at
+  // |map|'s position.  |plane|'s position & limit are restored afterwards.
+  private void putPlane(ByteBuffer plane, int stride, int width, int height) {
+    int position = plane.position();
+    int limit = plane.limit();
+    if (stride == width) {
+      plane.limit(width * height).position(0);
+      map.put(plane);
+    } else {
+      for (int row = 0; row < height; ++row) {
+        plane.limit(row * stride + width).position(row * stride);
+        map.put(plane);
+      }
+    }
+    plane.limit(limit).position(position);
+  }
+
+  // Readers of the format, for FrameFileSource.
+
+  static boolean isRingFile(ByteBuffer map) {
+    if (map.capacity() < HEADER_BYTES) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length(); ++i) {
+      if (map.get(i) != MAGIC.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static int getWidth(ByteBuffer map) {
+    return map.getInt(WIDTH_OFFSET);
+  }
+
+  static int getHeight(ByteBuffer map) {
+    return map.getInt(HEIGHT_OFFSET);
+  }
+
+  // Return the offsets of the recorded frames' data, oldest first.
+  static int[] getFrameOffsets(ByteBuffer map) throws IOException {
+    int capacity = map.getInt(CAPACITY_OFFSET);
+    int slotBytes = map.getInt(SLOT_BYTES_OFFSET);
+    long count = map.getLong(COUNT_OFFSET);
+    if (capacity <= 0 || slotBytes != TIMESTAMP_BYTES +
+        FrameFileSource.frameBytes(getWidth(map), getHeight(map)) ||
+        HEADER_BYTES + (long) capacity * slotBytes > map.capacity()) {
+      throw new IOException("Corrupt ring file header");
+    }
+    long first = Math.max(0, count - capacity);
+    int[] offsets = new int[(int) (count - first)];
+    for (int i = 0; i < offsets.length; ++i) {
+      offsets[i] = HEADER_BYTES + (int) ((first + i) % capacity) * slotBytes +
+          TIMESTAMP_BYTES;
+    }
+    return offsets;
+  }
+
+  // Return the average rate the recorded frames came in at, or 0 if there
+  // are too few to tell.
+  static double estimateFrameRate(ByteBuffer map) throws IOException {
+    int[] offsets = getFrameOffsets(map);
+    if (offsets.length < 2) {
+      return 0;
+    }
+    long firstNs = map.getLong(offsets[0] - TIMESTAMP_BYTES);
+    long lastNs = map.getLong(offsets[offsets.length - 1] - TIMESTAMP_BYTES);
+    if (lastNs <= firstNs) {
+      return 0;
+    }
+    return (offsets.length - 1) * 1e9 / (lastNs - firstNs);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single direct-memory region carved into a fixed number of I420Frames that
+ * all share the same dimensions.  Each frame's Y, U & V planes are laid out
+ * back to back inside the region, with every plane starting on a
+ * PLANE_ALIGNMENT boundary relative to the start of the region (whose own
+ * address allocateDirect() aligns to at least 8 bytes, which covers every
+ * GL_UNPACK_ALIGNMENT value).
+ *
+ * Carving a frame out of an existing slab is just a few ByteBuffer slices, as
+ * opposed to three allocateDirect() calls, and all frames of a slab are
+ * released together once the slab and every frame carved from it become
+ * unreachable.
+ *
+ * This class is thread-safe.
+ */
+class FrameSlab {
+  /** Alignment, in bytes, of the start of every plane within the slab. */
+  public static final int PLANE_ALIGNMENT = 64;
+
+  private final int width;
+  private final int height;
+  private final int[] yuvStrides;
+  // Offsets of the Y, U & V planes relative to the start of a frame, and the
+  // (aligned) distance from one frame to the next.
+  private final int[] planeOffsets = new int[3];
+  private final int[] planeSizes = new int[3];
+  private final int frameStride;
+  private final int capacity;
+  private final ByteBuffer region;
+  private final AtomicInteger framesCarved = new AtomicInteger();
+
+  /**
+   * Allocate a region big enough for |capacity| frames of the given
+   * dimensions.  This is the only call that touches allocateDirect().
+   */
+  public FrameSlab(int width, int height, int[] yuvStrides, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Bad capacity: " + capacity);
+    }
+    this.width = width;
+    this.height = height;
+    this.yuvStrides = yuvStrides.clone();
+    // Plane sizes match what I420Frame would allocate itself.
+    planeSizes[0] = yuvStrides[0] * height;
+    planeSizes[1] = yuvStrides[1] * height / 2;
+    planeSizes[2] = yuvStrides[2] * height / 2;
+    int offset = 0;
+    for (int i = 0; i < 3; ++i) {
+      planeOffsets[i] = offset;
+      offset = align(offset + planeSizes[i]);
+    }
+    this.frameStride = offset;
+    this.capacity = capacity;
+    long regionSize = (long) frameStride * capacity;
+    if (regionSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Slab too large: " + regionSize);
+    }
+    this.region = ByteBuffer.allocateDirect((int) regionSize);
+  }
+
+  /**
+   * Return a new frame whose planes are views into this slab, or null if all
+   * |capacity| frames have already been handed out.
+   */
+  public I420Frame carveFrame() {
+    int index = framesCarved.getAndIncrement();
+    if (index >= capacity) {
+      framesCarved.set(capacity);  // Keep the counter from overflowing.
+      return null;
+    }
+    ByteBuffer[] planes = new ByteBuffer[3];
+    for (int i = 0; i < 3; ++i) {
+      planes[i] = slice(index * frameStride + planeOffsets[i], planeSizes[i]);
+    }
+    return new I420Frame(width, height, yuvStrides, planes);
+  }
+
+  /**
+   * Stop handing out frames and return how many never were.  Frames already
+   * carved are unaffected, and keep the region alive as long as they are.
+   */
+  public int retire() {
+    return Math.max(0, capacity - framesCarved.getAndSet(capacity));
+  }
+
+  /** Return how many frames are left to carve. */
+  public int getUncarvedFrames() {
+    return Math.max(0, capacity - framesCarved.get());
+  }
+
+  // Round |offset| up to the next multiple of PLANE_ALIGNMENT.
+  private static int align(int offset) {
+    return (offset + PLANE_ALIGNMENT - 1) & ~(PLANE_ALIGNMENT - 1);
+  }
+
+  // Return a direct view of |length| bytes of |region| starting at |offset|.
+  private ByteBuffer slice(int offset, int length) {
+    ByteBuffer view = region.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    return view.slice();
+  }
+}
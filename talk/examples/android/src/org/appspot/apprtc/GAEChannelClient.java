@@ -36,6 +36,8 @@ import android.webkit.WebChromeClient;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import java.util.concurrent.Executor;
+
 /**
  * Java-land version of Google AppEngine's JavaScript Channel API:
  * https://developers.google.com/appengine/docs/python/channel/javascript
@@ -44,28 +46,18 @@ import android.webkit.WebViewClient;
  * on{Open,Message,Close,Error}() events to a global object named
  * "androidMessageHandler".
  */
-public class GAEChannelClient {
+public class GAEChannelClient implements SignalingChannel {
   private static final String TAG = "GAEChannelClient";
   private WebView webView;
   private final ProxyingMessageHandler proxyingMessageHandler;
 
   /**
-   * Callback interface for messages delivered on the Google AppEngine channel.
-   *
-   * Methods are guaranteed to be invoked on the UI thread of |activity| passed
-   * to GAEChannelClient's constructor.
+   * Asynchronously open an AppEngine channel.  Must be called on |activity|'s
+   * UI thread; |callbackExecutor| must run tasks in the order submitted.
    */
-  public interface MessageHandler {
-    public void onOpen();
-    public void onMessage(String data);
-    public void onClose();
-    public void onError(int code, String description);
-  }
-
-  /** Asynchronously open an AppEngine channel. */
   @SuppressLint("SetJavaScriptEnabled")
-  public GAEChannelClient(
-      Activity activity, String gaeUrl, MessageHandler handler) {
+  public GAEChannelClient(Activity activity, String gaeUrl,
+      Executor callbackExecutor, MessageHandler handler) {
     webView = new WebView(activity);
     webView.getSettings().setJavaScriptEnabled(true);
     webView.setWebChromeClient(new WebChromeClient() {  // Purely for debugging.
@@ -83,7 +75,8 @@ public class GAEChannelClient {
               ", desc: " + description);
         }
       });
-    proxyingMessageHandler = new ProxyingMessageHandler(activity, handler);
+    proxyingMessageHandler =
+        new ProxyingMessageHandler(callbackExecutor, handler);
     webView.addJavascriptInterface(
         proxyingMessageHandler, "androidMessageHandler");
     webView.loadUrl(gaeUrl);
@@ -101,27 +94,28 @@ public class GAEChannelClient {
   }
 
   // Helper class for proxying callbacks from the Java<->JS interaction
-  // (private, background) thread to the Activity's UI thread.
+  // (private, background) thread to the callback Executor.
   private static class ProxyingMessageHandler {
-    private final Activity activity;
+    private final Executor executor;
     private final MessageHandler handler;
-    private final boolean[] disconnected = { false };
+    // Set on the UI thread, read on the callback Executor's.
+    private volatile boolean disconnected = false;
 
-    public ProxyingMessageHandler(Activity activity, MessageHandler handler) {
-      this.activity = activity;
+    public ProxyingMessageHandler(Executor executor, MessageHandler handler) {
+      this.executor = executor;
       this.handler = handler;
     }
 
     public void disconnect() {
-      disconnected[0] = true;
+      disconnected = true;
     }
 
     private boolean disconnected() {
-      return disconnected[0];
+      return disconnected;
     }
 
     @JavascriptInterface public void onOpen() {
-      activity.runOnUiThread(new Runnable() {
+      executor.execute(new Runnable() {
           public void run() {
             if (!disconnected()) {
               handler.onOpen();
@@ -131,7 +125,7 @@ public class GAEChannelClient {
     }
 
     @JavascriptInterface public void onMessage(final String data) {
-      activity.runOnUiThread(new Runnable() {
+      executor.execute(new Runnable() {
           public void run() {
             if (!disconnected()) {
               handler.onMessage(data);
@@ -141,7 +135,7 @@ public class GAEChannelClient {
     }
 
     @JavascriptInterface public void onClose() {
-      activity.runOnUiThread(new Runnable() {
+      executor.execute(new Runnable() {
           public void run() {
             if (!disconnected()) {
               handler.onClose();
@@ -152,7 +146,7 @@ public class GAEChannelClient {
 
     @JavascriptInterface public void onError(
         final int code, final String description) {
-      activity.runOnUiThread(new Runnable() {
+      executor.execute(new Runnable() {
           public void run() {
             if (!disconnected()) {
               handler.onError(code, description);
@@ -0,0 +1,163 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets, in the
+ * style of HdrHistogram: values below 2^SUB_BUCKET_BITS are counted exactly,
+ * and larger values are rounded down to SUB_BUCKET_BITS - 1 significant bits
+ * below their most significant one (so within ~6% of the true value).
+ *
+ * record() is allocation-free, lock-free and safe to call from any thread;
+ * only snapshot() allocates.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  /** Values are clamped to this (~67s). */
+  public static final long MAX_VALUE_US = (1L << 26) - 1;
+  private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE_US) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  /** Count one occurrence of |valueUs|, clamped to [0, MAX_VALUE_US]. */
+  public void record(long valueUs) {
+    counts.incrementAndGet(
+        bucketIndex(Math.max(0, Math.min(valueUs, MAX_VALUE_US))));
+  }
+
+  /** As record(), converting from nanoseconds. */
+  public void recordNanos(long valueNs) {
+    record(valueNs / 1000);
+  }
+
+  /** Forget all recorded values. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts.set(i, 0);
+    }
+  }
+
+  /**
+   * Return a copy of the counts so far.  Values recorded concurrently may or
+   * may not be included.
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      copy[i] = counts.get(i);
+    }
+    return new Snapshot(copy);
+  }
+
+  // Return the index of the bucket counting |value|.
+  private static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+  }
+
+  // Return the smallest value counted by bucket |index|.
+  private static long bucketLowestValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+    return (long) (index - shift * SUB_BUCKET_HALF_COUNT) << shift;
+  }
+
+  /** Immutable point-in-time copy of a LatencyHistogram. */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long totalCount;
+
+    private Snapshot(long[] counts) {
+      this.counts = counts;
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      this.totalCount = total;
+    }
+
+    /** Return the number of recorded values. */
+    public long getCount() {
+      return totalCount;
+    }
+
+    /**
+     * Return the (bucket-rounded) value at or below which |percentile|% of
+     * recorded values fall, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+      long rank = (long) Math.ceil(percentile / 100 * totalCount);
+      long seen = 0;
+      for (int i = 0; i < counts.length; ++i) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return bucketLowestValue(i);
+        }
+      }
+      return 0;
+    }
+
+    /** Return the (bucket-rounded) largest recorded value, or 0. */
+    public long getMax() {
+      for (int i = counts.length - 1; i >= 0; --i) {
+        if (counts[i] != 0) {
+          return bucketLowestValue(i);
+        }
+      }
+      return 0;
+    }
+
+    /** Return the (bucket-rounded) mean of the recorded values, or 0. */
+    public double getMean() {
+      if (totalCount == 0) {
+        return 0;
+      }
+      double sum = 0;
+      for (int i = 0; i < counts.length; ++i) {
+        sum += (double) counts[i] * bucketLowestValue(i);
+      }
+      return sum / totalCount;
+    }
+
+    @Override
+    public String toString() {
+      return "n=" + totalCount + " p50=" + getValueAtPercentile(50) +
+          " p90=" + getValueAtPercentile(90) + " p99=" +
+          getValueAtPercentile(99) + " max=" + getMax() + "us";
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+import org.webrtc.VideoRenderer;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * The far end of a loopback call: a second, receive-only PeerConnection that
+ * answers the offers arriving on its End of a LoopbackChannel and renders the
+ * video it receives to the given Callbacks.  Only the channel's End is
+ * shared with the offering side; the factory may be too.
+ *
+ * Must be created, driven and disposed on the channel's Executor, where all
+ * of its work runs.
+ */
+class LoopbackAnswerer implements SignalingChannel.MessageHandler {
+  private final LoopbackChannel.End channel;
+  private final Executor executor;
+  private final VideoRenderer.Callbacks renderer;
+  private final SignalingCodec codec = new SignalingCodec();
+  private final SDPObserver sdpObserver = new SDPObserver();
+  private PeerConnection pc;
+  // Candidates that arrived before the offer they belong to was set.
+  private LinkedList<IceCandidate> queuedCandidates =
+      new LinkedList<IceCandidate>();
+
+  public LoopbackAnswerer(PeerConnectionFactory factory,
+      LoopbackChannel.End channel, Executor executor,
+      VideoRenderer.Callbacks renderer) {
+    this.channel = channel;
+    this.executor = executor;
+    this.renderer = renderer;
+    // In-process, so host candidates are all it takes.
+    pc = factory.createPeerConnection(
+        new LinkedList<PeerConnection.IceServer>(), new MediaConstraints(),
+        new PCObserver());
+    channel.open(this);
+  }
+
+  /** Hang up and release the PeerConnection.  Idempotent. */
+  public void dispose() {
+    if (pc != null) {
+      pc.dispose();
+      pc = null;
+    }
+    channel.close();
+  }
+
+  @Override
+  public void onOpen() {}
+
+  @Override
+  public void onMessage(String data) {
+    if (pc == null) {
+      return;
+    }
+    try {
+      SignalingCodec.Message message = codec.decode(data);
+      if (message.type == SignalingCodec.Type.CANDIDATE) {
+        IceCandidate candidate = new IceCandidate(
+            message.sdpMid, message.sdpMLineIndex, message.candidate);
+        if (queuedCandidates != null) {
+          queuedCandidates.add(candidate);
+        } else {
+          pc.addIceCandidate(candidate);
+        }
+      } else if (message.type == SignalingCodec.Type.OFFER) {
+        pc.setRemoteDescription(sdpObserver, new SessionDescription(
+            SessionDescription.Type.OFFER, message.sdp));
+        pc.createAnswer(sdpObserver, new MediaConstraints());
+      } else if (message.type == SignalingCodec.Type.BYE) {
+        dispose();
+      } else {
+        throw new RuntimeException("Unexpected message: " + data);
+      }
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void onClose() {
+    dispose();
+  }
+
+  @Override
+  public void onError(int code, String description) {
+    dispose();
+  }
+
+  // Hops PeerConnection callbacks over to |executor|.
+  private class PCObserver implements PeerConnection.Observer {
+    @Override public void onIceCandidate(final IceCandidate candidate) {
+      executor.execute(new Runnable() {
+          public void run() {
+            if (pc != null) {
+              channel.send(codec.encodeCandidate(
+                  candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp));
+            }
+          }
+        });
+    }
+
+    @Override public void onError() {
+      executor.execute(new Runnable() {
+          public void run() {
+            throw new RuntimeException("Loopback PeerConnection error!");
+          }
+        });
+    }
+
+    @Override public void onSignalingChange(
+        PeerConnection.SignalingState newState) {
+    }
+
+    @Override public void onIceConnectionChange(
+        PeerConnection.IceConnectionState newState) {
+    }
+
+    @Override public void onIceGatheringChange(
+        PeerConnection.IceGatheringState newState) {
+    }
+
+    @Override public void onAddStream(final MediaStream stream) {
+      executor.execute(new Runnable() {
+          public void run() {
+            if (pc != null && !stream.videoTracks.isEmpty()) {
+              stream.videoTracks.get(0).addRenderer(
+                  new VideoRenderer(renderer));
+            }
+          }
+        });
+    }
+
+    @Override public void onRemoveStream(final MediaStream stream) {
+      executor.execute(new Runnable() {
+          public void run() {
+            if (!stream.videoTracks.isEmpty()) {
+              stream.videoTracks.get(0).dispose();
+            }
+          }
+        });
+    }
+  }
+
+  // Sends the answer once created, and adds the candidates that were waiting
+  // for the offer once it's set.
+  private class SDPObserver implements SdpObserver {
+    @Override public void onSuccess(final SessionDescription sdp) {
+      executor.execute(new Runnable() {
+          public void run() {
+            if (pc == null) {
+              return;
+            }
+            pc.setLocalDescription(sdpObserver, sdp);
+            channel.send(codec.encodeSessionDescription(
+                sdp.type.canonicalForm(), sdp.description));
+          }
+        });
+    }
+
+    @Override public void onSuccess() {
+      executor.execute(new Runnable() {
+          public void run() {
+            if (pc != null && pc.getRemoteDescription() != null &&
+                queuedCandidates != null) {
+              for (IceCandidate candidate : queuedCandidates) {
+                pc.addIceCandidate(candidate);
+              }
+              queuedCandidates = null;
+            }
+          }
+        });
+    }
+
+    @Override public void onFailure(final String error) {
+      executor.execute(new Runnable() {
+          public void run() {
+            throw new RuntimeException("Loopback SDP error: " + error);
+          }
+        });
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An in-process stand-in for a room's channel, connecting two
+ * SignalingChannel.MessageHandlers so that a call can be set up without a
+ * server.  Each End delivers what's sent on it to the other End's handler.
+ * As with GAEChannelClient, handlers are called on the Executor, one at a
+ * time and in order, each message in an Executor task of its own.
+ *
+ * onOpen() is delivered to both handlers once both Ends are open, so neither
+ * side can send before the other is listening.  Closing an End delivers
+ * onClose() to the other, after anything already sent; messages sent after
+ * that are dropped.
+ */
+class LoopbackChannel {
+  /** One side of the channel. */
+  public class End implements SignalingChannel {
+    private End peer;
+    // Guarded by the enclosing LoopbackChannel.
+    private SignalingChannel.MessageHandler handler;
+
+    /** Start delivering messages sent to this End to |handler|. */
+    public void open(SignalingChannel.MessageHandler handler) {
+      synchronized (LoopbackChannel.this) {
+        if (this.handler != null || closed) {
+          throw new IllegalStateException("Already opened");
+        }
+        this.handler = handler;
+        if (peer.handler == null) {
+          return;
+        }
+      }
+      deliverOpen(first);
+      deliverOpen(second);
+    }
+
+    /**
+     * Deliver |message| to the other End's handler.  Throws
+     * IllegalStateException unless the channel is open.
+     */
+    public void send(final String message) {
+      final SignalingChannel.MessageHandler to;
+      synchronized (LoopbackChannel.this) {
+        if (handler == null || peer.handler == null) {
+          throw new IllegalStateException("Channel not open");
+        }
+        if (closed) {
+          return;
+        }
+        to = peer.handler;
+      }
+      executor.execute(new Runnable() {
+          public void run() {
+            to.onMessage(message);
+          }
+        });
+    }
+
+    @Override
+    public void close() {
+      final SignalingChannel.MessageHandler to;
+      synchronized (LoopbackChannel.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        to = peer.handler;
+      }
+      if (to != null) {
+        executor.execute(new Runnable() {
+            public void run() {
+              to.onClose();
+            }
+          });
+      }
+    }
+
+    private void deliverOpen(End end) {
+      final SignalingChannel.MessageHandler to = end.handler;
+      executor.execute(new Runnable() {
+          public void run() {
+            to.onOpen();
+          }
+        });
+    }
+  }
+
+  public final End first = new End();
+  public final End second = new End();
+  private final Executor executor;
+  private boolean closed = false;  // Guarded by |this|.
+
+  /** |executor| must run tasks in the order submitted. */
+  public LoopbackChannel(Executor executor) {
+    this.executor = executor;
+    first.peer = second;
+    second.peer = first;
+  }
+}
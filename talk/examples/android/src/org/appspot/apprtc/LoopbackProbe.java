@@ -0,0 +1,221 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures a loopback call's latency & received frame rate by recognizing,
+ * among the frames rendered on the receiving side, the frames rendered
+ * earlier on the sending side.
+ *
+ * The org.webrtc API doesn't let the app draw into the frames it sends, so
+ * rather than embedding a timestamp in each frame, the probe stamps every
+ * frame with its arrival time and a signature: the average luma of each cell
+ * of a GRID x GRID grid, from a fixed number of sample points regardless of
+ * resolution, so the encoder scaling a frame doesn't change it.  A received
+ * frame is matched to the sent frame of closest signature, and the
+ * difference in arrival times is recorded as its latency (capture delivery
+ * to render delivery, so excluding the camera's exposure and the display's
+ * scan-out).  Only clear-cut matches count: a scene has to change for its
+ * frames to be told apart, so a still one records nothing.
+ *
+ * Feed it through |sent| and |received|, each from a single thread.
+ */
+class LoopbackProbe {
+  /** Source of the current time, in nanoseconds; replaceable by tests. */
+  static interface Clock {
+    long nowNs();
+  }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+      public long nowNs() {
+        return System.nanoTime();
+      }
+    };
+
+  private static final int GRID = 4;
+  private static final int SAMPLES_PER_CELL = 8;
+  private static final int SAMPLES_PER_SIDE = GRID * SAMPLES_PER_CELL;
+  private static final int CELLS = GRID * GRID;
+  // Sent frames remembered; at 30fps, a bit over 4 seconds' worth.
+  private static final int HISTORY = 128;
+  // A match must be within MAX_MATCH_DISTANCE (summed over cells), and the
+  // best candidate not adjacent to it must be MIN_MATCH_MARGIN further off
+  // than twice that, to count.
+  private static final int MAX_MATCH_DISTANCE = 8 * CELLS;
+  private static final int MIN_MATCH_MARGIN = 4 * CELLS;
+  private static final int ADJACENT_FRAMES = 2;
+
+  /** Callbacks to feed the frames being sent, e.g. the local preview's. */
+  public final VideoRenderer.Callbacks sent = new VideoRenderer.Callbacks() {
+      public void setSize(int width, int height) {}
+
+      public void renderFrame(I420Frame frame) {
+        onSentFrame(frame);
+      }
+    };
+
+  /** Callbacks to feed the frames received. */
+  public final VideoRenderer.Callbacks received =
+      new VideoRenderer.Callbacks() {
+        public void setSize(int width, int height) {}
+
+        public void renderFrame(I420Frame frame) {
+          onReceivedFrame(frame);
+        }
+      };
+
+  private final Clock clock;
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  // Per-thread scratch space.
+  private final int[] sentSignature = new int[CELLS];
+  private final int[] receivedSignature = new int[CELLS];
+  // Ring of the last HISTORY sent frames; sent frame n is in slot
+  // n % HISTORY.  Guarded by |this|, as are the counts below.
+  private final long[] sentNs = new long[HISTORY];
+  private final int[] signatures = new int[HISTORY * CELLS];
+  private long sentFrames = 0;
+  private long receivedFrames = 0;
+  private long matchedFrames = 0;
+  // Start of the current summary interval, for takeSummary().
+  private long intervalStartNs;
+  private long intervalReceivedFrames = 0;
+
+  public LoopbackProbe() {
+    this(SYSTEM_CLOCK);
+  }
+
+  LoopbackProbe(Clock clock) {
+    this.clock = clock;
+    this.intervalStartNs = clock.nowNs();
+  }
+
+  /** Latencies of the frames matched so far. */
+  public LatencyHistogram.Snapshot getLatencySnapshot() {
+    return latencies.snapshot();
+  }
+
+  /**
+   * Return a line summarizing the latencies so far and the frame rate
+   * received since the previous call, for logging.
+   */
+  public synchronized String takeSummary() {
+    long nowNs = clock.nowNs();
+    double fps = (receivedFrames - intervalReceivedFrames) * 1e9 /
+        Math.max(1, nowNs - intervalStartNs);
+    intervalStartNs = nowNs;
+    intervalReceivedFrames = receivedFrames;
+    return "latency " + latencies.snapshot() + ", matched " + matchedFrames +
+        " of " + receivedFrames + " frames, receiving " +
+        Math.round(fps * 10) / 10.0 + "fps";
+  }
+
+  private void onSentFrame(I420Frame frame) {
+    long nowNs = clock.nowNs();
+    computeSignature(frame, sentSignature);
+    synchronized (this) {
+      int slot = (int) (sentFrames % HISTORY);
+      sentNs[slot] = nowNs;
+      System.arraycopy(sentSignature, 0, signatures, slot * CELLS, CELLS);
+      ++sentFrames;
+    }
+  }
+
+  private void onReceivedFrame(I420Frame frame) {
+    long nowNs = clock.nowNs();
+    computeSignature(frame, receivedSignature);
+    synchronized (this) {
+      ++receivedFrames;
+      long first = Math.max(0, sentFrames - HISTORY);
+      long best = -1;
+      int bestDistance = Integer.MAX_VALUE;
+      for (long n = first; n < sentFrames; ++n) {
+        int distance = distance(n);
+        if (distance < bestDistance) {
+          best = n;
+          bestDistance = distance;
+        }
+      }
+      if (best == -1 || bestDistance > MAX_MATCH_DISTANCE) {
+        return;
+      }
+      boolean compared = false;
+      for (long n = first; n < sentFrames; ++n) {
+        if (Math.abs(n - best) > ADJACENT_FRAMES) {
+          if (distance(n) < bestDistance * 2 + MIN_MATCH_MARGIN) {
+            return;  // Ambiguous.
+          }
+          compared = true;
+        }
+      }
+      if (!compared) {
+        return;  // Too few frames sent to tell.
+      }
+      ++matchedFrames;
+      latencies.recordNanos(nowNs - sentNs[(int) (best % HISTORY)]);
+    }
+  }
+
+  // Sum over cells of the difference between sent frame |n|'s signature and
+  // |receivedSignature|; caller holds |this|.
+  private int distance(long n) {
+    int base = (int) (n % HISTORY) * CELLS;
+    int sum = 0;
+    for (int i = 0; i < CELLS; ++i) {
+      sum += Math.abs(signatures[base + i] - receivedSignature[i]);
+    }
+    return sum;
+  }
+
+  // Fill |signature| with the average sampled luma of each cell of |frame|.
+  private static void computeSignature(I420Frame frame, int[] signature) {
+    ByteBuffer y = frame.yuvPlanes[0];
+    int stride = frame.yuvStrides[0];
+    for (int i = 0; i < CELLS; ++i) {
+      signature[i] = 0;
+    }
+    for (int row = 0; row < SAMPLES_PER_SIDE; ++row) {
+      // Sample at the centers of a SAMPLES_PER_SIDE-square grid.
+      int offset = ((2 * row + 1) * frame.height / (2 * SAMPLES_PER_SIDE)) *
+          stride;
+      int cellRow = row / SAMPLES_PER_CELL * GRID;
+      for (int column = 0; column < SAMPLES_PER_SIDE; ++column) {
+        int x = (2 * column + 1) * frame.width / (2 * SAMPLES_PER_SIDE);
+        signature[cellRow + column / SAMPLES_PER_CELL] +=
+            y.get(offset + x) & 0xff;
+      }
+    }
+    for (int i = 0; i < CELLS; ++i) {
+      signature[i] /= SAMPLES_PER_CELL * SAMPLES_PER_CELL;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Uploads the planes of I420Frames to Y/U/V textures by way of OpenGL ES 3.0
+ * pixel buffer objects.  Consecutive frames alternate between two sets of
+ * PBOs, so that copying a frame into one set doesn't wait for the driver to
+ * finish DMA-ing the previous frame out of the other, and the DMA itself
+ * overlaps with drawing.  Padded strides are handled with
+ * GL_UNPACK_ROW_LENGTH, so planes are copied into the PBOs as-is.
+ *
+ * All methods must be called on the thread that owns the (ES 3.0) GL context.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class PixelBufferUploader {
+  // PBO ids and allocated sizes, indexed by [set * 3 + plane].
+  private final int[] buffers = new int[6];
+  private final int[] bufferSizes = new int[6];
+  private int nextSet = 0;
+
+  public PixelBufferUploader() {
+    GLES30.glGenBuffers(6, buffers, 0);
+  }
+
+  /**
+   * Upload |frame| to |textures|, whose storage must already have been
+   * allocated for |frame|'s dimensions.
+   */
+  public void upload(I420Frame frame, int[] textures) {
+    int set = nextSet;
+    nextSet = 1 - nextSet;
+    for (int i = 0; i < 3; ++i) {
+      int w = i == 0 ? frame.width : frame.width / 2;
+      int h = i == 0 ? frame.height : frame.height / 2;
+      int stride = frame.yuvStrides[i];
+      int size = stride * h;
+      int index = set * 3 + i;
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, buffers[index]);
+      if (bufferSizes[index] != size) {
+        GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null,
+            GLES30.GL_STREAM_DRAW);
+        bufferSizes[index] = size;
+      }
+      ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+          GLES30.GL_PIXEL_UNPACK_BUFFER, 0, size,
+          GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+      if (mapped == null) {
+        throw new RuntimeException("glMapBufferRange failed: " +
+            GLES30.glGetError());
+      }
+      ByteBuffer plane = frame.yuvPlanes[i];
+      plane.position(0);
+      plane.limit(size);
+      mapped.put(plane);
+      plane.clear();
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+
+      GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, stride);
+      GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + i);
+      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, textures[i]);
+      // With a PBO bound, a null pointer means "offset 0 into the PBO".  The
+      // Java bindings only accept null for glTexImage2D (not
+      // glTexSubImage2D), so this re-specifies storage of the same size.
+      GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_LUMINANCE, w, h,
+          0, GLES30.GL_LUMINANCE, GLES30.GL_UNSIGNED_BYTE, null);
+    }
+    GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+  }
+
+  /** Delete the PBOs; this object is unusable afterwards. */
+  public void release() {
+    GLES30.glDeleteBuffers(6, buffers, 0);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fishes an apprtc room's signaling parameters out of the room's HTML page.
+ * Only used when the room's JSON parameters can't be had (see AppRTCClient).
+ *
+ * Each pattern is compiled once and anchored to line starts, so a parse is a
+ * handful of linear scans of the page.  Has no Android dependencies.
+ */
+class RoomHtmlParser {
+  private static final Pattern TOKEN_PATTERN = Pattern.compile(
+      "^ *openChannel\\('([^']*)'\\);$", Pattern.MULTILINE);
+  private static final Pattern POST_MESSAGE_PATTERN = Pattern.compile(
+      "^ *path = '/(message\\?r=[0-9]+)' \\+ '(&u=[0-9]+)';$",
+      Pattern.MULTILINE);
+  private static final Pattern FULL_ROOM_PATTERN = Pattern.compile(
+      "^ *Sorry, this room is full\\.", Pattern.MULTILINE);
+  private static final Pattern PC_CONFIG_PATTERN = Pattern.compile(
+      "^ *var pc_config = (\\{[^\\n]*\\});$", Pattern.MULTILINE);
+
+  /** The parameters scraped from a room page, still in their raw form. */
+  public static class Parameters {
+    /** GAE channel token. */
+    public final String channelToken;
+    /** Path, relative to the room's base URL, to POST messages to. */
+    public final String postMessageUrl;
+    /** JSON RTCConfiguration holding the ICE servers. */
+    public final String pcConfig;
+
+    public Parameters(
+        String channelToken, String postMessageUrl, String pcConfig) {
+      this.channelToken = channelToken;
+      this.postMessageUrl = postMessageUrl;
+      this.pcConfig = pcConfig;
+    }
+  }
+
+  private RoomHtmlParser() {}
+
+  /**
+   * Parse |roomHtml|.  Throws RoomFullException if the room is full, and
+   * IOException if any parameter is missing or ambiguous.
+   */
+  public static Parameters parse(CharSequence roomHtml) throws IOException {
+    if (FULL_ROOM_PATTERN.matcher(roomHtml).find()) {
+      throw new RoomFullException();
+    }
+    MatchResult token = findOnce(TOKEN_PATTERN, roomHtml, "channel token");
+    MatchResult postMessage =
+        findOnce(POST_MESSAGE_PATTERN, roomHtml, "postMessage URL");
+    MatchResult pcConfig = findOnce(PC_CONFIG_PATTERN, roomHtml, "pc_config");
+    return new Parameters(token.group(1),
+        postMessage.group(1) + postMessage.group(2), pcConfig.group(1));
+  }
+
+  /** Thrown by parse() for a page saying the room is full. */
+  public static class RoomFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public RoomFullException() {
+      super("Room is full!");
+    }
+  }
+
+  // Return the only match of |pattern| in |html|; throw if there are none or
+  // several.
+  private static MatchResult findOnce(Pattern pattern, CharSequence html,
+      String what) throws IOException {
+    Matcher matcher = pattern.matcher(html);
+    if (!matcher.find()) {
+      throw new IOException("Missing " + what + " in HTML: " + html);
+    }
+    MatchResult match = matcher.toMatchResult();
+    if (matcher.find()) {
+      throw new IOException("Too many " + what + "s in HTML: " + html);
+    }
+    return match;
+  }
+}
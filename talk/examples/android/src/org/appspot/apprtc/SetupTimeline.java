@@ -0,0 +1,98 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Arrays;
+
+/**
+ * Records when each phase of setting up a call began and ended, relative to
+ * the timeline's creation, so time-to-first-frame can be broken down.
+ *
+ * Phases may overlap (local media is created while the room is being
+ * fetched) and may be skipped (e.g. REDIRECT when the room URL is given).
+ * Only the first begin() and end() of a phase count.
+ *
+ * Thread-safe.  Has no Android dependencies.
+ */
+class SetupTimeline {
+  public static enum Phase {
+    REDIRECT, ROOM_PARAMETERS, FACTORY, LOCAL_MEDIA, PEER_CONNECTION,
+    CHANNEL_OPEN, FIRST_LOCAL_FRAME, FIRST_REMOTE_FRAME
+  }
+
+  private static final int NUM_PHASES = Phase.values().length;
+  private final long startNs = System.nanoTime();
+  // Offsets from |startNs|, or -1 while not yet reached; only read/written
+  // under |this|'s lock.
+  private final long[] beganNs = new long[NUM_PHASES];
+  private final long[] endedNs = new long[NUM_PHASES];
+
+  public SetupTimeline() {
+    Arrays.fill(beganNs, -1);
+    Arrays.fill(endedNs, -1);
+  }
+
+  public synchronized void begin(Phase phase) {
+    if (beganNs[phase.ordinal()] == -1) {
+      beganNs[phase.ordinal()] = System.nanoTime() - startNs;
+    }
+  }
+
+  public synchronized void end(Phase phase) {
+    begin(phase);
+    if (endedNs[phase.ordinal()] == -1) {
+      endedNs[phase.ordinal()] = System.nanoTime() - startNs;
+    }
+  }
+
+  /** Record an instantaneous phase, e.g. FIRST_REMOTE_FRAME. */
+  public void mark(Phase phase) {
+    end(phase);
+  }
+
+  /** One line per phase reached: "PHASE: <begin>-<end>ms (<duration>ms)". */
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      long began = beganNs[phase.ordinal()];
+      long ended = endedNs[phase.ordinal()];
+      if (began == -1) {
+        continue;
+      }
+      builder.append(phase).append(": ").append(began / 1000000).append('-');
+      if (ended == -1) {
+        builder.append("...\n");
+      } else {
+        builder.append(ended / 1000000).append("ms (")
+            .append((ended - began) / 1000000).append("ms)\n");
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.json.JSONException;
+
+/**
+ * Encodes & decodes the handful of signaling messages exchanged with apprtc:
+ *   {"type": "candidate", "label": <int, or string holding one>,
+ *    "id": <string>, "candidate": <string>}
+ *   {"type": "offer" or "answer", "sdp": <string>}
+ *   {"type": "bye"}
+ *
+ * Unlike building & serializing a JSONObject, encoding appends straight into
+ * a StringBuilder reused across calls, and decoding scans the message once,
+ * filling in a Message reused across calls rather than building a tree.
+ * Unknown members are skipped; any other deviation from the shapes above is
+ * a JSONException.
+ *
+ * Not thread-safe: use an instance from one thread at a time.  Has no
+ * Android dependencies.
+ */
+class SignalingCodec {
+  public static enum Type { CANDIDATE, OFFER, ANSWER, BYE }
+
+  /**
+   * A decoded message; only the members of its |type| are meaningful.  Owned
+   * by the codec and overwritten by the next decode().
+   */
+  public static class Message {
+    public Type type;
+    public String sdpMid;  // "id"
+    public int sdpMLineIndex;  // "label"
+    public String candidate;
+    public String sdp;
+  }
+
+  private static final String HEX = "0123456789abcdef";
+  private final StringBuilder builder = new StringBuilder(4096);
+  private final StringBuilder scratch = new StringBuilder(256);
+  private final Message message = new Message();
+  // Decoder state.
+  private String data;
+  private int pos;
+
+  public String encodeCandidate(
+      String sdpMid, int sdpMLineIndex, String candidate) {
+    builder.setLength(0);
+    builder.append("{\"type\":\"candidate\",\"label\":").append(sdpMLineIndex)
+        .append(",\"id\":");
+    appendQuoted(sdpMid);
+    builder.append(",\"candidate\":");
+    appendQuoted(candidate);
+    return builder.append('}').toString();
+  }
+
+  /** |type| is "offer" or "answer". */
+  public String encodeSessionDescription(String type, String sdp) {
+    builder.setLength(0);
+    builder.append("{\"type\":");
+    appendQuoted(type);
+    builder.append(",\"sdp\":");
+    appendQuoted(sdp);
+    return builder.append('}').toString();
+  }
+
+  public String encodeBye() {
+    return "{\"type\":\"bye\"}";
+  }
+
+  /** Decode |data|; the result is valid until the next call. */
+  public Message decode(String data) throws JSONException {
+    this.data = data;
+    pos = 0;
+    String type = null;
+    boolean haveLabel = false;
+    message.sdpMid = null;
+    message.candidate = null;
+    message.sdp = null;
+    try {
+      expect('{');
+      if (peek() == '}') {
+        ++pos;
+      } else {
+        do {
+          readKey();
+          expect(':');
+          if (keyIs("type")) {
+            type = readString();
+          } else if (keyIs("label")) {
+            message.sdpMLineIndex = readInt();
+            haveLabel = true;
+          } else if (keyIs("id")) {
+            message.sdpMid = readString();
+          } else if (keyIs("candidate")) {
+            message.candidate = readString();
+          } else if (keyIs("sdp")) {
+            message.sdp = readString();
+          } else {
+            skipValue();
+          }
+        } while (nextMember());
+      }
+      if (peek() != -1) {
+        throw syntaxError("Trailing characters");
+      }
+    } finally {
+      this.data = null;
+    }
+
+    if ("candidate".equals(type) && haveLabel && message.sdpMid != null &&
+        message.candidate != null) {
+      message.type = Type.CANDIDATE;
+    } else if ("offer".equals(type) && message.sdp != null) {
+      message.type = Type.OFFER;
+    } else if ("answer".equals(type) && message.sdp != null) {
+      message.type = Type.ANSWER;
+    } else if ("bye".equals(type)) {
+      message.type = Type.BYE;
+    } else {
+      throw new JSONException("Unexpected message: " + data);
+    }
+    return message;
+  }
+
+  // Append |value| as a JSON string literal.
+  private void appendQuoted(String value) {
+    builder.append('"');
+    int length = value.length();
+    for (int i = 0; i < length; ++i) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"': builder.append("\\\""); break;
+        case '\\': builder.append("\\\\"); break;
+        case '\n': builder.append("\\n"); break;
+        case '\r': builder.append("\\r"); break;
+        case '\t': builder.append("\\t"); break;
+        default:
+          if (c < 0x20) {
+            builder.append("\\u00").append(HEX.charAt(c >> 4))
+                .append(HEX.charAt(c & 0xF));
+          } else {
+            builder.append(c);
+          }
+      }
+    }
+    builder.append('"');
+  }
+
+  // Skip whitespace and return the next character without consuming it, or
+  // -1 at the end.
+  private int peek() {
+    while (pos < data.length()) {
+      char c = data.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return c;
+      }
+      ++pos;
+    }
+    return -1;
+  }
+
+  private void expect(char c) throws JSONException {
+    if (peek() != c) {
+      throw syntaxError("Expected '" + c + "'");
+    }
+    ++pos;
+  }
+
+  // Consume the ',' or '}' after an object member; true if another follows.
+  private boolean nextMember() throws JSONException {
+    int c = peek();
+    ++pos;
+    if (c == ',') {
+      return true;
+    } else if (c == '}') {
+      return false;
+    }
+    throw syntaxError("Expected ',' or '}'");
+  }
+
+  // Read a member name into |scratch|.
+  private void readKey() throws JSONException {
+    expect('"');
+    scratch.setLength(0);
+    readStringBody(scratch);
+  }
+
+  private boolean keyIs(String name) {
+    int length = name.length();
+    if (scratch.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; ++i) {
+      if (scratch.charAt(i) != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Read a string value.  One without escapes is a single substring();
+  // otherwise it's unescaped through |scratch|.
+  private String readString() throws JSONException {
+    expect('"');
+    int start = pos;
+    while (pos < data.length()) {
+      char c = data.charAt(pos);
+      if (c == '"') {
+        return data.substring(start, pos++);
+      }
+      if (c == '\\') {
+        scratch.setLength(0);
+        scratch.append(data, start, pos);
+        readStringBody(scratch);
+        return scratch.toString();
+      }
+      ++pos;
+    }
+    throw syntaxError("Unterminated string");
+  }
+
+  // Append the rest of the string literal at |pos| to |out|, unescaped, and
+  // consume its closing quote.
+  private void readStringBody(StringBuilder out) throws JSONException {
+    while (pos < data.length()) {
+      char c = data.charAt(pos++);
+      if (c == '"') {
+        return;
+      }
+      if (c != '\\') {
+        out.append(c);
+        continue;
+      }
+      if (pos >= data.length()) {
+        break;
+      }
+      c = data.charAt(pos++);
+      switch (c) {
+        case '"': case '\\': case '/': out.append(c); break;
+        case 'b': out.append('\b'); break;
+        case 'f': out.append('\f'); break;
+        case 'n': out.append('\n'); break;
+        case 'r': out.append('\r'); break;
+        case 't': out.append('\t'); break;
+        case 'u':
+          if (pos + 4 > data.length()) {
+            throw syntaxError("Truncated \\u escape");
+          }
+          int code = 0;
+          for (int i = 0; i < 4; ++i) {
+            int digit = Character.digit(data.charAt(pos++), 16);
+            if (digit < 0) {
+              throw syntaxError("Bad \\u escape");
+            }
+            code = (code << 4) | digit;
+          }
+          out.append((char) code);
+          break;
+        default:
+          throw syntaxError("Bad escape");
+      }
+    }
+    throw syntaxError("Unterminated string");
+  }
+
+  // Read an int, or a string holding one: JSONObject.getInt() accepts both,
+  // and some signaling servers quote "label".
+  private int readInt() throws JSONException {
+    if (peek() == '"') {
+      ++pos;
+      scratch.setLength(0);
+      readStringBody(scratch);
+      try {
+        return Integer.parseInt(scratch.toString());
+      } catch (NumberFormatException e) {
+        throw syntaxError("Expected an int");
+      }
+    }
+    int start = pos;
+    if (pos < data.length() && data.charAt(pos) == '-') {
+      ++pos;
+    }
+    long value = 0;
+    while (pos < data.length() && data.charAt(pos) >= '0' &&
+        data.charAt(pos) <= '9' && value <= Integer.MAX_VALUE) {
+      value = value * 10 + (data.charAt(pos++) - '0');
+    }
+    if (pos == start || (data.charAt(start) == '-' && pos == start + 1) ||
+        value > Integer.MAX_VALUE) {
+      throw syntaxError("Expected an int");
+    }
+    return (int) (data.charAt(start) == '-' ? -value : value);
+  }
+
+  // Skip a value of any type, including nested objects & arrays.
+  private void skipValue() throws JSONException {
+    int c = peek();
+    if (c == '"') {
+      ++pos;
+      scratch.setLength(0);
+      readStringBody(scratch);
+      return;
+    }
+    if (c == '{' || c == '[') {
+      int depth = 0;
+      do {
+        c = peek();
+        if (c == '"') {
+          ++pos;
+          scratch.setLength(0);
+          readStringBody(scratch);
+          continue;
+        }
+        if (c == -1) {
+          throw syntaxError("Unterminated value");
+        }
+        if (c == '{' || c == '[') {
+          ++depth;
+        } else if (c == '}' || c == ']') {
+          --depth;
+        }
+        ++pos;
+      } while (depth > 0);
+      return;
+    }
+    // A number, true, false or null: runs to the next delimiter.
+    int start = pos;
+    while (pos < data.length() && ",}] \t\n\r".indexOf(data.charAt(pos)) < 0) {
+      ++pos;
+    }
+    if (pos == start) {
+      throw syntaxError("Expected a value");
+    }
+  }
+
+  private JSONException syntaxError(String what) {
+    return new JSONException(what + " at " + pos + " of: " + data);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Delivers signaling messages through a SignalingTransport from a single
+ * long-lived thread.
+ *
+ * Messages are delivered in the order send() was called, each at least once
+ * (a message whose acknowledgement is lost is re-sent).  Messages sent before
+ * the transport is known are held until setTransport().  The sender thread
+ * sleeps until there's something to deliver and then takes everything queued
+ * at once, so a burst of send() calls costs one wakeup, not one per message.
+ * Requests that fail with an I/O error or a 5xx response are retried with
+ * exponential backoff; once a message fails MAX_ATTEMPTS times it and
+ * everything queued with it are dropped and the ErrorHandler is told.
+ * Messages the server rejects outright (any other status, e.g. a 4xx) would
+ * only be rejected again, so they're dropped (and the ErrorHandler told)
+ * right away, and delivery moves on to the next.  At most MAX_QUEUED_MESSAGES
+ * can be waiting, beyond which send() blocks.
+ *
+ * Has no Android dependencies.
+ */
+class SignalingSender {
+  /**
+   * Told of messages that couldn't be delivered; called on the sender thread.
+   */
+  public interface ErrorHandler {
+    public void onSendFailed(String message, IOException e);
+  }
+
+  private static final int MAX_QUEUED_MESSAGES = 256;
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MS = 250;
+  private static final long MAX_BACKOFF_MS = 4000;
+  // Queued by close(); compared by identity so no message can be mistaken for
+  // it.  A send() racing with close() can still queue its message behind it;
+  // such messages are dropped.
+  private static final String CLOSE = new String("CLOSE");
+
+  private final BlockingQueue<String> queue =
+      new LinkedBlockingQueue<String>(MAX_QUEUED_MESSAGES);
+  private final ErrorHandler errorHandler;
+  private final Thread thread;
+  // These members are only read/written under |this|'s lock.
+  private SignalingTransport transport;
+  private boolean closed = false;
+
+  /** Start the sender thread. */
+  public SignalingSender(ErrorHandler errorHandler) {
+    this.errorHandler = errorHandler;
+    thread = new Thread(new Runnable() {
+        public void run() {
+          runSenderLoop();
+        }
+      }, "SignalingSender");
+    thread.start();
+  }
+
+  /** Start delivering queued & future messages through |transport|. */
+  public synchronized void setTransport(SignalingTransport transport) {
+    this.transport = transport;
+    notifyAll();
+  }
+
+  /**
+   * Queue |message| for delivery, blocking while the queue is full.  Ignored
+   * after close().
+   */
+  public void send(String message) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+    }
+    try {
+      queue.put(message);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Stop the sender thread once it has delivered (or given up on) the messages
+   * already queued.  Messages queued before a transport was set are dropped.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    if (!queue.offer(CLOSE)) {
+      // No room to queue CLOSE behind the backlog; give up on the backlog.
+      thread.interrupt();
+    }
+  }
+
+  private void runSenderLoop() {
+    List<String> batch = new ArrayList<String>();
+    try {
+      SignalingTransport transport = awaitTransport();
+      if (transport == null) {
+        return;
+      }
+      boolean closing = false;
+      while (!closing) {
+        batch.add(queue.take());
+        queue.drainTo(batch);
+        for (int i = 0; i < batch.size(); ++i) {
+          if (batch.get(i) == CLOSE) {
+            // Deliver what was queued before close(), and nothing after.
+            batch.subList(i, batch.size()).clear();
+            closing = true;
+            break;
+          }
+        }
+        deliver(transport, batch);
+      }
+    } catch (InterruptedException e) {
+      // close() couldn't queue CLOSE; drop whatever is left.
+    }
+  }
+
+  // Return the transport once set, or null if closed first.
+  private synchronized SignalingTransport awaitTransport()
+      throws InterruptedException {
+    while (transport == null && !closed) {
+      wait();
+    }
+    return transport;
+  }
+
+  // Post all of |batch| (emptying it), retrying failures with backoff and
+  // dropping what the server rejects.
+  private void deliver(SignalingTransport transport, List<String> batch)
+      throws InterruptedException {
+    long backoffMs = INITIAL_BACKOFF_MS;
+    int attempts = 0;
+    while (!batch.isEmpty()) {
+      int remaining = batch.size();
+      try {
+        transport.post(batch);
+      } catch (IOException e) {
+        // Progress earns the next message a fresh set of attempts.
+        if (batch.size() < remaining) {
+          attempts = 0;
+          backoffMs = INITIAL_BACKOFF_MS;
+        }
+        int rejected = rejectedMessageCount(e);
+        if (rejected > 0) {
+          for (String message : batch.subList(0, rejected)) {
+            errorHandler.onSendFailed(message, e);
+          }
+          batch.subList(0, rejected).clear();
+          attempts = 0;
+          backoffMs = INITIAL_BACKOFF_MS;
+          continue;
+        }
+        if (++attempts == MAX_ATTEMPTS) {
+          errorHandler.onSendFailed(batch.get(0), e);
+          batch.clear();
+          return;
+        }
+        Thread.sleep(backoffMs);
+        backoffMs = Math.min(2 * backoffMs, MAX_BACKOFF_MS);
+      }
+    }
+  }
+
+  // Return how many messages the server rejected for good in failing with
+  // |e|, or 0 if the request is worth retrying.
+  private static int rejectedMessageCount(IOException e) {
+    if (!(e instanceof SignalingTransport.StatusException)) {
+      return 0;
+    }
+    SignalingTransport.StatusException status =
+        (SignalingTransport.StatusException) e;
+    return status.isRetryable() ? 0 : status.messageCount;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * POSTs signaling messages to a fixed URL, reusing connections across
+ * requests.
+ *
+ * HttpURLConnection keeps idle connections alive for reuse, but only once the
+ * previous response has been read to the end and closed, and not after
+ * disconnect(); every request here ends that way so that a burst of messages
+ * (e.g. trickled ICE candidates) shares one connection (and, for https, one
+ * TLS handshake) instead of paying for a new one each.
+ *
+ * Optionally several messages can be sent per request, as a JSON array, for
+ * servers that accept that.  Has no Android dependencies.
+ */
+class SignalingTransport {
+  /**
+   * Thrown by post() when the server answers a request with anything but 200,
+   * leaving the request's messages unacknowledged.
+   */
+  public static class StatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** HTTP status code of the response. */
+    public final int code;
+    /** Number of messages the rejected request carried. */
+    public final int messageCount;
+
+    public StatusException(String detail, int code, int messageCount) {
+      super(detail);
+      this.code = code;
+      this.messageCount = messageCount;
+    }
+
+    /** Whether the same request might succeed if tried again later. */
+    public boolean isRetryable() {
+      return code >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+  }
+
+  private final URL url;
+  private final int maxMessagesPerPost;
+
+  /**
+   * Post messages to |url|, at most |maxMessagesPerPost| per request; 1 means
+   * each message is the entire body of its own request, as apprtc expects.
+   */
+  public SignalingTransport(URL url, int maxMessagesPerPost) {
+    if (maxMessagesPerPost < 1) {
+      throw new IllegalArgumentException(
+          "Bad maxMessagesPerPost: " + maxMessagesPerPost);
+    }
+    this.url = url;
+    this.maxMessagesPerPost = maxMessagesPerPost;
+  }
+
+  /**
+   * Send |messages|, in order, removing each from the list once the server has
+   * acknowledged it.  Throws if a request fails, leaving |messages| holding
+   * the ones not yet acknowledged (the first of which may or may not have
+   * reached the server); a StatusException if the server answered it.
+   */
+  public void post(List<String> messages) throws IOException {
+    while (!messages.isEmpty()) {
+      int end = Math.min(maxMessagesPerPost, messages.size());
+      post(maxMessagesPerPost == 1 ?
+          messages.get(0) : toJSONArray(messages, 0, end), end);
+      messages.subList(0, end).clear();
+    }
+  }
+
+  // Send |body|, holding |messageCount| messages, as a single request.
+  private void post(String body, int messageCount) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    HttpURLConnection connection =
+        (HttpURLConnection) url.openConnection();
+    connection.setDoOutput(true);
+    OutputStream out = connection.getOutputStream();
+    out.write(bytes);
+    out.close();
+    int code = connection.getResponseCode();
+    InputStream in = code < HttpURLConnection.HTTP_BAD_REQUEST ?
+        connection.getInputStream() : connection.getErrorStream();
+    drainAndClose(in);
+    if (code != HttpURLConnection.HTTP_OK) {
+      throw new StatusException("Non-200 response to POST: " + code + " " +
+          connection.getResponseMessage() + " for msg: " + body, code,
+          messageCount);
+    }
+  }
+
+  // Join |messages[start, end)|, each already a serialized JSON value, into a
+  // JSON array.
+  private static String toJSONArray(List<String> messages, int start,
+      int end) {
+    StringBuilder array = new StringBuilder("[");
+    for (int i = start; i < end; ++i) {
+      if (i > start) {
+        array.append(',');
+      }
+      array.append(messages.get(i));
+    }
+    return array.append(']').toString();
+  }
+
+  // Read |in| (which may be null) to the end and close it, returning its
+  // connection to the keep-alive pool.
+  private static void drainAndClose(InputStream in) throws IOException {
+    if (in == null) {
+      return;
+    }
+    try {
+      byte[] buffer = new byte[1024];
+      while (in.read(buffer) != -1) {
+        // Discard; apprtc's responses carry nothing of interest.
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.StatsReport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Turns successive PeerConnection.getStats() results into per-stream time
+ * series of the rates and levels that matter for call quality.
+ *
+ * Each "ssrc" report (one per sent or received audio/video stream) and the
+ * "VideoBwe" report (bandwidth estimates) gets a Series holding the last
+ * |capacity| samples in primitive ring buffers.
+ * Rates are computed from the difference between a report's cumulative
+ * counters and the previous report's, as reports arrive; nothing is kept of
+ * a report beyond its counters.  Once a stream's Series exists, update()
+ * allocates nothing, so getStats() can be polled every second without adding
+ * to GC pressure.
+ *
+ * update() may be called on any one thread at a time; the Series may be read
+ * concurrently from any thread.  Has no Android dependencies.
+ */
+class StatsEngine {
+  /** What's sampled.  Values are NaN when a report lacks what's needed. */
+  public static enum Metric {
+    BITRATE_BPS,  // From bytesSent/bytesReceived.
+    PACKET_LOSS_PERCENT,  // Of packets sent, or expected to be received.
+    JITTER_MS,  // googJitterReceived.
+    RTT_MS,  // googRtt.
+    FRAME_RATE,  // googFrameRateDecoded, else googFrameRate{Sent,Received}.
+    ENCODE_MS,  // googAvgEncodeMs.
+    CPU_LIMITED,  // googCpuLimitedResolution, as 1 or 0.
+    AVAILABLE_SEND_BPS  // googAvailableSendBandwidth, of the "VideoBwe" report.
+  }
+
+  private static final int NUM_METRICS = Metric.values().length;
+
+  /** Samples of one stream, oldest first. */
+  public static class Series {
+    private final String id;
+    private final boolean send;
+    // Rings of |capacity| samples, |size| of them starting at |start|;
+    // |values| holds NUM_METRICS doubles per sample.  Guarded by |this|.
+    private final long[] timestampsMs;
+    private final double[] values;
+    private int start = 0;
+    private int size = 0;
+    // The previous report's cumulative counters, or -1.  Only touched by the
+    // updating thread.
+    private long lastTimestampMs = -1;
+    private long lastBytes = -1;
+    private long lastPackets = -1;
+    private long lastPacketsLost = -1;
+
+    private Series(String id, int capacity) {
+      this.id = id;
+      this.send = id.endsWith("_send");
+      this.timestampsMs = new long[capacity];
+      this.values = new double[capacity * NUM_METRICS];
+    }
+
+    /**
+     * The id of the reports sampled, e.g. "ssrc_1234567890_recv" or
+     * "bweforvideo".
+     */
+    public String getId() {
+      return id;
+    }
+
+    /** Whether this is a stream being sent (vs received). */
+    public boolean isSend() {
+      return send;
+    }
+
+    public synchronized int size() {
+      return size;
+    }
+
+    /** Timestamp of sample |i|, 0 being the oldest retained. */
+    public synchronized long getTimestampMs(int i) {
+      return timestampsMs[slot(i)];
+    }
+
+    public synchronized double get(Metric metric, int i) {
+      return values[slot(i) * NUM_METRICS + metric.ordinal()];
+    }
+
+    /** The most recent sample of |metric|, or NaN if there's none. */
+    public synchronized double getLatest(Metric metric) {
+      return size == 0 ? Double.NaN : get(metric, size - 1);
+    }
+
+    /**
+     * Copy up to |timestampsMs.length| of the newest samples of |metric|,
+     * oldest first, into the caller's arrays (|values| must be at least as
+     * long) and return how many were copied.
+     */
+    public synchronized int copyTo(
+        Metric metric, long[] timestampsMs, double[] values) {
+      int count = Math.min(size, timestampsMs.length);
+      for (int i = 0; i < count; ++i) {
+        int slot = slot(size - count + i);
+        timestampsMs[i] = this.timestampsMs[slot];
+        values[i] = this.values[slot * NUM_METRICS + metric.ordinal()];
+      }
+      return count;
+    }
+
+    private int slot(int i) {
+      if (i < 0 || i >= size) {
+        throw new IndexOutOfBoundsException(i + " of " + size);
+      }
+      return (start + i) % timestampsMs.length;
+    }
+
+    // Sample |report|, which must have this Series' id.
+    private void add(StatsReport report) {
+      long timestampMs = (long) report.timestamp;
+      if (timestampMs <= lastTimestampMs) {
+        return;  // Polled faster than the stats were refreshed.
+      }
+      long bytes = -1;
+      long packets = -1;
+      long packetsLost = -1;
+      double jitterMs = Double.NaN;
+      double rttMs = Double.NaN;
+      double decodedFrameRate = Double.NaN;
+      double frameRate = Double.NaN;
+      double encodeMs = Double.NaN;
+      double cpuLimited = Double.NaN;
+      double availableSendBps = Double.NaN;
+      for (StatsReport.Value value : report.values) {
+        String name = value.name;
+        if (name.equals("bytesSent") || name.equals("bytesReceived")) {
+          bytes = parseCount(value.value);
+        } else if (name.equals("packetsSent") ||
+            name.equals("packetsReceived")) {
+          packets = parseCount(value.value);
+        } else if (name.equals("packetsLost")) {
+          packetsLost = parseCount(value.value);
+        } else if (name.equals("googJitterReceived")) {
+          jitterMs = toLevel(parseCount(value.value));
+        } else if (name.equals("googRtt")) {
+          rttMs = toLevel(parseCount(value.value));
+        } else if (name.equals("googFrameRateDecoded")) {
+          decodedFrameRate = toLevel(parseCount(value.value));
+        } else if (name.equals("googFrameRateSent") ||
+            name.equals("googFrameRateReceived")) {
+          frameRate = toLevel(parseCount(value.value));
+        } else if (name.equals("googAvgEncodeMs")) {
+          encodeMs = toLevel(parseCount(value.value));
+        } else if (name.equals("googCpuLimitedResolution")) {
+          cpuLimited = value.value.equals("true") ? 1 : 0;
+        } else if (name.equals("googAvailableSendBandwidth")) {
+          availableSendBps = toLevel(parseCount(value.value));
+        }
+      }
+
+      double bitrateBps = Double.NaN;
+      double packetLossPercent = Double.NaN;
+      if (lastTimestampMs != -1) {
+        long elapsedMs = timestampMs - lastTimestampMs;
+        // Counters going backwards means the stream restarted; skip a sample.
+        if (bytes >= 0 && lastBytes >= 0 && bytes >= lastBytes) {
+          bitrateBps = (bytes - lastBytes) * 8000.0 / elapsedMs;
+        }
+        if (packets >= 0 && lastPackets >= 0 && packets >= lastPackets &&
+            packetsLost >= 0 && lastPacketsLost >= 0 &&
+            packetsLost >= lastPacketsLost) {
+          long lost = packetsLost - lastPacketsLost;
+          // Senders learn of losses among the packets they sent; receivers
+          // only see the packets that arrived.
+          long expected = (packets - lastPackets) + (send ? 0 : lost);
+          if (expected > 0) {
+            packetLossPercent = 100.0 * lost / expected;
+          }
+        }
+      }
+      lastTimestampMs = timestampMs;
+      lastBytes = bytes;
+      lastPackets = packets;
+      lastPacketsLost = packetsLost;
+
+      synchronized (this) {
+        int capacity = timestampsMs.length;
+        int slot = (start + size) % capacity;
+        if (size == capacity) {
+          start = (start + 1) % capacity;
+        } else {
+          ++size;
+        }
+        timestampsMs[slot] = timestampMs;
+        int base = slot * NUM_METRICS;
+        values[base + Metric.BITRATE_BPS.ordinal()] = bitrateBps;
+        values[base + Metric.PACKET_LOSS_PERCENT.ordinal()] =
+            packetLossPercent;
+        values[base + Metric.JITTER_MS.ordinal()] = jitterMs;
+        values[base + Metric.RTT_MS.ordinal()] = rttMs;
+        values[base + Metric.FRAME_RATE.ordinal()] =
+            Double.isNaN(decodedFrameRate) ? frameRate : decodedFrameRate;
+        values[base + Metric.ENCODE_MS.ordinal()] = encodeMs;
+        values[base + Metric.CPU_LIMITED.ordinal()] = cpuLimited;
+        values[base + Metric.AVAILABLE_SEND_BPS.ordinal()] = availableSendBps;
+      }
+    }
+  }
+
+  private final int capacity;
+  // Appended to, never removed from, so indices are stable.  Copy-on-write so
+  // readers needn't lock.
+  private volatile Series[] series = new Series[0];
+  private final HashMap<String, Series> seriesById =
+      new HashMap<String, Series>();  // Updating thread only.
+
+  /** Keep the last |capacity| samples of each stream. */
+  public StatsEngine(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Bad capacity: " + capacity);
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Sample the "ssrc" and "VideoBwe" reports among |reports|, one getStats()
+   * result.
+   */
+  public void update(StatsReport[] reports) {
+    for (StatsReport report : reports) {
+      if (!report.type.equals("ssrc") && !report.type.equals("VideoBwe")) {
+        continue;
+      }
+      Series reportSeries = seriesById.get(report.id);
+      if (reportSeries == null) {
+        reportSeries = new Series(report.id, capacity);
+        seriesById.put(report.id, reportSeries);
+        Series[] newSeries = Arrays.copyOf(series, series.length + 1);
+        newSeries[series.length] = reportSeries;
+        series = newSeries;
+      }
+      reportSeries.add(report);
+    }
+  }
+
+  public int getSeriesCount() {
+    return series.length;
+  }
+
+  /** The |i|th stream seen, in order of first appearance. */
+  public Series getSeries(int i) {
+    return series[i];
+  }
+
+  /** One line per stream with its latest sample of each Metric. */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Series stream : series) {
+      builder.append(stream.getId()).append(':');
+      for (Metric metric : Metric.values()) {
+        double value = stream.getLatest(metric);
+        if (!Double.isNaN(value)) {
+          builder.append(' ').append(metric).append('=')
+              .append(Math.round(value * 10) / 10.0);
+        }
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  // Parse a non-negative decimal integer (ignoring any fraction), or return -1
+  // if |value| isn't one.  Unlike Long.parseLong() this never throws, as stats
+  // values are sometimes empty or "-1".
+  private static long parseCount(String value) {
+    int length = value.length();
+    long result = 0;
+    int i = 0;
+    for (; i < length; ++i) {
+      char c = value.charAt(i);
+      if (c == '.' && i > 0) {
+        break;
+      }
+      if (c < '0' || c > '9' || result > Long.MAX_VALUE / 10 - 1) {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return i == 0 ? -1 : result;
+  }
+
+  private static double toLevel(long count) {
+    return count < 0 ? Double.NaN : count;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Decides where on screen each of a number of video streams is drawn.  Tiles
+ * are produced as normalized-device-coordinate quads, four (X,Y) vertices per
+ * tile in GL_TRIANGLE_STRIP order (top-left, bottom-left, top-right,
+ * bottom-right), in back-to-front drawing order.  Only as many streams as a
+ * mode has room for get a tile; the rest are not visible.
+ *
+ * This class has no Android dependencies and no state.
+ */
+class TileLayout {
+  /** Arrangement of the tiles on screen. */
+  public static enum Mode {
+    /** Equal-sized tiles in a near-square grid, in stream order. */
+    GRID,
+    /** The focused stream large on top, the others in a strip below it. */
+    SPEAKER,
+    /**
+     * The focused stream full-screen, the others as thumbnails stacked down
+     * its top-right corner.
+     */
+    PICTURE_IN_PICTURE
+  };
+
+  /** Upper bound on the number of tiles any mode produces. */
+  public static final int MAX_TILES = 9;
+  /** Number of floats describing a single tile. */
+  public static final int FLOATS_PER_TILE = 8;
+
+  private static final int MAX_STRIP_TILES = 4;
+  private static final int MAX_THUMBNAILS = 4;
+  // Fraction of the screen's height given to the SPEAKER strip.
+  private static final float STRIP_HEIGHT = 0.25f;
+  // Size of, and gap between, PICTURE_IN_PICTURE thumbnails, in NDC units.
+  private static final float THUMBNAIL_SIZE = 0.3f;
+  private static final float THUMBNAIL_MARGIN = 0.1f;
+
+  private TileLayout() {}
+
+  /**
+   * Lay out |numStreams| streams, of which the one at index |focus| is
+   * featured by the SPEAKER & PICTURE_IN_PICTURE modes.  Fills |tileStreams|
+   * with the stream index shown by each tile and |vertices| with the tiles'
+   * quads (see class comment); both must have room for MAX_TILES tiles.
+   * Returns the number of tiles.
+   */
+  public static int layout(Mode mode, int numStreams, int focus,
+      int[] tileStreams, float[] vertices) {
+    if (numStreams == 0) {
+      return 0;
+    }
+    if (focus < 0 || focus >= numStreams) {
+      focus = 0;
+    }
+    switch (mode) {
+      case GRID:
+        return layoutGrid(numStreams, tileStreams, vertices);
+      case SPEAKER:
+        return layoutSpeaker(numStreams, focus, tileStreams, vertices);
+      case PICTURE_IN_PICTURE:
+        return layoutPictureInPicture(
+            numStreams, focus, tileStreams, vertices);
+      default:
+        throw new IllegalArgumentException("Unknown mode: " + mode);
+    }
+  }
+
+  private static int layoutGrid(
+      int numStreams, int[] tileStreams, float[] vertices) {
+    int numTiles = Math.min(numStreams, MAX_TILES);
+    int columns = (int) Math.ceil(Math.sqrt(numTiles));
+    int rows = (numTiles + columns - 1) / columns;
+    float width = 2f / columns;
+    float height = 2f / rows;
+    for (int i = 0; i < numTiles; ++i) {
+      float left = -1 + (i % columns) * width;
+      float top = 1 - (i / columns) * height;
+      tileStreams[i] = i;
+      putTile(vertices, i, left, top, left + width, top - height);
+    }
+    return numTiles;
+  }
+
+  private static int layoutSpeaker(
+      int numStreams, int focus, int[] tileStreams, float[] vertices) {
+    float stripTop = -1 + 2 * STRIP_HEIGHT;
+    tileStreams[0] = focus;
+    putTile(vertices, 0, -1, 1, 1, numStreams == 1 ? -1 : stripTop);
+    int numOthers = Math.min(numStreams - 1, MAX_STRIP_TILES);
+    float width = numOthers == 0 ? 0 : 2f / numOthers;
+    for (int i = 0; i < numOthers; ++i) {
+      float left = -1 + i * width;
+      tileStreams[i + 1] = otherStream(i, focus);
+      putTile(vertices, i + 1, left, stripTop, left + width, -1);
+    }
+    return numOthers + 1;
+  }
+
+  private static int layoutPictureInPicture(
+      int numStreams, int focus, int[] tileStreams, float[] vertices) {
+    tileStreams[0] = focus;
+    putTile(vertices, 0, -1, 1, 1, -1);
+    int numOthers = Math.min(numStreams - 1, MAX_THUMBNAILS);
+    float right = 1 - THUMBNAIL_MARGIN;
+    float left = right - THUMBNAIL_SIZE;
+    for (int i = 0; i < numOthers; ++i) {
+      float top = 1 - THUMBNAIL_MARGIN -
+          i * (THUMBNAIL_SIZE + THUMBNAIL_MARGIN / 2);
+      tileStreams[i + 1] = otherStream(i, focus);
+      putTile(vertices, i + 1, left, top, right, top - THUMBNAIL_SIZE);
+    }
+    return numOthers + 1;
+  }
+
+  // Return the index of the |i|th stream other than |focus|.
+  private static int otherStream(int i, int focus) {
+    return i < focus ? i : i + 1;
+  }
+
+  private static void putTile(float[] vertices, int tile,
+      float left, float top, float right, float bottom) {
+    int i = tile * FLOATS_PER_TILE;
+    vertices[i++] = left;
+    vertices[i++] = top;
+    vertices[i++] = left;
+    vertices[i++] = bottom;
+    vertices[i++] = right;
+    vertices[i++] = top;
+    vertices[i++] = right;
+    vertices[i] = bottom;
+  }
+}
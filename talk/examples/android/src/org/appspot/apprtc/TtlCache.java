@@ -0,0 +1,106 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.HashMap;
+
+/**
+ * Map whose entries expire a fixed time after they're put.
+ *
+ * Thread-safe.  Has no Android dependencies.
+ */
+class TtlCache<K, V> {
+  /** Source of the current time, in milliseconds; replaceable by tests. */
+  static interface Clock {
+    long nowMs();
+  }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+      public long nowMs() {
+        return System.nanoTime() / 1000000;
+      }
+    };
+
+  private static class Entry<V> {
+    public final V value;
+    public final long expiresAtMs;
+    public Entry(V value, long nowMs, long ttlMs) {
+      this.value = value;
+      this.expiresAtMs = nowMs + ttlMs;
+    }
+  }
+
+  private final long defaultTtlMs;
+  private final Clock clock;
+  // Only read/written under |this|'s lock.
+  private final HashMap<K, Entry<V>> entries = new HashMap<K, Entry<V>>();
+
+  public TtlCache(long defaultTtlMs) {
+    this(defaultTtlMs, SYSTEM_CLOCK);
+  }
+
+  TtlCache(long defaultTtlMs, Clock clock) {
+    if (defaultTtlMs <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.defaultTtlMs = defaultTtlMs;
+    this.clock = clock;
+  }
+
+  /** Return the unexpired value for |key|, or null. */
+  public synchronized V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (clock.nowMs() >= entry.expiresAtMs) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  /** Cache |value| for |key| for the default TTL. */
+  public void put(K key, V value) {
+    put(key, value, defaultTtlMs);
+  }
+
+  /** Cache |value| for |key| for |ttlMs|, replacing any previous value. */
+  public synchronized void put(K key, V value, long ttlMs) {
+    if (ttlMs <= 0) {
+      entries.remove(key);
+      return;
+    }
+    entries.put(key, new Entry<V>(value, clock.nowMs(), ttlMs));
+  }
+
+  /** Forget any value for |key|. */
+  public synchronized void invalidate(K key) {
+    entries.remove(key);
+  }
+}
@@ -27,103 +27,575 @@
 
 package org.appspot.apprtc;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Point;
-import android.graphics.Rect;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.util.Log;
+import android.os.Build;
+import android.view.Choreographer;
 
 import org.webrtc.VideoRenderer.I420Frame;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.EnumMap;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 /**
- * A GLSurfaceView{,.Renderer} that efficiently renders YUV frames from local &
- * remote VideoTracks using the GPU for CSC.  Clients will want to call the
- * constructor, setSize() and updateFrame() as appropriate, but none of the
- * other public methods of this class are of interest to clients (only to system
- * classes).
+ * A GLSurfaceView{,.Renderer} that efficiently renders YUV frames from any
+ * number of local & remote VideoTracks using the GPU for CSC, composited into
+ * tiles by TileLayout.  Clients will want to call the constructor, addStream()
+ * & removeStream() as tracks come and go, and setSize() and queueFrame() as
+ * appropriate, but none of the other public methods of this class are of
+ * interest to clients (only to system classes).
+ *
+ * Queued frames only mark the view dirty; the actual upload & composite of all
+ * streams happens at most once per display refresh, so frames arriving within
+ * the same vsync interval cost one draw between them.
  */
 public class VideoStreamsView
     extends GLSurfaceView
     implements GLSurfaceView.Renderer {
 
-  /** Identify which of the two video streams is being addressed. */
-  public static enum Endpoint { LOCAL, REMOTE };
+  /** How queueFrame() hands frames over to the render thread. */
+  public static enum FrameHandoff {
+    /** Copy every frame into a pooled frame and return immediately. */
+    COPY,
+    /**
+     * Lend the caller's frame to the render thread and block until it has
+     * been uploaded, avoiding the copy.  Falls back to COPY for any frame the
+     * render thread doesn't pick up within BORROW_TIMEOUT_MS.
+     */
+    BORROW
+  };
+
+  /** Stages of the render pipeline whose latency is tracked per stream. */
+  public static enum LatencyStage {
+    /** From queueFrame() to the start of the frame's upload. */
+    QUEUE_TO_UPLOAD,
+    /** Time spent uploading a frame to its textures. */
+    UPLOAD,
+    /**
+     * Time spent issuing a tile's draw; excludes the GPU's own execution,
+     * which is asynchronous.
+     */
+    DRAW,
+    /**
+     * Interval between successive composites showing a new frame of the
+     * stream; its spread is the stream's display jitter.
+     */
+    PRESENT_INTERVAL
+  };
+
+  /** How the Y, U & V planes of each stream are laid out in textures. */
+  public static enum TextureLayout {
+    /** One luminance texture per plane. */
+    PLANAR,
+    /**
+     * A single luminance texture holding the Y plane with the U & V planes
+     * side by side below it, so each frame takes one upload and each draw one
+     * texture bind instead of three.
+     */
+    PACKED
+  };
+
+  // Attribute locations, bound explicitly so both programs share them.
+  private static final int POS_ATTRIB = 0;
+  private static final int TC_ATTRIB = 1;
+
+  // How long queueFrame() waits for the render thread to start uploading a
+  // borrowed frame before copying it instead.
+  private static final long BORROW_TIMEOUT_MS = 20;
+
+  // Local streams whose tile covers less than this fraction of the surface
+  // show only every THUMBNAIL_FRAME_INTERVAL-th frame.
+  private static final float THUMBNAIL_AREA_FRACTION = 1 / 9f;
+  private static final int THUMBNAIL_FRAME_INTERVAL = 2;
 
-  private final static String TAG = "VideoStreamsView";
-  private EnumMap<Endpoint, Rect> rects =
-      new EnumMap<Endpoint, Rect>(Endpoint.class);
   private Point screenDimensions;
-  // [0] are local Y,U,V, [1] are remote Y,U,V.
-  private int[][] yuvTextures = { { -1, -1, -1}, {-1, -1, -1 }};
-  private int posLocation = -1;
-  private long lastFPSLogTime = System.nanoTime();
-  private long numFramesSinceLastLog = 0;
+  // Streams in the order they were added.  Copy-on-write so the render thread
+  // can iterate without locking; writers synchronize on |streamsLock|.
+  private volatile Stream[] streams = new Stream[0];
+  private final Object streamsLock = new Object();
+  private volatile TileLayout.Mode layoutMode =
+      TileLayout.Mode.PICTURE_IN_PICTURE;
+  private volatile Stream focusedStream;
+  // Bumped whenever the tiles need recomputing; see maybeLayOutTiles().
+  private final AtomicInteger layoutGeneration = new AtomicInteger();
+  // Result of the last layout; render thread only.  Tile i is drawn from
+  // vertices [4 * i, 4 * i + 4) of |tileVertices|.
+  private int laidOutGeneration = -1;
+  private int numTiles = 0;
+  private final Stream[] tileStreams = new Stream[TileLayout.MAX_TILES];
+  private final int[] tileIndices = new int[TileLayout.MAX_TILES];
+  private final float[] tileCoordinates =
+      new float[TileLayout.MAX_TILES * TileLayout.FLOATS_PER_TILE];
+  private final FloatBuffer tileVertices =
+      directNativeFloatBuffer(tileCoordinates);
+  // Size of the surface the tiles are laid out on; render thread only.
+  private int surfaceWidth = 0;
+  private int surfaceHeight = 0;
+  // Programs for TextureLayout.PLANAR & PACKED, the packed program's uniform
+  // locations, and the program currently in use; render thread only.
+  private int planarProgram = -1;
+  private int packedProgram = -1;
+  private int yHeightLocation = -1;
+  private int chromaWidthLocation = -1;
+  private int halfTexelLocation = -1;
+  private int currentProgram = -1;
   private FramePool framePool = new FramePool();
+  // Scratch space for de-padding plane rows; only used on the render thread.
+  private ByteBuffer packBuffer;
+  private volatile FrameHandoff frameHandoff = FrameHandoff.COPY;
+  // Whether the device supports (and we asked for) an ES 3.0 context.
+  private final boolean gles3;
+  private volatile boolean pixelBufferUploads = false;
+  private volatile TextureLayout textureLayout = TextureLayout.PLANAR;
+  // Set while a composite has been asked for but hasn't been requested from
+  // GLSurfaceView yet, so that requests are coalesced to one per vsync.
+  private final AtomicBoolean compositeScheduled = new AtomicBoolean();
+  // Null before JELLY_BEAN, where composites are requested immediately.
+  private final VsyncScheduler vsyncScheduler;
 
   public VideoStreamsView(Context c, Point screenDimensions) {
     super(c);
     this.screenDimensions = screenDimensions;
     setEGLConfigChooser(false);  // Don't need a depth buffer.
-    setEGLContextClientVersion(2);
+    // ES 3.0 runs the ES 2.0 shaders below unchanged and additionally enables
+    // setPixelBufferUploads().
+    gles3 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 &&
+        ((ActivityManager) c.getSystemService(Context.ACTIVITY_SERVICE))
+        .getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+    setEGLContextClientVersion(gles3 ? 3 : 2);
     setRenderer(this);
     setRenderMode(RENDERMODE_WHEN_DIRTY);
+    vsyncScheduler =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ?
+        new VsyncScheduler() : null;
   }
 
-  /** Queue |frame| to be uploaded. */
-  public void queueFrame(final Endpoint stream, I420Frame frame) {
-    // Paying for the copy of the YUV data here allows CSC and painting time
-    // to get spent on the render thread instead of the UI thread.
-    abortUnless(framePool.validateDimensions(frame), "Frame too large!");
-    final I420Frame frameCopy = framePool.takeFrame(frame).copyFrom(frame);
+  /** Choose how subsequent queueFrame() calls hand frames over. */
+  public void setFrameHandoff(FrameHandoff frameHandoff) {
+    this.frameHandoff = frameHandoff;
+  }
+
+  /**
+   * Choose whether frames are uploaded through ES 3.0 pixel buffer objects
+   * (see PixelBufferUploader) or directly from client memory.  Has no effect
+   * on devices without ES 3.0, which always upload directly.
+   */
+  public void setPixelBufferUploads(boolean enable) {
+    pixelBufferUploads = enable;
+  }
+
+  /** Choose the texture layout used for subsequently uploaded frames. */
+  public void setTextureLayout(TextureLayout textureLayout) {
+    this.textureLayout = textureLayout;
+  }
+
+  /** Choose how streams are arranged on screen. */
+  public void setLayout(TileLayout.Mode mode) {
+    layoutMode = mode;
+    invalidateLayout();
+  }
+
+  /**
+   * Feature |stream| in the SPEAKER & PICTURE_IN_PICTURE layouts.  By default
+   * the first remote stream added is featured.
+   */
+  public void setFocusedStream(Stream stream) {
+    focusedStream = stream;
+    invalidateLayout();
+  }
+
+  /**
+   * Add a stream to be composited and return the handle to pass to
+   * setSize() & queueFrame() for it.  |local| streams are never featured by
+   * default.
+   */
+  public Stream addStream(boolean local) {
+    Stream stream = new Stream(local);
+    synchronized (streamsLock) {
+      Stream[] newStreams = Arrays.copyOf(streams, streams.length + 1);
+      newStreams[streams.length] = stream;
+      streams = newStreams;
+    }
+    invalidateLayout();
+    return stream;
+  }
+
+  /**
+   * Stop compositing |stream| and release its textures.  Frames queued for it
+   * afterwards are ignored.
+   */
+  public void removeStream(final Stream stream) {
+    synchronized (streamsLock) {
+      int index = Arrays.asList(streams).indexOf(stream);
+      abortUnless(index != -1, "Unknown stream!");
+      Stream[] newStreams = new Stream[streams.length - 1];
+      System.arraycopy(streams, 0, newStreams, 0, index);
+      System.arraycopy(streams, index + 1, newStreams, index,
+          newStreams.length - index);
+      streams = newStreams;
+    }
+    stream.removed = true;
+    if (focusedStream == stream) {
+      focusedStream = null;
+    }
+    invalidateLayout();
     queueEvent(new Runnable() {
         public void run() {
-          updateFrame(stream, frameCopy);
+          stream.release();
         }
       });
   }
 
-  // Upload the planes from |frame| to the textures owned by this View.
-  private void updateFrame(Endpoint stream, I420Frame frame) {
-    int[] textures = yuvTextures[stream == Endpoint.LOCAL ? 0 : 1];
-    texImage2D(frame, textures);
-    framePool.returnFrame(frame);
-    requestRender();
+  /**
+   * Queue |frame| to be uploaded.  Only the most recent frame of each stream
+   * is kept: if the previously queued frame hasn't been uploaded yet it is
+   * dropped in favor of |frame|, so a slow render thread costs frames instead
+   * of latency & memory.
+   *
+   * Local streams are sized to their tile: one whose tile is a thumbnail only
+   * has every THUMBNAIL_FRAME_INTERVAL-th frame queued (the rest count as
+   * decimated, see getDecimatedFrameCount()), and frames of one whose tile is
+   * at most half the frame's size are shrunk by FrameDownscaler on the way in
+   * instead of copied, so they upload at roughly the size they're drawn.
+   */
+  public void queueFrame(Stream state, I420Frame frame) {
+    if (state.removed) {
+      return;
+    }
+    int shift = 0;
+    if (state.local) {
+      if (++state.framesSinceQueued < state.frameInterval) {
+        state.decimatedFrames.incrementAndGet();
+        return;
+      }
+      state.framesSinceQueued = 0;
+      int tileWidth = state.tileWidth;
+      int tileHeight = state.tileHeight;
+      if (tileWidth > 0 && tileHeight > 0) {
+        shift = FrameDownscaler.chooseShift(
+            frame.width, frame.height, tileWidth, tileHeight);
+      }
+    }
+    state.queuedNs = System.nanoTime();
+    state.queuedFrames.incrementAndGet();
+    if (shift == 0 && frameHandoff == FrameHandoff.BORROW &&
+        lendFrame(state, frame)) {
+      return;
+    }
+    // Paying for the copy of the YUV data here allows CSC and painting time
+    // to get spent on the render thread instead of the UI thread.
+    abortUnless(framePool.validateDimensions(frame), "Frame too large!");
+    I420Frame frameCopy;
+    if (shift == 0) {
+      frameCopy = framePool.takeFrame(frame).copyFrom(frame);
+    } else {
+      frameCopy = FrameDownscaler.downscale(frame, shift,
+          framePool.takeFrame(state.scaledPrototype(frame, shift)));
+    }
+    I420Frame staleFrame = state.pendingFrame.getAndSet(frameCopy);
+    if (staleFrame != null) {
+      // It was never uploaded; the already-scheduled composite will upload
+      // |frameCopy| instead.
+      framePool.returnFrame(staleFrame);
+      state.droppedFrames.incrementAndGet();
+    } else {
+      scheduleComposite();
+    }
   }
 
-  /** Inform this View of the dimensions of frames coming from |stream|. */
-  public void setSize(Endpoint stream, int width, int height) {
-    // Generate 3 texture ids for Y/U/V and place them into |textures|,
-    // allocating enough storage for |width|x|height| pixels.
-    int[] textures = yuvTextures[stream == Endpoint.LOCAL ? 0 : 1];
-    GLES20.glGenTextures(3, textures, 0);
+  // Have onDrawFrame() called once at the next display refresh, however many
+  // times this is called before then.  Callable on any thread.
+  private void scheduleComposite() {
+    if (!compositeScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    if (vsyncScheduler != null) {
+      vsyncScheduler.schedule();
+    } else {
+      compositeScheduled.set(false);
+      requestRender();
+    }
+  }
+
+  // Posts a frame callback to the UI thread's Choreographer that turns any
+  // composites scheduled since the last vsync into a single requestRender().
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private class VsyncScheduler implements Choreographer.FrameCallback {
+    // Choreographers are per-Looper; this one belongs to the UI thread that
+    // constructs the view, but posting to it is safe from any thread.
+    private final Choreographer choreographer = Choreographer.getInstance();
+
+    public void schedule() {
+      choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      // Clear first so that frames queued from now on schedule the next
+      // vsync rather than being lost.
+      compositeScheduled.set(false);
+      requestRender();
+    }
+  }
+
+  /**
+   * Return the number of frames queued for |stream|, not counting decimated
+   * ones.
+   */
+  public long getQueuedFrameCount(Stream stream) {
+    return stream.queuedFrames.get();
+  }
+
+  /**
+   * Return the number of frames of |stream| that queueFrame() skipped because
+   * its tile is too small to show them all.
+   */
+  public long getDecimatedFrameCount(Stream stream) {
+    return stream.decimatedFrames.get();
+  }
+
+  /**
+   * Return the number of frames of |stream| that were replaced by a newer
+   * frame before the render thread got to upload them.
+   */
+  public long getDroppedFrameCount(Stream stream) {
+    return stream.droppedFrames.get();
+  }
+
+  /**
+   * Return the latencies recorded for |stage| of |stream| since it was added
+   * or resetLatencies() was last called.
+   */
+  public LatencyHistogram.Snapshot getLatencySnapshot(
+      Stream stream, LatencyStage stage) {
+    return stream.latencies[stage.ordinal()].snapshot();
+  }
+
+  /** Forget the latencies recorded so far for all current streams. */
+  public void resetLatencies() {
+    for (Stream stream : streams) {
+      for (LatencyHistogram histogram : stream.latencies) {
+        histogram.reset();
+      }
+    }
+  }
+
+  /**
+   * Return a human-readable summary of the latencies & dropped frames of all
+   * current streams, for logging.  Built on the calling thread; the render
+   * thread only ever records.
+   */
+  public String dumpLatencies() {
+    StringBuilder dump = new StringBuilder();
+    Stream[] current = streams;
+    for (int i = 0; i < current.length; ++i) {
+      dump.append("Stream ").append(i)
+          .append(current[i].local ? " (local)" : " (remote)")
+          .append(", dropped frames: ")
+          .append(current[i].droppedFrames.get())
+          .append(", decimated frames: ")
+          .append(current[i].decimatedFrames.get()).append('\n');
+      for (LatencyStage stage : LatencyStage.values()) {
+        dump.append("  ").append(stage).append(": ")
+            .append(getLatencySnapshot(current[i], stage)).append('\n');
+      }
+    }
+    return dump.toString();
+  }
+
+  /**
+   * Release pooled frame memory; |level| is as passed to
+   * ComponentCallbacks2.onTrimMemory().
+   */
+  public void trimMemory(int level) {
+    framePool.trim(level);
+  }
+
+  // Let the render thread upload straight out of |frame| (whose planes are
+  // only guaranteed valid until this returns) and wait for it to finish.
+  // Returns false, without having uploaded anything, if the render thread
+  // didn't get to |frame| in time.
+  private boolean lendFrame(Stream state, I420Frame frame) {
+    // |frame| is newer than any copy still waiting to be uploaded.
+    I420Frame staleFrame = state.pendingFrame.getAndSet(null);
+    if (staleFrame != null) {
+      framePool.returnFrame(staleFrame);
+      state.droppedFrames.incrementAndGet();
+    }
+    state.borrowedFrame.lend(frame);
+    if (state.uploadBorrowedFrameQueued.compareAndSet(false, true)) {
+      queueEvent(state.uploadBorrowedFrame);
+    }
+    return state.borrowedFrame.awaitReturn(BORROW_TIMEOUT_MS);
+  }
+
+  // Upload the planes from |frame| to the textures owned by this View, unless
+  // |state| currently has no tile to be drawn in.
+  private void updateFrame(Stream state, I420Frame frame) {
+    maybeLayOutTiles();
+    if (!state.visible) {
+      return;
+    }
+    long start = System.nanoTime();
+    // |queuedNs| may already belong to a newer frame, making this an
+    // underestimate only when frames are being dropped anyway.
+    state.latencies[LatencyStage.QUEUE_TO_UPLOAD.ordinal()].recordNanos(
+        start - state.queuedNs);
+    TextureLayout layout = textureLayout;
+    if (frame.width != state.textureWidth ||
+        frame.height != state.textureHeight ||
+        layout != state.textureLayout) {
+      // A frame raced ahead of its setSize() (storage must match exactly), was
+      // shrunk by queueFrame(), or the layout has been changed.
+      allocateTextures(state, frame.width, frame.height, layout);
+    }
+    if (layout == TextureLayout.PACKED) {
+      texSubImage2DPacked(state, frame);
+    } else if (gles3 && pixelBufferUploads) {
+      if (state.pixelBufferUploader == null) {
+        state.pixelBufferUploader = new PixelBufferUploader();
+      }
+      state.pixelBufferUploader.upload(frame, state.textures);
+      checkNoGLES2Error();
+    } else {
+      texSubImage2D(state, frame);
+    }
+    state.latencies[LatencyStage.UPLOAD.ordinal()].recordNanos(
+        System.nanoTime() - start);
+    state.uploadedSinceDraw = true;
+  }
+
+  /**
+   * Inform this View of the dimensions of frames coming from |stream|.  Must
+   * be called on the render thread, e.g. via queueEvent().
+   */
+  public void setSize(Stream stream, int width, int height) {
+    if (!stream.removed) {
+      allocateTextures(stream, width, height, textureLayout);
+    }
+  }
+
+  // Make the render thread recompute the tiles before its next use of them.
+  private void invalidateLayout() {
+    layoutGeneration.incrementAndGet();
+    scheduleComposite();
+  }
+
+  // Recompute the tiles if anything affecting them changed since the last
+  // time; render thread only.
+  private void maybeLayOutTiles() {
+    int generation = layoutGeneration.get();
+    if (generation == laidOutGeneration) {
+      return;
+    }
+    laidOutGeneration = generation;
+    Stream[] current = streams;
+    int focus = -1;
+    for (int i = 0; i < current.length; ++i) {
+      current[i].visible = false;
+      current[i].tileWidth = 0;
+      current[i].tileHeight = 0;
+      current[i].frameInterval = 1;
+      if (current[i] == focusedStream ||
+          (focus == -1 && focusedStream == null && !current[i].local)) {
+        focus = i;
+      }
+    }
+    for (int i = 0; i < numTiles; ++i) {
+      // Removed streams must not linger here.
+      tileStreams[i] = null;
+    }
+    numTiles = TileLayout.layout(layoutMode, current.length, focus,
+        tileIndices, tileCoordinates);
+    float surfaceArea = (float) surfaceWidth * surfaceHeight;
+    for (int i = 0; i < numTiles; ++i) {
+      Stream stream = current[tileIndices[i]];
+      tileStreams[i] = stream;
+      stream.visible = true;
+      // From the top-left & bottom-right vertices; NDC spans 2 units.
+      int base = i * TileLayout.FLOATS_PER_TILE;
+      int width = Math.round(surfaceWidth *
+          (tileCoordinates[base + 6] - tileCoordinates[base]) / 2);
+      int height = Math.round(surfaceHeight *
+          (tileCoordinates[base + 1] - tileCoordinates[base + 7]) / 2);
+      stream.tileWidth = width;
+      stream.tileHeight = height;
+      if (stream.local &&
+          (float) width * height < surfaceArea * THUMBNAIL_AREA_FRACTION) {
+        stream.frameInterval = THUMBNAIL_FRAME_INTERVAL;
+      }
+    }
+    tileVertices.clear();
+    tileVertices.put(tileCoordinates).flip();
+  }
+
+  // Generate texture ids for |layout| and place them into |state|'s textures
+  // (replacing any previous ones), allocating enough storage for
+  // |width|x|height| pixels.  This is the only place texture storage is
+  // (re)specified; per-frame uploads only replace texel data.
+  private void allocateTextures(Stream state, int width, int height,
+      TextureLayout layout) {
+    int[] textures = state.textures;
     for (int i = 0; i < 3; ++i) {
-      int w = i == 0 ? width : width / 2;
-      int h = i == 0 ? height : height / 2;
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-      GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
-          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+      if (textures[i] != -1) {
+        GLES20.glDeleteTextures(1, textures, i);
+        textures[i] = -1;
+      }
+    }
+    state.textureWidth = width;
+    state.textureHeight = height;
+    state.textureLayout = layout;
+    if (layout == TextureLayout.PACKED) {
+      int packedHeight = height + height / 2;
+      state.yHeight = (float) height / packedHeight;
+      state.chromaWidth = (float) (width / 2) / width;
+      state.halfTexelWidth = 0.5f / width;
+      state.halfTexelHeight = 0.5f / packedHeight;
+      GLES20.glGenTextures(1, textures, 0);
+      specifyTexture(textures[0], 0, width, packedHeight);
+    } else {
+      GLES20.glGenTextures(3, textures, 0);
+      for (int i = 0; i < 3; ++i) {
+        int w = i == 0 ? width : width / 2;
+        int h = i == 0 ? height : height / 2;
+        specifyTexture(textures[i], i, w, h);
+      }
     }
     checkNoGLES2Error();
   }
 
+  // Bind |texture| to texture unit |unit| and give it |width|x|height| bytes
+  // of luminance storage.
+  private static void specifyTexture(
+      int texture, int unit, int width, int height) {
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE,
+        width, height, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+  }
+
   @Override
   protected void onMeasure(int unusedX, int unusedY) {
     // Go big or go home!
@@ -134,49 +606,56 @@ public class VideoStreamsView
   public void onSurfaceChanged(GL10 unused, int width, int height) {
     GLES20.glViewport(0, 0, width, height);
     checkNoGLES2Error();
+    surfaceWidth = width;
+    surfaceHeight = height;
+    invalidateLayout();
   }
 
   @Override
   public void onDrawFrame(GL10 unused) {
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-    drawRectangle(yuvTextures[1], remoteVertices);
-    drawRectangle(yuvTextures[0], localVertices);
-    ++numFramesSinceLastLog;
-    long now = System.nanoTime();
-    if (lastFPSLogTime == -1 || now - lastFPSLogTime > 1e9) {
-      double fps = numFramesSinceLastLog / ((now - lastFPSLogTime) / 1e9);
-      Log.e(TAG, "Rendered FPS: " + fps);
-      lastFPSLogTime = now;
-      numFramesSinceLastLog = 1;
+    maybeLayOutTiles();
+    for (Stream stream : streams) {
+      stream.uploadPendingFrame();
+    }
+    for (int i = 0; i < numTiles; ++i) {
+      drawTile(tileStreams[i], i);
     }
     checkNoGLES2Error();
   }
 
   @Override
   public void onSurfaceCreated(GL10 unused, EGLConfig config) {
-    int program = GLES20.glCreateProgram();
-    addShaderTo(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_STRING, program);
-    addShaderTo(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_STRING, program);
+    planarProgram = createProgram(FRAGMENT_SHADER_STRING);
+    GLES20.glUseProgram(planarProgram);
+    GLES20.glUniform1i(GLES20.glGetUniformLocation(planarProgram, "y_tex"), 0);
+    GLES20.glUniform1i(GLES20.glGetUniformLocation(planarProgram, "u_tex"), 1);
+    GLES20.glUniform1i(GLES20.glGetUniformLocation(planarProgram, "v_tex"), 2);
 
-    GLES20.glLinkProgram(program);
-    int[] result = new int[] { GLES20.GL_FALSE };
-    result[0] = GLES20.GL_FALSE;
-    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
-    abortUnless(result[0] == GLES20.GL_TRUE,
-        GLES20.glGetProgramInfoLog(program));
-    GLES20.glUseProgram(program);
+    packedProgram = createProgram(PACKED_FRAGMENT_SHADER_STRING);
+    GLES20.glUseProgram(packedProgram);
+    GLES20.glUniform1i(
+        GLES20.glGetUniformLocation(packedProgram, "yuv_tex"), 0);
+    yHeightLocation = GLES20.glGetUniformLocation(packedProgram, "y_height");
+    chromaWidthLocation =
+        GLES20.glGetUniformLocation(packedProgram, "chroma_width");
+    halfTexelLocation =
+        GLES20.glGetUniformLocation(packedProgram, "half_texel");
+    currentProgram = packedProgram;
 
-    GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "y_tex"), 0);
-    GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "u_tex"), 1);
-    GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "v_tex"), 2);
-
-    // Actually set in drawRectangle(), but queried only once here.
-    posLocation = GLES20.glGetAttribLocation(program, "in_pos");
-
-    int tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
-    GLES20.glEnableVertexAttribArray(tcLocation);
+    // Vertex attributes are context (not program) state, so this serves both
+    // programs and every tile: each draw call picks its tile's four vertices
+    // out of these arrays, which are read at draw time.
+    GLES20.glEnableVertexAttribArray(TC_ATTRIB);
+    GLES20.glVertexAttribPointer(
+        TC_ATTRIB, 2, GLES20.GL_FLOAT, false, 0, textureCoords);
+    GLES20.glEnableVertexAttribArray(POS_ATTRIB);
     GLES20.glVertexAttribPointer(
-        tcLocation, 2, GLES20.GL_FLOAT, false, 0, textureCoords);
+        POS_ATTRIB, 2, GLES20.GL_FLOAT, false, 0, tileVertices);
+
+    // Plane rows are tightly packed (see texSubImage2D()), and chroma widths
+    // needn't be multiples of the default 4.
+    GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
 
     GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
     checkNoGLES2Error();
@@ -191,35 +670,335 @@ public class VideoStreamsView
     return buffer;
   }
 
-  // Upload the YUV planes from |frame| to |textures|.
-  private void texImage2D(I420Frame frame, int[] textures) {
+  // Upload |frame| to |state|'s single TextureLayout.PACKED texture: rows of
+  // the Y plane followed by rows each made of a U row and the matching V row.
+  private void texSubImage2DPacked(Stream state, I420Frame frame) {
+    int width = frame.width;
+    int height = frame.height;
+    int chromaWidth = width / 2;
+    int chromaHeight = height / 2;
+    ByteBuffer packed = ensurePackBuffer(width * (height + chromaHeight));
+    putRows(frame.yuvPlanes[0], frame.yuvStrides[0], width, height, packed);
+    ByteBuffer u = frame.yuvPlanes[1];
+    ByteBuffer v = frame.yuvPlanes[2];
+    for (int row = 0; row < chromaHeight; ++row) {
+      putRows(u, frame.yuvStrides[1], chromaWidth, 1, row, packed);
+      putRows(v, frame.yuvStrides[2], chromaWidth, 1, row, packed);
+      // Odd widths leave a byte of padding at the end of chroma rows.
+      packed.position(packed.position() + width - 2 * chromaWidth);
+    }
+    packed.flip();
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, state.textures[0]);
+    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
+        height + chromaHeight, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE,
+        packed);
+    checkNoGLES2Error();
+  }
+
+  // Upload the YUV planes from |frame| to |state|'s textures.
+  private void texSubImage2D(Stream state, I420Frame frame) {
     for (int i = 0; i < 3; ++i) {
-      ByteBuffer plane = frame.yuvPlanes[i];
       GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, state.textures[i]);
       int w = i == 0 ? frame.width : frame.width / 2;
       int h = i == 0 ? frame.height : frame.height / 2;
-      abortUnless(w == frame.yuvStrides[i], frame.yuvStrides[i] + "!=" + w);
-      GLES20.glTexImage2D(
-          GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
+      ByteBuffer plane = frame.yuvPlanes[i];
+      if (frame.yuvStrides[i] != w) {
+        // GLES2 has no GL_UNPACK_ROW_LENGTH, so drop the row padding here.
+        plane = packRows(plane, frame.yuvStrides[i], w, h);
+      }
+      plane.position(0);
+      GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, w, h,
           GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
     }
     checkNoGLES2Error();
   }
 
-  // Draw |textures| using |vertices| (X,Y coordinates).
-  private void drawRectangle(int[] textures, FloatBuffer vertices) {
-    for (int i = 0; i < 3; ++i) {
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+  // Copy the first |width| bytes of each of the |height| |stride|-byte rows of
+  // |plane| into |packBuffer| and return it.
+  private ByteBuffer packRows(ByteBuffer plane, int stride, int width,
+      int height) {
+    ByteBuffer packed = ensurePackBuffer(width * height);
+    putRows(plane, stride, width, height, packed);
+    packed.flip();
+    return packed;
+  }
+
+  // Return |packBuffer|, cleared and grown to hold at least |size| bytes.
+  private ByteBuffer ensurePackBuffer(int size) {
+    if (packBuffer == null || packBuffer.capacity() < size) {
+      packBuffer = ByteBuffer.allocateDirect(size);
     }
+    packBuffer.clear();
+    return packBuffer;
+  }
 
-    GLES20.glVertexAttribPointer(
-        posLocation, 2, GLES20.GL_FLOAT, false, 0, vertices);
-    GLES20.glEnableVertexAttribArray(posLocation);
+  // Append the first |width| bytes of each of the |height| |stride|-byte rows
+  // of |plane| to |dst|.
+  private static void putRows(ByteBuffer plane, int stride, int width,
+      int height, ByteBuffer dst) {
+    putRows(plane, stride, width, height, 0, dst);
+  }
+
+  // As above, but starting at row |firstRow| of |plane|.
+  private static void putRows(ByteBuffer plane, int stride, int width,
+      int height, int firstRow, ByteBuffer dst) {
+    if (stride == width) {
+      plane.limit((firstRow + height) * stride);
+      plane.position(firstRow * stride);
+      dst.put(plane);
+    } else {
+      for (int row = firstRow; row < firstRow + height; ++row) {
+        plane.limit(row * stride + width);
+        plane.position(row * stride);
+        dst.put(plane);
+      }
+    }
+    plane.clear();
+  }
 
-    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+  // Draw |state|'s textures into tile |tile|.  Only the stream's own state is
+  // set here; the vertex arrays are shared by all tiles.
+  private void drawTile(Stream state, int tile) {
+    int[] textures = state.textures;
+    if (textures[0] == -1) {
+      return;  // No setSize() or frame yet.
+    }
+    long start = System.nanoTime();
+    if (state.textureLayout == TextureLayout.PACKED) {
+      useProgram(packedProgram);
+      GLES20.glUniform1f(yHeightLocation, state.yHeight);
+      GLES20.glUniform1f(chromaWidthLocation, state.chromaWidth);
+      GLES20.glUniform2f(
+          halfTexelLocation, state.halfTexelWidth, state.halfTexelHeight);
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+    } else {
+      useProgram(planarProgram);
+      for (int i = 0; i < 3; ++i) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+      }
+    }
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 4 * tile, 4);
+    long end = System.nanoTime();
+    state.latencies[LatencyStage.DRAW.ordinal()].recordNanos(end - start);
+    if (state.uploadedSinceDraw) {
+      if (state.lastPresentNs != 0) {
+        state.latencies[LatencyStage.PRESENT_INTERVAL.ordinal()].recordNanos(
+            end - state.lastPresentNs);
+      }
+      state.lastPresentNs = end;
+      state.uploadedSinceDraw = false;
+    }
+  }
+
+  // Switch to |program| unless it's already in use.
+  private void useProgram(int program) {
+    if (program != currentProgram) {
+      GLES20.glUseProgram(program);
+      currentProgram = program;
+    }
+  }
+
+  /**
+   * Handle to one composited video stream, as returned by addStream().  Holds
+   * the stream's state shared between the thread delivering its frames and
+   * the render thread.
+   */
+  public class Stream {
+    private final boolean local;
+    private volatile boolean removed = false;
+    // Whether the stream currently has a tile; render thread only.
+    private boolean visible = false;
+    // Y,U,V texture ids and the frame dimensions their storage was allocated
+    // for; only touched on the render thread.
+    private final int[] textures = { -1, -1, -1 };
+    private int textureWidth = -1;
+    private int textureHeight = -1;
+    private TextureLayout textureLayout = TextureLayout.PLANAR;
+    // TextureLayout.PACKED shader parameters (see allocateTextures()).
+    private float yHeight;
+    private float chromaWidth;
+    private float halfTexelWidth;
+    private float halfTexelHeight;
+    // Created on first use when pixel buffer uploads are enabled.
+    private PixelBufferUploader pixelBufferUploader;
+    // Most recently queued frame not yet uploaded, or null.
+    private final AtomicReference<I420Frame> pendingFrame =
+        new AtomicReference<I420Frame>();
+    private final AtomicLong queuedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong decimatedFrames = new AtomicLong();
+    // On-screen size of the stream's tile in pixels (0 while it has none or
+    // before the surface exists), and how many frames queueFrame() takes to
+    // queue one; written by the render thread's layout, read by queueFrame().
+    private volatile int tileWidth = 0;
+    private volatile int tileHeight = 0;
+    private volatile int frameInterval = 1;
+    // Frames since the last one queued, and the prototype of the last size
+    // frames were shrunk to; queueFrame() only.
+    private int framesSinceQueued = 0;
+    private I420Frame scaledPrototype;
+    // Indexed by LatencyStage.ordinal().
+    private final LatencyHistogram[] latencies =
+        new LatencyHistogram[LatencyStage.values().length];
+    // When queueFrame() was last called.
+    private volatile long queuedNs;
+    // Whether a frame was uploaded since the last drawTile(), and when that
+    // last showed a new frame; render thread only.
+    private boolean uploadedSinceDraw = false;
+    private long lastPresentNs = 0;
+    // Frame lent by queueFrame() in FrameHandoff.BORROW mode.  The lender is
+    // blocked, so unlike |pendingFrame| this is uploaded as soon as possible
+    // rather than at the next composite.
+    private final BorrowedFrame borrowedFrame = new BorrowedFrame();
+    private final Runnable uploadBorrowedFrame = new Runnable() {
+        public void run() {
+          // Cleared before claiming, so a frame lent after this point gets
+          // a run of its own.
+          uploadBorrowedFrameQueued.set(false);
+          I420Frame frame = borrowedFrame.claim();
+          if (frame != null) {
+            try {
+              if (!removed) {
+                updateFrame(Stream.this, frame);
+              }
+            } finally {
+              // The lender is blocked until this is called.
+              borrowedFrame.giveBack();
+            }
+            scheduleComposite();
+          }
+        }
+      };
+    // Whether |uploadBorrowedFrame| is queued and hasn't started running, so
+    // a stalled render thread collects one of it rather than one per frame.
+    private final AtomicBoolean uploadBorrowedFrameQueued =
+        new AtomicBoolean();
+
+    private Stream(boolean local) {
+      this.local = local;
+      for (int i = 0; i < latencies.length; ++i) {
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    // Return the FrameDownscaler prototype for |frame| shrunk by |shift|,
+    // reusing the last one while the size holds; queueFrame() only.
+    private I420Frame scaledPrototype(I420Frame frame, int shift) {
+      if (scaledPrototype == null ||
+          scaledPrototype.width != frame.width >> shift ||
+          scaledPrototype.height != frame.height >> shift) {
+        scaledPrototype = FrameDownscaler.scaledPrototype(frame, shift);
+      }
+      return scaledPrototype;
+    }
+
+    // Upload the most recently queued frame, if any; render thread only.
+    private void uploadPendingFrame() {
+      I420Frame frame = pendingFrame.getAndSet(null);
+      if (frame != null) {
+        if (!removed) {
+          updateFrame(this, frame);
+        }
+        framePool.returnFrame(frame);
+      }
+    }
+
+    // Free the GL & pooled resources of a removed stream; render thread only.
+    private void release() {
+      for (int i = 0; i < 3; ++i) {
+        if (textures[i] != -1) {
+          GLES20.glDeleteTextures(1, textures, i);
+          textures[i] = -1;
+        }
+      }
+      if (pixelBufferUploader != null) {
+        pixelBufferUploader.release();
+        pixelBufferUploader = null;
+      }
+      I420Frame frame = pendingFrame.getAndSet(null);
+      if (frame != null) {
+        framePool.returnFrame(frame);
+      }
+      checkNoGLES2Error();
+    }
+  }
+
+  // Ownership handshake for a frame that belongs to the thread calling
+  // queueFrame() but is uploaded by the render thread.  The lender may take
+  // the frame back only while the render thread hasn't claimed it; once
+  // claimed, the lender must wait for the render thread to give it back.
+  private static class BorrowedFrame {
+    private static final int IDLE = 0;
+    private static final int LENT = 1;
+    private static final int CLAIMED = 2;
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private volatile I420Frame frame;
+
+    // Called by the lender to make |frame| available to claim().
+    public void lend(I420Frame frame) {
+      this.frame = frame;
+      state.set(LENT);
+    }
+
+    // Called by the render thread; returns the lent frame, or null if the
+    // lender already took it back.
+    public I420Frame claim() {
+      return state.compareAndSet(LENT, CLAIMED) ? frame : null;
+    }
+
+    // Called by the render thread once it's done with the claimed frame.
+    public synchronized void giveBack() {
+      state.set(IDLE);
+      notifyAll();
+    }
+
+    // Called by the lender.  Waits up to |timeoutMs| for the frame to be
+    // claimed and then for as long as it takes to be given back.  Returns
+    // false if the frame was never claimed (and now can't be).
+    public synchronized boolean awaitReturn(long timeoutMs) {
+      try {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        long remaining;
+        while (state.get() == LENT &&
+            (remaining = deadline - System.nanoTime()) > 0) {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (state.compareAndSet(LENT, IDLE)) {
+          frame = null;
+          return false;
+        }
+        while (state.get() != IDLE) {
+          wait();
+        }
+        frame = null;
+        return true;
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  // Return a linked program made of VERTEX_SHADER_STRING and |fragmentShader|,
+  // with attributes bound to POS_ATTRIB and TC_ATTRIB.
+  private static int createProgram(String fragmentShader) {
+    int program = GLES20.glCreateProgram();
+    addShaderTo(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_STRING, program);
+    addShaderTo(GLES20.GL_FRAGMENT_SHADER, fragmentShader, program);
+    GLES20.glBindAttribLocation(program, POS_ATTRIB, "in_pos");
+    GLES20.glBindAttribLocation(program, TC_ATTRIB, "in_tc");
+
+    GLES20.glLinkProgram(program);
+    int[] result = new int[] { GLES20.GL_FALSE };
+    result[0] = GLES20.GL_FALSE;
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
+    abortUnless(result[0] == GLES20.GL_TRUE,
+        GLES20.glGetProgramInfoLog(program));
     checkNoGLES2Error();
+    return program;
   }
 
   // Compile & attach a |type| shader specified by |source| to |program|.
@@ -250,17 +1029,18 @@ public class VideoStreamsView
     abortUnless(error == GLES20.GL_NO_ERROR, "GLES20 error: " + error);
   }
 
-  // Remote image should span the full screen.
-  private static final FloatBuffer remoteVertices = directNativeFloatBuffer(
-      new float[] { -1, 1, -1, -1, 1, 1, 1, -1 });
-
-  // Local image should be thumbnailish.
-  private static final FloatBuffer localVertices = directNativeFloatBuffer(
-      new float[] { 0.6f, 0.9f, 0.6f, 0.6f, 0.9f, 0.9f, 0.9f, 0.6f });
-
-  // Texture Coordinates mapping the entire texture.
+  // Texture Coordinates mapping the entire texture, once per tile.
   private static final FloatBuffer textureCoords = directNativeFloatBuffer(
-      new float[] { 0, 0, 0, 1, 1, 0, 1, 1 });
+      repeat(new float[] { 0, 0, 0, 1, 1, 0, 1, 1 }, TileLayout.MAX_TILES));
+
+  // Return |times| concatenated copies of |array|.
+  private static float[] repeat(float[] array, int times) {
+    float[] result = new float[array.length * times];
+    for (int i = 0; i < times; ++i) {
+      System.arraycopy(array, 0, result, i * array.length, array.length);
+    }
+    return result;
+  }
 
   // Pass-through vertex shader.
   private static final String VERTEX_SHADER_STRING =
@@ -293,4 +1073,39 @@ public class VideoStreamsView
       "                      y - 0.344 * u - 0.714 * v, " +
       "                      y + 1.77 * u, 1);\n" +
       "}\n";
+
+  // Same CSC as above, but for TextureLayout.PACKED: the Y plane occupies the
+  // top |y_height| of the texture and the U & V planes (each |chroma_width|
+  // wide) sit side by side below it.  Sample coordinates are kept half a texel
+  // away from the seams between planes so linear filtering can't blend them.
+  // highp where available: mediump can't address every row of a 1080p atlas.
+  private static final String PACKED_FRAGMENT_SHADER_STRING =
+      "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+      "precision highp float;\n" +
+      "#else\n" +
+      "precision mediump float;\n" +
+      "#endif\n" +
+      "varying vec2 interp_tc;\n" +
+      "\n" +
+      "uniform sampler2D yuv_tex;\n" +
+      "uniform float y_height;\n" +
+      "uniform float chroma_width;\n" +
+      "uniform vec2 half_texel;\n" +
+      "\n" +
+      "void main() {\n" +
+      "  vec2 y_tc = vec2(interp_tc.x,\n" +
+      "      min(interp_tc.y * y_height, y_height - half_texel.y));\n" +
+      "  vec2 u_tc = vec2(\n" +
+      "      clamp(interp_tc.x * chroma_width, half_texel.x,\n" +
+      "          chroma_width - half_texel.x),\n" +
+      "      max(y_height + interp_tc.y * (1.0 - y_height),\n" +
+      "          y_height + half_texel.y));\n" +
+      "  vec2 v_tc = u_tc + vec2(chroma_width, 0.0);\n" +
+      "  float y = texture2D(yuv_tex, y_tc).r;\n" +
+      "  float u = texture2D(yuv_tex, u_tc).r - .5;\n" +
+      "  float v = texture2D(yuv_tex, v_tc).r - .5;\n" +
+      "  gl_FragColor = vec4(y + 1.403 * v, " +
+      "                      y - 0.344 * u - 0.714 * v, " +
+      "                      y + 1.77 * u, 1);\n" +
+      "}\n";
 }
@@ -0,0 +1,441 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executor;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Receives a room's signaling messages over a WebSocket (RFC 6455), without
+ * the WebView and JavaScript bridge GAEChannelClient needs.
+ *
+ * Connects to a ws:// or wss:// URI from a thread of its own and delivers
+ * each text message to a SignalingChannel.MessageHandler: onOpen() once the
+ * handshake completes, onMessage() per message, then one of onClose() (the
+ * server closed the connection) or onError() (a failed handshake, reported
+ * with the HTTP status, or an I/O, TLS or protocol error, reported with -1).
+ * Callbacks run on the Executor given to the constructor, and stop once
+ * close() is called.  The channel is receive-only, like the GAE channel it
+ * replaces; messages are sent through SignalingTransport.
+ *
+ * For wss:// the URI's host is sent for SNI, and the server's certificate
+ * must both chain to a trusted CA and be for that host, as judged by
+ * HttpsURLConnection's default HostnameVerifier.  (Android's checks the
+ * certificate's names; a desktop JVM's rejects every host until one is set.)
+ *
+ * Has no Android dependencies, so it can be run against an in-process server.
+ */
+class WebSocketChannelClient implements SignalingChannel {
+  private static final String HANDSHAKE_GUID =
+      "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final int CONNECT_TIMEOUT_MS = 10000;
+  // Larger messages are a protocol error; SDP is a few KB.
+  private static final int MAX_MESSAGE_BYTES = 1 << 20;
+  private static final int OPCODE_CONTINUATION = 0x0;
+  private static final int OPCODE_TEXT = 0x1;
+  private static final int OPCODE_BINARY = 0x2;
+  private static final int OPCODE_CLOSE = 0x8;
+  private static final int OPCODE_PING = 0x9;
+  private static final int OPCODE_PONG = 0xA;
+
+  private final URI uri;
+  private final Executor callbackExecutor;
+  private final SignalingChannel.MessageHandler handler;
+  private final SecureRandom random = new SecureRandom();
+  private final Thread thread;
+  private volatile boolean closed = false;
+  private volatile Socket socket;
+  private OutputStream out;  // Only written from |thread|.
+
+  /** Asynchronously open a WebSocket to |uri|. */
+  public WebSocketChannelClient(URI uri, Executor callbackExecutor,
+      SignalingChannel.MessageHandler handler) {
+    String scheme = uri.getScheme();
+    if (!"ws".equals(scheme) && !"wss".equals(scheme)) {
+      throw new IllegalArgumentException("Not a WebSocket URI: " + uri);
+    }
+    this.uri = uri;
+    this.callbackExecutor = callbackExecutor;
+    this.handler = handler;
+    thread = new Thread(new Runnable() {
+        public void run() {
+          receive();
+        }
+      }, "WebSocketChannelClient");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop delivering messages and drop the connection.  No close frame is
+   * sent; this may be called on a thread that mustn't block on the network.
+   */
+  public void close() {
+    closed = true;
+    Socket socket = this.socket;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing more to do with it.
+      }
+    }
+  }
+
+  // Body of |thread|: connect, then deliver messages until the connection
+  // ends.
+  private void receive() {
+    try {
+      Socket socket = connect();
+      try {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        int status = handshake(in);
+        if (status != 101) {
+          dispatchError(status, "WebSocket handshake failed: " + status);
+          return;
+        }
+        dispatchOpen();
+        while (!closed) {
+          String message = readMessage(in);
+          if (message == null) {
+            dispatchClose();
+            return;
+          }
+          dispatchMessage(message);
+        }
+      } finally {
+        socket.close();
+      }
+    } catch (IOException e) {
+      dispatchError(-1, "WebSocket error: " + e.getMessage());
+    }
+  }
+
+  // Connect to |uri|'s server, and for wss:// do the TLS handshake (sending
+  // the host name for SNI) and check the certificate is for that host.
+  private Socket connect() throws IOException {
+    boolean secure = uri.getScheme().equals("wss");
+    String host = uri.getHost();
+    int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+    Socket socket = new Socket();
+    publish(socket);
+    socket.setTcpNoDelay(true);
+    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+    if (!secure) {
+      return socket;
+    }
+    SSLSocket sslSocket = (SSLSocket)
+        ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(
+            socket, host, port, true);
+    publish(sslSocket);
+    sslSocket.startHandshake();
+    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(
+        host, sslSocket.getSession())) {
+      sslSocket.close();
+      throw new SSLPeerUnverifiedException(
+          "Certificate doesn't match host " + host);
+    }
+    return sslSocket;
+  }
+
+  // Make |socket| the one close() closes, closing it right away if close()
+  // has already been called.
+  private void publish(Socket socket) throws IOException {
+    this.socket = socket;
+    if (closed) {  // close() raced with |socket| being published.
+      socket.close();
+      throw new IOException("Closed");
+    }
+  }
+
+  // Send the opening handshake and read the response's headers.  Returns the
+  // response's status, or throws if a 101 response doesn't accept our key.
+  private int handshake(InputStream in) throws IOException {
+    byte[] nonce = new byte[16];
+    random.nextBytes(nonce);
+    String key = base64(nonce);
+    String path = uri.getRawPath();
+    if (path == null || path.length() == 0) {
+      path = "/";
+    }
+    if (uri.getRawQuery() != null) {
+      path += "?" + uri.getRawQuery();
+    }
+    String host = uri.getHost();
+    if (uri.getPort() != -1) {
+      host += ":" + uri.getPort();
+    }
+    String request = "GET " + path + " HTTP/1.1\r\n" +
+        "Host: " + host + "\r\n" +
+        "Upgrade: websocket\r\n" +
+        "Connection: Upgrade\r\n" +
+        "Sec-WebSocket-Key: " + key + "\r\n" +
+        "Sec-WebSocket-Version: 13\r\n\r\n";
+    out.write(request.getBytes("UTF-8"));
+    out.flush();
+
+    String statusLine = readLine(in);
+    String[] parts = statusLine.split(" ", 3);
+    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+      throw new IOException("Bad status line: " + statusLine);
+    }
+    int status;
+    try {
+      status = Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Bad status line: " + statusLine);
+    }
+    String accept = null;
+    String line;
+    while ((line = readLine(in)).length() > 0) {
+      int colon = line.indexOf(':');
+      if (colon > 0 && line.substring(0, colon).trim()
+          .equalsIgnoreCase("Sec-WebSocket-Accept")) {
+        accept = line.substring(colon + 1).trim();
+      }
+    }
+    if (status == 101 && !expectedAccept(key).equals(accept)) {
+      throw new IOException("Bad Sec-WebSocket-Accept: " + accept);
+    }
+    return status;
+  }
+
+  // Read frames until a whole text message is in and return it, answering
+  // pings on the way.  Returns null once the server closes the connection.
+  private String readMessage(InputStream in) throws IOException {
+    ByteArrayOutputStream message = null;
+    while (true) {
+      int b0 = readByte(in);
+      int b1 = readByte(in);
+      boolean fin = (b0 & 0x80) != 0;
+      int opcode = b0 & 0x0F;
+      if ((b1 & 0x80) != 0) {
+        throw new IOException("Server frames must not be masked");
+      }
+      long length = b1 & 0x7F;
+      if (length == 126) {
+        length = (readByte(in) << 8) | readByte(in);
+      } else if (length == 127) {
+        length = 0;
+        for (int i = 0; i < 8; ++i) {
+          length = (length << 8) | readByte(in);
+        }
+      }
+      if (length < 0 || length > MAX_MESSAGE_BYTES) {
+        throw new IOException("Frame too large: " + length);
+      }
+      byte[] payload = readFully(in, (int) length);
+
+      switch (opcode) {
+        case OPCODE_TEXT:
+        case OPCODE_CONTINUATION:
+          if ((opcode == OPCODE_TEXT) != (message == null)) {
+            throw new IOException("Unexpected opcode: " + opcode);
+          }
+          if (message == null) {
+            message = new ByteArrayOutputStream(payload.length);
+          }
+          if (message.size() + payload.length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Message too large");
+          }
+          message.write(payload);
+          if (fin) {
+            return message.toString("UTF-8");
+          }
+          break;
+        case OPCODE_PING:
+          writeFrame(OPCODE_PONG, payload);
+          break;
+        case OPCODE_PONG:
+          break;
+        case OPCODE_CLOSE:
+          // Echo the close, as the protocol asks, then let the server hang
+          // up.
+          writeFrame(OPCODE_CLOSE, payload);
+          return null;
+        case OPCODE_BINARY:
+        default:
+          throw new IOException("Unexpected opcode: " + opcode);
+      }
+    }
+  }
+
+  // Write a single masked frame, as clients must.
+  private void writeFrame(int opcode, byte[] payload) throws IOException {
+    int length = payload.length;
+    byte[] header = new byte[length < 126 ? 6 : 8];
+    header[0] = (byte) (0x80 | opcode);
+    if (length < 126) {
+      header[1] = (byte) (0x80 | length);
+    } else {
+      // Only control frames are written, and those are <= 125 bytes, but
+      // be correct anyway for payloads up to 64KB.
+      if (length > 0xFFFF) {
+        throw new IOException("Frame too large: " + length);
+      }
+      header[1] = (byte) (0x80 | 126);
+      header[2] = (byte) (length >> 8);
+      header[3] = (byte) length;
+    }
+    byte[] mask = new byte[4];
+    random.nextBytes(mask);
+    System.arraycopy(mask, 0, header, header.length - 4, 4);
+    byte[] masked = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+    }
+    out.write(header);
+    out.write(masked);
+    out.flush();
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException("Connection closed mid-frame");
+    }
+    return b;
+  }
+
+  private static byte[] readFully(InputStream in, int length)
+      throws IOException {
+    byte[] bytes = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int count = in.read(bytes, offset, length - offset);
+      if (count == -1) {
+        throw new EOFException("Connection closed mid-frame");
+      }
+      offset += count;
+    }
+    return bytes;
+  }
+
+  // Read a CRLF-terminated line of the handshake response.
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = readByte(in)) != '\n') {
+      if (line.length() > 8192) {
+        throw new IOException("Handshake line too long");
+      }
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  private static String expectedAccept(String key) throws IOException {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return base64(sha1.digest((key + HANDSHAKE_GUID).getBytes("UTF-8")));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Standard, padded base64; android.util.Base64 would tie this class to
+  // Android.
+  private static String base64(byte[] bytes) {
+    final String alphabet =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    StringBuilder encoded = new StringBuilder((bytes.length + 2) / 3 * 4);
+    for (int i = 0; i < bytes.length; i += 3) {
+      int n = (bytes[i] & 0xFF) << 16;
+      if (i + 1 < bytes.length) {
+        n |= (bytes[i + 1] & 0xFF) << 8;
+      }
+      if (i + 2 < bytes.length) {
+        n |= bytes[i + 2] & 0xFF;
+      }
+      encoded.append(alphabet.charAt(n >> 18));
+      encoded.append(alphabet.charAt((n >> 12) & 0x3F));
+      encoded.append(i + 1 < bytes.length ?
+          alphabet.charAt((n >> 6) & 0x3F) : '=');
+      encoded.append(i + 2 < bytes.length ? alphabet.charAt(n & 0x3F) : '=');
+    }
+    return encoded.toString();
+  }
+
+  private void dispatchOpen() {
+    callbackExecutor.execute(new Runnable() {
+        public void run() {
+          if (!closed) {
+            handler.onOpen();
+          }
+        }
+      });
+  }
+
+  private void dispatchMessage(final String message) {
+    callbackExecutor.execute(new Runnable() {
+        public void run() {
+          if (!closed) {
+            handler.onMessage(message);
+          }
+        }
+      });
+  }
+
+  private void dispatchClose() {
+    callbackExecutor.execute(new Runnable() {
+        public void run() {
+          if (!closed) {
+            handler.onClose();
+          }
+        }
+      });
+  }
+
+  private void dispatchError(final int code, final String description) {
+    callbackExecutor.execute(new Runnable() {
+        public void run() {
+          if (!closed) {
+            handler.onError(code, description);
+          }
+        }
+      });
+  }
+}